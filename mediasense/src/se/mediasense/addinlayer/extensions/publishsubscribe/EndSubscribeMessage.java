@@ -25,6 +25,7 @@ import se.mediasense.messages.MediaSenseMessage;
 public class EndSubscribeMessage extends MediaSenseMessage
 {
 	
+	private static final long serialVersionUID = 3582635112310261400L;
 	public String uci;
 	
         public EndSubscribeMessage(String _uci, MediaSenseHost _subscriber, MediaSenseHost _resourceowner)
@@ -44,5 +45,15 @@ public class EndSubscribeMessage extends MediaSenseMessage
 
 	}
 
-   
+    @Override
+    public Priority getPriority()
+    {
+        return Priority.CONTROL;
+    }
+
+    @Override
+    public boolean isIdempotent()
+    {
+        return true;
+    }
 }
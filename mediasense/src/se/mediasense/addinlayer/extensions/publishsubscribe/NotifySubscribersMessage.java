@@ -18,6 +18,7 @@
 package se.mediasense.addinlayer.extensions.publishsubscribe;
 
 import se.mediasense.disseminationlayer.communication.MediaSenseHost;
+import se.mediasense.messages.EncodedValue;
 import se.mediasense.messages.MediaSenseMessage;
 
 //obsolete? can be replaced with just a regular notify????
@@ -58,6 +59,9 @@ public class NotifySubscribersMessage extends MediaSenseMessage {
      * @return the value
      */
     public java.io.Serializable getValue() {
+        if (value instanceof EncodedValue) {
+            return ((EncodedValue) value).getValue();
+        }
         return value;
     }
 
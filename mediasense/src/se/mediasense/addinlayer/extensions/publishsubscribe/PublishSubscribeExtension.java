@@ -18,13 +18,18 @@
 
 package se.mediasense.addinlayer.extensions.publishsubscribe;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 import se.mediasense.addinlayer.extensions.Extension;
 import se.mediasense.disseminationlayer.communication.DestinationNotReachableException;
 import se.mediasense.disseminationlayer.communication.MediaSenseHost;
 import se.mediasense.interfacelayer.MediaSensePlatform;
+import se.mediasense.messages.EncodedValue;
+import se.mediasense.metrics.FlightEvents;
 import se.mediasense.messages.MediaSenseListener;
 import se.mediasense.messages.MediaSenseMessage;
 
@@ -51,6 +56,16 @@ public final class PublishSubscribeExtension implements Extension, MediaSenseLis
         platform.registerListener(EndSubscribeMessage.class.getName(), this);
         platform.registerListener(NotifySubscribersMessage.class.getName(), this);
 
+        //recover the subscriptions held before a restart from the journal
+        Map<String, List<MediaSenseHost>> recovered = platform.getContext().getJournal().getSubscriptions();
+        for (Map.Entry<String, List<MediaSenseHost>> e : recovered.entrySet())
+        {
+            for (MediaSenseHost host : e.getValue())
+            {
+                subscriptions.put(e.getKey(), host);
+            }
+        }
+
     }
 
 
@@ -89,12 +104,14 @@ public final class PublishSubscribeExtension implements Extension, MediaSenseLis
         if(_msg.getMsgType().equalsIgnoreCase(StartSubscribeMessage.class.getName()))
         {
             subscriptions.put(((StartSubscribeMessage)_msg).getUci(), ((StartSubscribeMessage)_msg).getSource());
+            platform.getContext().getJournal().logSubscribe(((StartSubscribeMessage)_msg).getUci(), _msg.getSource());
 
         }
         else if(_msg.getMsgType().equalsIgnoreCase(EndSubscribeMessage.class.getName()))
         {
 
-            subscriptions.remove(((StartSubscribeMessage)_msg).getUci(), ((StartSubscribeMessage)_msg).getSource());
+            subscriptions.remove(((EndSubscribeMessage)_msg).uci, ((EndSubscribeMessage)_msg).getSource());
+            platform.getContext().getJournal().logUnsubscribe(((EndSubscribeMessage)_msg).uci, _msg.getSource());
 
         }
         else if(_msg.getMsgType().equalsIgnoreCase(NotifySubscribersMessage.class.getName()))
@@ -167,22 +184,47 @@ public final class PublishSubscribeExtension implements Extension, MediaSenseLis
 		//Attend to the subscriptions
 		MediaSenseHost[] subsriberIp = subscriptions.get(uci);
 
+		Object jfr = FlightEvents.ENABLED ? FlightEvents.begin(FlightEvents.Type.PUBSUB_FANOUT) : null;
+
+		//Serialize the value once for all subscribers
+		Serializable payload = value;
+		try
+		{
+			payload = EncodedValue.encode(value);
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+
 		for(int i = 0; i != subsriberIp.length; i++)
                 {
 
 			try
                         {
 				
-                            platform.sendMessage(new NotifySubscribersMessage(uci, value, subsriberIp[i], platform.getLocalHost()));
+                            platform.sendMessage(new NotifySubscribersMessage(uci, payload, subsriberIp[i], platform.getLocalHost()));
                             
 
 			}
 			catch(DestinationNotReachableException e)
                         {
-				//Not reachable, remove that subscriber from the list
-				subscriptions.remove(uci, subsriberIp[i]);
+				//Down, remove that subscriber from the list. A subscriber
+				//which only missed this value keeps its subscription
+				if (e.isDestinationDown())
+				{
+					subscriptions.remove(uci, subsriberIp[i]);
+					platform.getContext().getJournal().logUnsubscribe(uci, subsriberIp[i]);
+				}
 			}
 		}
+
+		if (jfr != null)
+		{
+			//size is the total number of value bytes fanned out
+			long size = payload instanceof EncodedValue ? (long) ((EncodedValue) payload).size() * subsriberIp.length : -1;
+			FlightEvents.commit(jfr, uci, NotifySubscribersMessage.class.getName(), size);
+		}
 	}
 
 
@@ -200,6 +242,7 @@ public final class PublishSubscribeExtension implements Extension, MediaSenseLis
 			if(v == null){
 				v = new Vector<MediaSenseHost>();
 			}
+			remove(v, value);
 			v.add(value);
 			map.put(key, v);
 		}
@@ -215,10 +258,22 @@ public final class PublishSubscribeExtension implements Extension, MediaSenseLis
 		
 		public void remove(String key, MediaSenseHost value){
 			Vector<MediaSenseHost> v = map.get(key);
-			v.remove(value);
+			if(v == null){
+				return;
+			}
+			remove(v, value);
 			map.put(key, v);
 		}
 		
+		//hosts are compared by ID, recovered hosts are different instances
+		private void remove(Vector<MediaSenseHost> v, MediaSenseHost value){
+			for(int i = v.size() - 1; i >= 0; i--){
+				if(v.get(i).getHostID().equals(value.getHostID())){
+					v.remove(i);
+				}
+			}
+		}
+		
 		public void clear(){
 			map.clear();
 		}
@@ -25,6 +25,7 @@ import se.mediasense.messages.MediaSenseMessage;
 public class StartSubscribeMessage extends MediaSenseMessage
 {
 	
+	private static final long serialVersionUID = 1836149890742001631L;
 	private String uci;
         private String duration;
         private String end_time;
@@ -135,5 +136,15 @@ public class StartSubscribeMessage extends MediaSenseMessage
         stale_level = _stalelevel;
     }
 
-}
+    @Override
+    public Priority getPriority()
+    {
+        return Priority.CONTROL;
+    }
 
+    @Override
+    public boolean isIdempotent()
+    {
+        return true;
+    }
+}
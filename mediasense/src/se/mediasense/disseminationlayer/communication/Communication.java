@@ -18,6 +18,9 @@
 
 package se.mediasense.disseminationlayer.communication;
 
+import java.net.InetSocketAddress;
+import java.util.List;
+
 import se.mediasense.messages.MediaSenseMessage;
 
 public abstract class Communication {
@@ -60,6 +63,13 @@ public abstract class Communication {
         public abstract void init(String bootstrap, int bootport, int localport);
 
 
+        /**
+         * Initializes the communication layer through the first of several
+         * bootstrap nodes which answers
+         */
+        public abstract void init(List<InetSocketAddress> bootstraps, int localport);
+
+
         /**
          * Sends a message to another mediasense node, does not send messages
          * for maintaining the underlaying overlay
@@ -67,7 +77,22 @@ public abstract class Communication {
          * @throws DestinationNotReachableException Throws an exception if the
          * message cannot be delivered.
          */
-	public abstract void sendMessage(MediaSenseMessage _msg);
+	public abstract void sendMessage(MediaSenseMessage _msg) throws DestinationNotReachableException;
+
+
+        /**
+         * Sends a message to another mediasense node over the given transport,
+         * e.g. {@link #UDP} for messages which tolerate loss. Implementations
+         * without that transport send the message as usual.
+         * @param _msg The message to send
+         * @param transport One of the transport constants
+         * @throws DestinationNotReachableException Throws an exception if the
+         * message cannot be delivered.
+         */
+	public void sendMessage(MediaSenseMessage _msg, int transport) throws DestinationNotReachableException
+	{
+		sendMessage(_msg);
+	}
 
 		
         /**
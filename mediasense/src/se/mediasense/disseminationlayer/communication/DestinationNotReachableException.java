@@ -22,7 +22,9 @@ package se.mediasense.disseminationlayer.communication;
 
 @SuppressWarnings("serial")
 public class DestinationNotReachableException extends Exception {
+	private static final long serialVersionUID = -2282025257774490914L;
 	protected String errorMsg = "DestinationNotReachableException";
+	private boolean down = false;
 	
 	public DestinationNotReachableException() {
 		super();
@@ -32,6 +34,23 @@ public class DestinationNotReachableException extends Exception {
 		errorMsg = _errorMsg;
 	}
 
+	/**
+	 * @param _down true if the destination has failed repeatedly and is
+	 * considered down, rather than having missed this one message
+	 */
+	public DestinationNotReachableException(String _errorMsg, boolean _down) {
+		errorMsg = _errorMsg;
+		down = _down;
+	}
+
+	/**
+	 * Checks whether the destination is considered down, so that state kept
+	 * for it, such as a subscription, can be dropped.
+	 */
+	public boolean isDestinationDown() {
+		return down;
+	}
+
 	@Override
 	public String getMessage() {
 		return errorMsg;
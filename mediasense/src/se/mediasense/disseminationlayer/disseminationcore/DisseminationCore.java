@@ -18,32 +18,35 @@ package se.mediasense.disseminationlayer.disseminationcore;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 
-import se.mediasense.disseminationlayer.communication.Communication;
 import se.mediasense.disseminationlayer.communication.DestinationNotReachableException;
-import se.mediasense.distribution.P2PCommunication;
+import se.mediasense.messages.EncodedValue;
+import se.mediasense.messages.GetMessage;
 import se.mediasense.messages.MediaSenseListener;
 import se.mediasense.messages.MediaSenseMessage;
-import se.mediasense.util.ThreadExecutor;
+import se.mediasense.messages.NotifyMessage;
+import se.mediasense.metrics.FlightEvents;
+import se.mediasense.metrics.MetricsRegistry;
+import se.mediasense.tracing.Span;
+import se.mediasense.tracing.TraceContext;
+import se.mediasense.tracing.Tracer;
+import se.mediasense.util.MediaSenseContext;
 
 
 public class DisseminationCore implements Runnable
 {
-    private Communication communication = P2PCommunication.getSharedInstance();
+    private final MediaSenseContext context;
     public static final String DEFAULT_LISTENER = "default";   
-    private static final DisseminationCore SHARED_INSTANCE = new DisseminationCore();
     private HashMap<String, ArrayList<MediaSenseListener>> listeners = new HashMap<String, ArrayList<MediaSenseListener>>();
     
-    protected DisseminationCore()
+    /**
+     * Creates the dissemination core of a node.
+     */
+    public DisseminationCore(MediaSenseContext _context)
     {
-        
+        context = _context;
     }
     
-    public static DisseminationCore getSharedInstance()
-    {
-        return SHARED_INSTANCE;
-    }
 
     public synchronized void registerListener(String _msgtype, MediaSenseListener _listener)
     {
@@ -65,53 +68,155 @@ public class DisseminationCore implements Runnable
         }
     }
 
-   public synchronized void Dispatch(final MediaSenseMessage _msg) throws DestinationNotReachableException
+   public void Dispatch(final MediaSenseMessage _msg) throws DestinationNotReachableException
     {
-        communication.sendMessage(_msg);
+        context.getCommunication().sendMessage(_msg);
     }    
+
+    /**
+     * Sends a message over the given transport, see
+     * {@link se.mediasense.disseminationlayer.communication.Communication#sendMessage(MediaSenseMessage, int)}.
+     */
+    public void Dispatch(final MediaSenseMessage _msg, int transport) throws DestinationNotReachableException
+    {
+        context.getCommunication().sendMessage(_msg, transport);
+    }
                 
 
-    public synchronized void handleMessage(final MediaSenseMessage _msg)
-    {System.out.println("trying to handle message");
+    /**
+     * Hands a message to the listeners of its type, or else to the default
+     * listeners. Control messages are handled on the control pool of the
+     * executor, apart from data messages.
+     */
+    public void handleMessage(final MediaSenseMessage _msg)
+    {
+        MetricsRegistry.getSharedInstance().counter("message.handled." + _msg.getMsgType()).inc();
+        if (serveFromValueStore(_msg))
+        {
+            return;
+        }
+        boolean handled = submit(listenersOf(_msg.getMsgType()), _msg);
+        if (!handled)
+        {
+            handled = submit(listenersOf(DisseminationCore.DEFAULT_LISTENER), _msg);
+        }
+
+    }
+
+    /**
+     * Returns a copy of the listeners of a message type, since they may
+     * remove themselves while a message is delivered, or null if there are
+     * none. Only the lookup holds the lock, so that a message does not wait
+     * for another to be handed over.
+     */
+    private synchronized ArrayList<MediaSenseListener> listenersOf(String _msgtype)
+    {
+        ArrayList<MediaSenseListener> l = listeners.get(_msgtype);
+        return l == null ? null : new ArrayList<MediaSenseListener>(l);
+    }
+
+    /**
+     * Hands the message to each of the listeners on the node's executor.
+     * @return true if there was at least one listener
+     */
+    private boolean submit(ArrayList<MediaSenseListener> _listeners, final MediaSenseMessage _msg)
+    {
         boolean handled = false;
-        if (listeners.containsKey(_msg.getMsgType()))
+        if (_listeners == null)
         {
-            final Iterator it = listeners.get(_msg.getMsgType()).iterator();
-            while (it.hasNext())
-            {                
-                Runnable r = new Runnable()
-                {                    
-                    public void run()
-                    {
-                        ((MediaSenseListener) it.next()).handleMessage(_msg);
-                    }                    
-                };
-                ThreadExecutor.SharedInstance().submit(r);
-                handled = true;
+            return false;
+        }
+        boolean control = _msg.getPriority() == MediaSenseMessage.Priority.CONTROL;
+        for (final MediaSenseListener l : _listeners)
+        {
+            Runnable r = new Runnable()
+            {
+                public void run()
+                {
+                    deliver(l, _msg);
+                }
+            };
+            context.getExecutor().submit(r, control);
+            handled = true;
+        }
+        return handled;
+    }
+
+    /**
+     * Calls a listener, within a span of the message's trace if it has one.
+     * Messages sent and primitives started by the listener join the trace.
+     */
+    private void deliver(MediaSenseListener _listener, MediaSenseMessage _msg)
+    {
+        Object jfr = FlightEvents.ENABLED ? FlightEvents.begin(FlightEvents.Type.LISTENER_DISPATCH) : null;
+        Tracer tracer = Tracer.getSharedInstance();
+        Span span = tracer.startSpan("handle." + _msg.getMsgType(), _msg.getTraceContext());
+        TraceContext previous = span == null ? null : tracer.setCurrent(span.getContext());
+        try
+        {
+            _listener.handleMessage(_msg);
+        } finally
+        {
+            if (span != null)
+            {
+                tracer.setCurrent(previous);
+                span.setMsgType(_msg.getMsgType()).setHost(context.getHostID()).end();
+            }
+            if (jfr != null)
+            {
+                FlightEvents.commit(jfr, FlightEvents.uciOf(_msg), _msg.getMsgType(), -1);
             }
         }
+    }
 
-        if ((!handled) && (listeners.containsKey(DisseminationCore.DEFAULT_LISTENER)))
+    /**
+     * Answers a GetMessage for a published UCI with the pre-serialized value
+     * from the {@link ValueStore}. SetMessages are left to the listeners, the
+     * owner publishes the new value once it has accepted it.
+     * @return true if the message has been answered and must not be delivered
+     * to the listeners
+     */
+    private boolean serveFromValueStore(final MediaSenseMessage _msg)
+    {
+        ValueStore store = context.getValueStore();
+        if (_msg instanceof GetMessage)
         {
-            final Iterator it = listeners.get(DisseminationCore.DEFAULT_LISTENER).iterator();
-            while (it.hasNext())
+            final GetMessage get = (GetMessage) _msg;
+            if (get.getUCI() == null)
             {
-                Runnable r = new Runnable()
+                return false;
+            }
+            final EncodedValue value = store.get(get.getUCI().getUciAsString());
+            if (value == null)
+            {
+                return false;
+            }
+            Runnable r = new Runnable()
+            {
+                public void run()
+                {
+                    Span span = Tracer.getSharedInstance().startSpan("valuestore.get", get.getTraceContext());
+                    try
+                    {
+                        NotifyMessage notify = new NotifyMessage(get.getUCI(), value, get.getSource(), context.getLocalHost(), get.getMsgID());
+                        notify.setTraceContext(span == null ? null : span.getContext());
+                        Dispatch(notify);
+                    } catch (DestinationNotReachableException e)
+                    {
+                        e.printStackTrace();
+                    } finally
                     {
-                        public void run()
+                        if (span != null)
                         {
-                            ((MediaSenseListener) it.next()).handleMessage(_msg);
+                            span.setUCI(get.getUCI().getUciAsString()).setHost(context.getHostID()).end();
                         }
-                    };                
-                ThreadExecutor.SharedInstance().submit(r);
-                handled = true;
-            }
-
-        } else if (!handled)
-        {
-
+                    }
+                }
+            };
+            context.getExecutor().submit(r);
+            return true;
         }
-
+        return false;
     }
 
     public void run()
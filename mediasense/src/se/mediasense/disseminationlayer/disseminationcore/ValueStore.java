@@ -0,0 +1,78 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.disseminationlayer.disseminationcore;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import se.mediasense.messages.EncodedValue;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * Node-local store of the current values of the UCIs owned by this node.
+ * <p>Values are serialized once when they are published and kept off-heap as
+ * {@link se.mediasense.messages.EncodedValue}s. The
+ * {@link DisseminationCore} answers GetMessages for stored UCIs directly from
+ * the store, without calling any listener or serializing the value again.
+ */
+public final class ValueStore
+{
+    private final ConcurrentHashMap<String, EncodedValue> values = new ConcurrentHashMap<String, EncodedValue>();
+
+    public ValueStore()
+    {
+    }
+
+
+    /**
+     * Encodes and stores the current value of an UCI.
+     * @param uci the UCI
+     * @param value the new value
+     * @return the encoded value
+     * @throws IOException if the value cannot be serialized
+     */
+    public EncodedValue put(String uci, Serializable value) throws IOException
+    {
+        EncodedValue encoded = EncodedValue.encode(value);
+        values.put(uci, encoded);
+        return encoded;
+    }
+
+    /**
+     * Returns the encoded value of an UCI, or null if it is not stored.
+     */
+    public EncodedValue get(String uci)
+    {
+        return values.get(uci);
+    }
+
+    public boolean contains(String uci)
+    {
+        return values.containsKey(uci);
+    }
+
+    public void remove(String uci)
+    {
+        values.remove(uci);
+    }
+
+    public void clear()
+    {
+        values.clear();
+    }
+}
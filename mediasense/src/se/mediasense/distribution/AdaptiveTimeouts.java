@@ -0,0 +1,409 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.BaseFutureListener;
+import net.tomp2p.futures.FutureDHT;
+import net.tomp2p.p2p.RequestP2PConfiguration;
+import net.tomp2p.peers.Number160;
+import se.mediasense.metrics.Counter;
+import se.mediasense.metrics.Histogram;
+import se.mediasense.metrics.MetricsRegistry;
+import se.mediasense.util.Configuration;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * Timeouts of the overlay operations of a node, derived from their observed
+ * latency instead of fixed.
+ * <p>The latency of every completed get, put and remove is recorded per
+ * operation in the <i>dht.&lt;operation&gt;.latency</i> histogram, as is the
+ * time the owners of UCIs take to answer a GET, as <i>notify</i>. An
+ * operation which times out is recorded at its timeout, and a get when it
+ * completes late, so that a timeout which turns out too short grows. Once an
+ * operation has {@link #MIN_SAMPLES} samples its timeout is
+ * <i>adaptivetimeoutfactor</i> times its p99, bounded by
+ * <i>adaptivetimeoutminmillis</i> and <i>adaptivetimeoutmaxmillis</i>; before
+ * that it is the upper bound. The percentiles are recomputed every
+ * {@link #RECOMPUTE_EVERY} samples.
+ * <p>When <i>hedgedlookups</i> is true, the gets of the GET and resolve
+ * primitives are hedged: if the first get has not completed after the p95 of
+ * the get latency, a second one is issued which asks several replicas of the
+ * key in parallel, and the first successful answer is used. The hedges and
+ * the hedges which won are counted as <i>dht.get.hedged</i> and
+ * <i>dht.get.hedgewins</i>.
+ */
+public final class AdaptiveTimeouts
+{
+	public static final int DEFAULT_FACTOR = 3;
+	public static final int DEFAULT_MIN_MILLIS = 200;
+	public static final int DEFAULT_MAX_MILLIS = 10000;
+	public static final int MIN_SAMPLES = 20;
+	public static final int RECOMPUTE_EVERY = 32;
+	private final MediaSenseContext context;
+	private final String metricsprefix;
+	private final ConcurrentHashMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+	private Timer hedger = null;
+
+	public AdaptiveTimeouts(MediaSenseContext _context)
+	{
+		context = _context;
+		metricsprefix = context.getName() == null ? "dht." : "dht." + context.getName() + ".";
+	}
+
+
+	/**
+	 * Returns the current timeout of an operation in milliseconds.
+	 * @param op the operation, e.g. get, put or remove
+	 */
+	public long getTimeout(String op)
+	{
+		Configuration config = context.getConfiguration();
+		long max = config.getIntProperty("adaptivetimeoutmaxmillis", DEFAULT_MAX_MILLIS);
+		Operation o = operation(op);
+		if (o.samples.get() < MIN_SAMPLES)
+		{
+			return max;
+		}
+		long min = config.getIntProperty("adaptivetimeoutminmillis", DEFAULT_MIN_MILLIS);
+		long timeout = o.p99 * config.getIntProperty("adaptivetimeoutfactor", DEFAULT_FACTOR) / 1000;
+		return Math.max(min, Math.min(max, timeout));
+	}
+
+	/**
+	 * Returns how long a get waits before it is hedged, the p95 of the get
+	 * latency, or the timeout if there are too few samples yet.
+	 */
+	public long getHedgeDelay()
+	{
+		Operation o = operation("get");
+		if (o.samples.get() < MIN_SAMPLES)
+		{
+			return getTimeout("get");
+		}
+		return Math.max(1, o.p95 / 1000);
+	}
+
+	/**
+	 * Waits for an overlay operation for at most its current timeout, and
+	 * records its latency, or the timeout if it did not complete.
+	 * @param op the operation, e.g. get, put or remove
+	 * @param future the operation
+	 * @throws IOException if it did not complete in time
+	 */
+	public void await(String op, BaseFuture future) throws IOException
+	{
+		long start = System.nanoTime();
+		long timeout = getTimeout(op);
+		if (!future.awaitUninterruptibly(timeout))
+		{
+			recordTimeout(op, timeout);
+			throw new IOException(op + " timed out after " + timeout + " ms");
+		}
+		record(op, start);
+	}
+
+	/**
+	 * Records the latency of an overlay operation when it completes, however
+	 * late, for operations waited for with {@link #awaitAll(String, List)}.
+	 * @param op the operation, e.g. get, put or remove
+	 * @param future the operation, just started
+	 * @return the future
+	 */
+	public <F extends BaseFuture> F track(final String op, F future)
+	{
+		final long start = System.nanoTime();
+		future.addListener(new BaseFutureListener<BaseFuture>()
+		{
+			@Override
+			public void operationComplete(BaseFuture f) throws Exception
+			{
+				record(op, start);
+			}
+
+			@Override
+			public void exceptionCaught(Throwable t) throws Exception
+			{
+				t.printStackTrace();
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Waits for tracked overlay operations issued together for at most the
+	 * current timeout of the operation, in total. Those which do not complete
+	 * in time go on, and are recorded when they do.
+	 * @param op the operation, e.g. get, put or remove
+	 * @param futures the operations, see {@link #track(String, BaseFuture)}
+	 * @return the number of operations which did not complete in time
+	 */
+	public int awaitAll(String op, List<? extends BaseFuture> futures)
+	{
+		long deadline = System.currentTimeMillis() + getTimeout(op);
+		int late = 0;
+		for (BaseFuture f : futures)
+		{
+			if (!f.awaitUninterruptibly(Math.max(1, deadline - System.currentTimeMillis())))
+			{
+				late++;
+			}
+		}
+		if (late > 0)
+		{
+			MetricsRegistry.getSharedInstance().counter(metricsprefix + op + ".timeouts").add(late);
+		}
+		return late;
+	}
+
+	/**
+	 * Gets a key, hedged if <i>hedgedlookups</i> is set, and waits for at most
+	 * the current get timeout.
+	 * @return the completed get
+	 * @throws IOException if no get completed in time
+	 */
+	public FutureDHT get(Number160 key) throws IOException
+	{
+		HedgedGet h = new HedgedGet(key, null);
+		long timeout = getTimeout("get");
+		h.start();
+		if (!h.await(timeout))
+		{
+			MetricsRegistry.getSharedInstance().counter(metricsprefix + "get.timeouts").inc();
+			throw new IOException("get timed out after " + timeout + " ms");
+		}
+		return h.winner;
+	}
+
+	/**
+	 * Gets a key, hedged if <i>hedgedlookups</i> is set. The listener is
+	 * called once, with the first get which succeeds, or the last which fails.
+	 * @return the first get
+	 */
+	public FutureDHT get(Number160 key, BaseFutureListener<FutureDHT> listener)
+	{
+		HedgedGet h = new HedgedGet(key, listener);
+		return h.start();
+	}
+
+	/**
+	 * Stops the hedging timer.
+	 */
+	public synchronized void shutdown()
+	{
+		if (hedger != null)
+		{
+			hedger.cancel();
+			hedger = null;
+		}
+	}
+
+	/**
+	 * Records the latency of an operation which completed.
+	 * @param op the operation
+	 * @param start when it started, in {@link System#nanoTime()} time
+	 */
+	public void record(String op, long start)
+	{
+		operation(op).record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Records an operation which has not completed within the given timeout,
+	 * as one which took that long.
+	 */
+	public void recordTimeout(String op, long timeout)
+	{
+		operation(op).record(TimeUnit.MILLISECONDS.toNanos(timeout));
+		MetricsRegistry.getSharedInstance().counter(metricsprefix + op + ".timeouts").inc();
+	}
+
+	private Operation operation(String op)
+	{
+		Operation o = operations.get(op);
+		if (o == null)
+		{
+			Operation created = new Operation(MetricsRegistry.getSharedInstance().histogram(metricsprefix + op + ".latency"));
+			o = operations.putIfAbsent(op, created);
+			if (o == null)
+			{
+				o = created;
+			}
+		}
+		return o;
+	}
+
+	private boolean isHedging()
+	{
+		return "true".equals(context.getConfiguration().getProperty("hedgedlookups"));
+	}
+
+	private synchronized Timer hedger()
+	{
+		if (hedger == null)
+		{
+			hedger = new Timer(context.getName() == null ? "mediasense-hedge" : "mediasense-hedge-" + context.getName(), true);
+		}
+		return hedger;
+	}
+
+	/**
+	 * The latency of one operation, with its percentiles cached in
+	 * microseconds.
+	 */
+	private static final class Operation
+	{
+		private final Histogram latency;
+		private final AtomicLong samples = new AtomicLong();
+		private volatile long p95 = 0;
+		private volatile long p99 = 0;
+
+		Operation(Histogram _latency)
+		{
+			latency = _latency;
+		}
+
+		void record(long nanos)
+		{
+			latency.record(nanos / 1000);
+			long n = samples.incrementAndGet();
+			if (n == MIN_SAMPLES || n % RECOMPUTE_EVERY == 0)
+			{
+				p95 = latency.getPercentile(95);
+				p99 = latency.getPercentile(99);
+			}
+		}
+	}
+
+	/**
+	 * A get which is repeated against several replicas when the first
+	 * attempt is slow.
+	 */
+	private final class HedgedGet extends TimerTask implements BaseFutureListener<FutureDHT>
+	{
+		private final Number160 key;
+		private final BaseFutureListener<FutureDHT> listener;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final long start = System.nanoTime();
+		private FutureDHT hedge = null;
+		private volatile FutureDHT winner = null;
+		private int outstanding = 1;
+
+		HedgedGet(Number160 _key, BaseFutureListener<FutureDHT> _listener)
+		{
+			key = _key;
+			listener = _listener;
+		}
+
+		FutureDHT start()
+		{
+			FutureDHT f = context.getPeer().get(key).start();
+			if (isHedging())
+			{
+				hedger().schedule(this, getHedgeDelay());
+			}
+			f.addListener(this);
+			return f;
+		}
+
+		boolean await(long timeout)
+		{
+			try
+			{
+				return done.await(timeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		/**
+		 * Issues the hedge, which asks as many replicas as the replication
+		 * factor at once.
+		 */
+		@Override
+		public void run()
+		{
+			FutureDHT f;
+			synchronized (this)
+			{
+				if (winner != null)
+				{
+					return;
+				}
+				int parallel = Math.max(1, context.getConfiguration().getReplicationFactor() - 1);
+				f = context.getPeer().get(key).setRequestP2PConfiguration(new RequestP2PConfiguration(1, 10, parallel)).start();
+				hedge = f;
+				outstanding++;
+			}
+			MetricsRegistry.getSharedInstance().counter(metricsprefix + "get.hedged").inc();
+			f.addListener(this);
+		}
+
+		@Override
+		public void operationComplete(FutureDHT f) throws Exception
+		{
+			synchronized (this)
+			{
+				if (winner != null)
+				{
+					return;
+				}
+				outstanding--;
+				if (!f.isSuccess() && outstanding > 0)
+				{
+					return;
+				}
+				winner = f;
+			}
+			cancel();
+			record("get", start);
+			if (f == hedge)
+			{
+				MetricsRegistry.getSharedInstance().counter(metricsprefix + "get.hedgewins").inc();
+			}
+			done.countDown();
+			if (listener != null)
+			{
+				listener.operationComplete(f);
+			}
+		}
+
+		@Override
+		public void exceptionCaught(Throwable t) throws Exception
+		{
+			if (listener != null)
+			{
+				listener.exceptionCaught(t);
+			}
+			else
+			{
+				t.printStackTrace();
+			}
+		}
+	}
+}
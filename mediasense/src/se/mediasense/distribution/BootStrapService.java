@@ -0,0 +1,260 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import se.mediasense.metrics.Counter;
+import se.mediasense.metrics.Gauge;
+import se.mediasense.metrics.MetricsRegistry;
+import se.mediasense.util.Configuration;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * Answers the {@link JoinRequest}s sent to a bootstrap node.
+ * <p>Every joiner gets the same precomputed sample of up to
+ * <i>bootstrapsamplesize</i> healthy peers, so it can fill its routing table
+ * without querying the bootstrap node again. The sample is rebuilt from the
+ * peer map every <i>bootstrapsampleseconds</i>. Each source address is
+ * answered at most <i>bootstrapjoinspersecond</i> times a second, and all of
+ * them together at most <i>bootstrapmaxjoinspersecond</i> times a second. The
+ * overlay serializes the replies on its own threads after they are answered,
+ * so the handshakes in progress are bounded by the rate at which they are
+ * admitted rather than by a count taken here. Requests over either limit are
+ * answered with null, and the joiner carries on with the bootstrap node as
+ * its only contact.
+ * <p>The metrics are <i>bootstrap.join.count</i>, <i>.ratelimited</i>, the
+ * joins per second over the last sample period as the <i>.rate</i> gauge and
+ * the size of the sample as <i>bootstrap.sample</i>.
+ */
+public final class BootStrapService implements Runnable
+{
+	public static final int DEFAULT_MAX_JOINS_PER_SECOND = 64;
+	public static final int DEFAULT_JOINS_PER_SECOND = 5;
+	public static final int DEFAULT_SAMPLE_SIZE = 32;
+	public static final int DEFAULT_SAMPLE_SECONDS = 5;
+	private static final long IDLE_SOURCE_MILLIS = 60000;
+	private final MediaSenseContext context;
+	private final Peer peer;
+	private final int maxjoinspersecond;
+	private final int joinspersecond;
+	private final int samplesize;
+	private final long samplemillis;
+	private final ConcurrentHashMap<InetAddress, Source> sources = new ConcurrentHashMap<InetAddress, Source>();
+	private final Source all;
+	private final Counter joins;
+	private final Counter ratelimited;
+	private volatile ArrayList<PeerAddress> sample = new ArrayList<PeerAddress>();
+	private volatile long rate = 0;
+	private Thread sampler = null;
+	private volatile boolean running = false;
+
+	public BootStrapService(MediaSenseContext _context, Peer _peer)
+	{
+		context = _context;
+		peer = _peer;
+		Configuration config = context.getConfiguration();
+		maxjoinspersecond = config.getIntProperty("bootstrapmaxjoinspersecond", DEFAULT_MAX_JOINS_PER_SECOND);
+		joinspersecond = config.getIntProperty("bootstrapjoinspersecond", DEFAULT_JOINS_PER_SECOND);
+		all = new Source(maxjoinspersecond);
+		samplesize = config.getIntProperty("bootstrapsamplesize", DEFAULT_SAMPLE_SIZE);
+		samplemillis = config.getIntProperty("bootstrapsampleseconds", DEFAULT_SAMPLE_SECONDS) * 1000L;
+		MetricsRegistry metrics = MetricsRegistry.getSharedInstance();
+		joins = metrics.counter("bootstrap.join.count");
+		ratelimited = metrics.counter("bootstrap.join.ratelimited");
+		metrics.gauge("bootstrap.join.rate", new Gauge()
+		{
+			public long getValue()
+			{
+				return rate;
+			}
+		});
+		metrics.gauge("bootstrap.sample", new Gauge()
+		{
+			public long getValue()
+			{
+				return sample.size();
+			}
+		});
+	}
+
+
+	/**
+	 * Builds the first sample and starts rebuilding it periodically.
+	 */
+	public synchronized void start()
+	{
+		if (running)
+		{
+			return;
+		}
+		resample();
+		running = true;
+		sampler = new Thread(this, context.getName() == null ? "mediasense-bootstrap" : "mediasense-bootstrap-" + context.getName());
+		sampler.setDaemon(true);
+		sampler.start();
+	}
+
+	public synchronized void stop()
+	{
+		running = false;
+		if (sampler != null)
+		{
+			sampler.interrupt();
+			sampler = null;
+		}
+	}
+
+	/**
+	 * Answers a join request.
+	 * @param sender the joining peer
+	 * @return the current sample of healthy peers, shared and not to be
+	 * modified, or null if the request is over a limit
+	 */
+	public List<PeerAddress> handshake(PeerAddress sender)
+	{
+		if (!admit(sender.getInetAddress()) || !all.take(maxjoinspersecond))
+		{
+			ratelimited.inc();
+			return null;
+		}
+		joins.inc();
+		return sample;
+	}
+
+	/**
+	 * Takes a token from the bucket of a source address, which holds at most
+	 * one second worth of joins.
+	 */
+	private boolean admit(InetAddress address)
+	{
+		Source source = sources.get(address);
+		if (source == null)
+		{
+			Source created = new Source(joinspersecond);
+			source = sources.putIfAbsent(address, created);
+			if (source == null)
+			{
+				source = created;
+			}
+		}
+		return source.take(joinspersecond);
+	}
+
+	@Override
+	public void run()
+	{
+		long lastjoins = joins.get();
+		long last = System.currentTimeMillis();
+		while (running)
+		{
+			try
+			{
+				Thread.sleep(samplemillis);
+			} catch (InterruptedException e)
+			{
+				continue;
+			}
+			long now = System.currentTimeMillis();
+			long count = joins.get();
+			rate = (count - lastjoins) * 1000 / Math.max(1, now - last);
+			lastjoins = count;
+			last = now;
+			try
+			{
+				resample();
+				expireSources(now);
+			} catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Replaces the sample with a random choice of the peers in the peer map
+	 * which are not marked offline.
+	 */
+	private void resample()
+	{
+		PeerMap map = peer.getPeerBean().getPeerMap();
+		ArrayList<PeerAddress> healthy = new ArrayList<PeerAddress>();
+		for (PeerAddress p : map.getAll())
+		{
+			if (!map.isPeerRemovedTemporarly(p))
+			{
+				healthy.add(p);
+			}
+		}
+		Collections.shuffle(healthy);
+		sample = new ArrayList<PeerAddress>(healthy.subList(0, Math.min(samplesize, healthy.size())));
+	}
+
+	private void expireSources(long now)
+	{
+		Iterator<Source> it = sources.values().iterator();
+		while (it.hasNext())
+		{
+			if (now - it.next().getLastSeen() > IDLE_SOURCE_MILLIS)
+			{
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Token bucket of one source address, or of all of them.
+	 */
+	private static final class Source
+	{
+		private double tokens;
+		private long refilled = System.nanoTime();
+		private volatile long lastseen = System.currentTimeMillis();
+
+		Source(int capacity)
+		{
+			tokens = capacity;
+		}
+
+		synchronized boolean take(int persecond)
+		{
+			long now = System.nanoTime();
+			tokens = Math.min(persecond, tokens + (now - refilled) * persecond / 1e9);
+			refilled = now;
+			lastseen = System.currentTimeMillis();
+			if (tokens < 1)
+			{
+				return false;
+			}
+			tokens--;
+			return true;
+		}
+
+		long getLastSeen()
+		{
+			return lastseen;
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.tomp2p.peers.PeerAddress;
+import se.mediasense.metrics.Counter;
+import se.mediasense.metrics.Gauge;
+import se.mediasense.metrics.MetricsRegistry;
+import se.mediasense.util.Configuration;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * Per destination circuit breakers, so that a dead peer fails fast instead of
+ * tying up a thread for a send timeout per message.
+ * <p>After <i>breakerfailures</i> failed sends in a row the breaker of a
+ * destination opens, and messages to it fail at once. After
+ * <i>breakeropenmillis</i> it is half-open: one message is let through, and
+ * the breaker closes if it is delivered and opens again if not.
+ * <p>Per destination the state is the <i>breaker.&lt;peer&gt;.state</i>
+ * gauge, 0 closed, 1 half-open and 2 open. The number of breakers open and
+ * half-open are the <i>breaker.open</i> and <i>breaker.halfopen</i> gauges,
+ * the times a breaker opened and the messages failed fast the
+ * <i>breaker.opened</i> and <i>breaker.rejected</i> counters.
+ */
+public final class CircuitBreakers
+{
+	public static final int DEFAULT_FAILURES = 5;
+	public static final int DEFAULT_OPEN_MILLIS = 5000;
+	private static final int CLOSED = 0;
+	private static final int HALF_OPEN = 1;
+	private static final int OPEN = 2;
+	private final MediaSenseContext context;
+	private final String metricsprefix;
+	private final Counter opened;
+	private final Counter rejected;
+	private final ConcurrentHashMap<PeerAddress, Breaker> breakers = new ConcurrentHashMap<PeerAddress, Breaker>();
+
+	public CircuitBreakers(MediaSenseContext _context)
+	{
+		context = _context;
+		metricsprefix = context.getName() == null ? "breaker." : "breaker." + context.getName() + ".";
+		MetricsRegistry metrics = MetricsRegistry.getSharedInstance();
+		opened = metrics.counter(metricsprefix + "opened");
+		rejected = metrics.counter(metricsprefix + "rejected");
+		metrics.gauge(metricsprefix + "open", new Gauge()
+		{
+			public long getValue()
+			{
+				return count(OPEN);
+			}
+		});
+		metrics.gauge(metricsprefix + "halfopen", new Gauge()
+		{
+			public long getValue()
+			{
+				return count(HALF_OPEN);
+			}
+		});
+	}
+
+
+	/**
+	 * Returns the breaker of a destination.
+	 */
+	Breaker breaker(PeerAddress destination)
+	{
+		Breaker b = breakers.get(destination);
+		if (b == null)
+		{
+			Breaker created = new Breaker(destination);
+			b = breakers.putIfAbsent(destination, created);
+			if (b == null)
+			{
+				b = created;
+				b.register();
+			}
+		}
+		return b;
+	}
+
+	private long count(int state)
+	{
+		long n = 0;
+		for (Breaker b : breakers.values())
+		{
+			if (b.getState() == state)
+			{
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * The breaker of one destination.
+	 */
+	final class Breaker
+	{
+		private final PeerAddress destination;
+		private int state = CLOSED;
+		private int failures = 0;
+		private long openuntil = 0;
+		private boolean trial = false;
+
+		Breaker(PeerAddress _destination)
+		{
+			destination = _destination;
+		}
+
+		void register()
+		{
+			String peer = metricsprefix + destination.getInetAddress().getHostAddress() + ":" + destination.portTCP();
+			MetricsRegistry.getSharedInstance().gauge(peer + ".state", new Gauge()
+			{
+				public long getValue()
+				{
+					return getState();
+				}
+			});
+		}
+
+		synchronized int getState()
+		{
+			return state;
+		}
+
+		/**
+		 * Checks whether a message may be sent now. An open breaker which
+		 * has been open long enough lets one message through.
+		 * @return false if the message is to fail fast
+		 */
+		synchronized boolean allow()
+		{
+			if (state == OPEN && System.currentTimeMillis() >= openuntil)
+			{
+				state = HALF_OPEN;
+				trial = false;
+			}
+			if (state == CLOSED || (state == HALF_OPEN && !trial))
+			{
+				trial = state == HALF_OPEN;
+				return true;
+			}
+			rejected.inc();
+			return false;
+		}
+
+		/**
+		 * Checks whether the destination is considered down.
+		 */
+		synchronized boolean isOpen()
+		{
+			return state == OPEN;
+		}
+
+		synchronized void success()
+		{
+			state = CLOSED;
+			failures = 0;
+			trial = false;
+		}
+
+		synchronized void failure()
+		{
+			failures++;
+			Configuration config = context.getConfiguration();
+			if (state == HALF_OPEN || (state == CLOSED && failures >= config.getIntProperty("breakerfailures", DEFAULT_FAILURES)))
+			{
+				state = OPEN;
+				trial = false;
+				openuntil = System.currentTimeMillis() + config.getIntProperty("breakeropenmillis", DEFAULT_OPEN_MILLIS);
+				opened.inc();
+			}
+		}
+	}
+}
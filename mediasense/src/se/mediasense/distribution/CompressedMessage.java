@@ -0,0 +1,66 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.io.Serializable;
+
+/**
+ * A message sent compressed, see {@link Compression}. The receiving node
+ * decompresses it and handles the message within.
+ */
+public final class CompressedMessage implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	private final String codec;
+	private final String classname;
+	private final int length;
+	private final byte[] data;
+
+	CompressedMessage(String _codec, String _classname, int _length, byte[] _data)
+	{
+		codec = _codec;
+		classname = _classname;
+		length = _length;
+		data = _data;
+	}
+
+	public String getCodec()
+	{
+		return codec;
+	}
+
+	/**
+	 * Returns the class of the message, which selects the dictionary.
+	 */
+	public String getClassName()
+	{
+		return classname;
+	}
+
+	/**
+	 * Returns the length of the encoded message before compression.
+	 */
+	public int getLength()
+	{
+		return length;
+	}
+
+	byte[] getData()
+	{
+		return data;
+	}
+}
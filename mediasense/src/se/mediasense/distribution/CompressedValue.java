@@ -0,0 +1,104 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import se.mediasense.util.Configuration;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * A value stored compressed in the overlay, by the simple persistence
+ * primitives. Readers call {@link #getValue()}. Values are compressed without
+ * a dictionary, since the node which reads them may run another version.
+ */
+public final class CompressedValue implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	private final String codec;
+	private final String classname;
+	private final int length;
+	private final byte[] data;
+
+	private CompressedValue(String _codec, String _classname, int _length, byte[] _data)
+	{
+		codec = _codec;
+		classname = _classname;
+		length = _length;
+		data = _data;
+	}
+
+	/**
+	 * Compresses a value with the codec of the node, if its encoded form has
+	 * at least <i>compressionthreshold</i> bytes and compression pays off.
+	 * @return the compressed value, or the value itself
+	 */
+	public static Serializable compress(Serializable value, MediaSenseContext context)
+	{
+		Configuration config = context.getConfiguration();
+		String name = config.getCompression();
+		PayloadCodec codec = Compression.codec(name == null ? DeflateCodec.NAME : name);
+		if (value == null || codec == null)
+		{
+			return value;
+		}
+		try
+		{
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(buffer);
+			out.writeObject(value);
+			out.close();
+			byte[] encoded = buffer.toByteArray();
+			if (encoded.length < config.getCompressionThreshold())
+			{
+				return value;
+			}
+			byte[] compressed = codec.compress(encoded, null);
+			if (compressed.length >= encoded.length)
+			{
+				return value;
+			}
+			return new CompressedValue(codec.getName(), value.getClass().getName(), encoded.length, compressed);
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			return value;
+		}
+	}
+
+	/**
+	 * Decompresses the value.
+	 * @return the value, or null if it cannot be decoded
+	 */
+	public Serializable getValue()
+	{
+		try
+		{
+			byte[] encoded = Compression.decompress(codec, classname, Serializable.class, data, length, false);
+			return (Serializable) new ObjectInputStream(new ByteArrayInputStream(encoded)).readObject();
+		} catch (Exception e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+}
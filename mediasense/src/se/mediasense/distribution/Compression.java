@@ -0,0 +1,330 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import se.mediasense.disseminationlayer.communication.MediaSenseHost;
+import se.mediasense.messages.DeleteMessage;
+import se.mediasense.messages.DuplicateUCICheckMessage;
+import se.mediasense.messages.DuplicateUCICheckResponseMessage;
+import se.mediasense.messages.EncodedValue;
+import se.mediasense.messages.GetMessage;
+import se.mediasense.messages.MediaSenseMessage;
+import se.mediasense.messages.NotifyMessage;
+import se.mediasense.messages.RegisterResponseMessage;
+import se.mediasense.messages.ResolveMessage;
+import se.mediasense.messages.ResolveResponseMessage;
+import se.mediasense.messages.SetMessage;
+import se.mediasense.messages.SetResponseMessage;
+import se.mediasense.metrics.Counter;
+import se.mediasense.metrics.Histogram;
+import se.mediasense.metrics.MetricsRegistry;
+import se.mediasense.tracing.TraceContext;
+import se.mediasense.util.Configuration;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * Compression of the messages a node sends, negotiated per peer.
+ * <p>A message whose encoded form has at least <i>compressionthreshold</i>
+ * bytes is compressed with the codec named by <i>compression</i> (deflate by
+ * default, none disables it), if the destination supports it, and sent as a
+ * {@link CompressedMessage}. Nodes advertise the codecs they support in their
+ * {@link P2PMediaSenseHost}, and the codecs of the peers which sent messages
+ * to this node are remembered, so that owners resolved from the overlay,
+ * whose hosts carry no codecs, benefit too. Codecs are pluggable through
+ * {@link #register(PayloadCodec)}.
+ * <p>Java serialization repeats the class descriptors of a message in every
+ * message, so each message class is compressed against a dictionary made of
+ * the descriptors of the classes all messages carry, followed by its own for
+ * the messages of the platform. The dictionary is derived from the classes
+ * alone, so both sides build the same one once per class without exchanging
+ * it, as long as they run the same version of those classes: codecs are
+ * advertised with a checksum of the dictionaries, and only used with peers
+ * which advertise the same. Values stored in the overlay outlive the version
+ * of the node which wrote them, so they are compressed without a dictionary.
+ * <p>The bytes before compression and the bytes saved are counted as
+ * <i>compression.bytes</i> and <i>compression.saved</i>, and the time spent,
+ * in microseconds, in the <i>compression.compress.latency</i> and
+ * <i>compression.decompress.latency</i> histograms.
+ */
+public final class Compression
+{
+	public static final int DEFAULT_THRESHOLD = Configuration.DEFAULT_COMPRESSION_THRESHOLD;
+	/**
+	 * The most bytes a payload is decompressed to, whatever its sender claims.
+	 */
+	public static final int MAX_LENGTH = 1 << 24;
+	private static final int MAX_PEERS = 4096;
+	private static final ConcurrentHashMap<String, PayloadCodec> CODECS = new ConcurrentHashMap<String, PayloadCodec>();
+	private static final ConcurrentHashMap<String, byte[]> DICTIONARIES = new ConcurrentHashMap<String, byte[]>();
+	private static final Class<?>[] COMMON = { PeerAddress.class, P2PMediaSenseHost.class, UCI.class, TraceContext.class, EncodedValue.class };
+	private static final Class<?>[] MESSAGES = { DeleteMessage.class, DuplicateUCICheckMessage.class, DuplicateUCICheckResponseMessage.class,
+		GetMessage.class, NotifyMessage.class, RegisterResponseMessage.class, ResolveMessage.class, ResolveResponseMessage.class,
+		SetMessage.class, SetResponseMessage.class };
+	private static volatile String version = null;
+	private static final Histogram DECOMPRESS = MetricsRegistry.getSharedInstance().histogram("compression.decompress.latency");
+	private final MediaSenseContext context;
+	private final ConcurrentHashMap<Number160, String[]> peercodecs = new ConcurrentHashMap<Number160, String[]>();
+	private final Counter bytes;
+	private final Counter saved;
+	private final Histogram compress;
+
+	static
+	{
+		register(new DeflateCodec());
+	}
+
+	public Compression(MediaSenseContext _context)
+	{
+		context = _context;
+		MetricsRegistry metrics = MetricsRegistry.getSharedInstance();
+		bytes = metrics.counter("compression.bytes");
+		saved = metrics.counter("compression.saved");
+		compress = metrics.histogram("compression.compress.latency");
+	}
+
+
+	/**
+	 * Makes a codec available to all nodes of this JVM. Nodes started
+	 * afterwards advertise it.
+	 */
+	public static void register(PayloadCodec codec)
+	{
+		CODECS.put(codec.getName(), codec);
+	}
+
+	/**
+	 * Returns the names of the codecs this JVM supports.
+	 */
+	public static String[] getCodecNames()
+	{
+		String[] names = CODECS.keySet().toArray(new String[0]);
+		Arrays.sort(names);
+		return names;
+	}
+
+	/**
+	 * Returns the codecs this JVM supports as advertised to other nodes, each
+	 * name followed by '@' and the checksum of the dictionaries.
+	 */
+	public static String[] getAdvertisedCodecs()
+	{
+		String[] names = getCodecNames();
+		String v = getDictionaryVersion();
+		for (int i = 0; i < names.length; i++)
+		{
+			names[i] = names[i] + "@" + v;
+		}
+		return names;
+	}
+
+	/**
+	 * Returns a registered codec, or null if there is none of that name.
+	 */
+	static PayloadCodec codec(String name)
+	{
+		return CODECS.get(name);
+	}
+
+	/**
+	 * Remembers the codecs a host advertises.
+	 */
+	void learn(MediaSenseHost host)
+	{
+		if (!(host instanceof P2PMediaSenseHost))
+		{
+			return;
+		}
+		P2PMediaSenseHost p2phost = (P2PMediaSenseHost) host;
+		if (p2phost.getCodecs() == null || p2phost.getAddress() == null)
+		{
+			return;
+		}
+		if (peercodecs.size() >= MAX_PEERS)
+		{
+			peercodecs.clear();
+		}
+		peercodecs.put(p2phost.getAddress().getID(), p2phost.getCodecs());
+	}
+
+	/**
+	 * Returns the codec to compress the messages to a peer with, or null if
+	 * compression is off or the peer is not known to support the codec with
+	 * the same dictionaries.
+	 */
+	PayloadCodec negotiate(PeerAddress destination)
+	{
+		String name = context.getConfiguration().getCompression();
+		if (name == null)
+		{
+			name = DeflateCodec.NAME;
+		}
+		PayloadCodec codec = CODECS.get(name);
+		String[] supported = peercodecs.get(destination.getID());
+		if (codec == null || supported == null || !Arrays.asList(supported).contains(name + "@" + getDictionaryVersion()))
+		{
+			return null;
+		}
+		return codec;
+	}
+
+	/**
+	 * Compresses an encoded message if it is large enough and compression
+	 * pays off.
+	 * @return the compressed message, or null if it is to be sent as it is
+	 */
+	CompressedMessage compress(MediaSenseMessage msg, byte[] encoded, PayloadCodec codec)
+	{
+		Configuration config = context.getConfiguration();
+		if (codec == null || encoded.length < config.getCompressionThreshold())
+		{
+			return null;
+		}
+		long start = System.nanoTime();
+		try
+		{
+			String classname = msg.getClass().getName();
+			byte[] compressed = codec.compress(encoded, dictionary(msg.getClass()));
+			compress.recordSince(start);
+			if (compressed.length >= encoded.length)
+			{
+				return null;
+			}
+			bytes.add(encoded.length);
+			saved.add(encoded.length - compressed.length);
+			return new CompressedMessage(codec.getName(), classname, encoded.length, compressed);
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Returns a received object as a message, decompressing it if needed.
+	 * @return the message, or null if the object is not one
+	 * @throws Exception if a compressed message cannot be decoded
+	 */
+	static MediaSenseMessage unwrap(Object o) throws Exception
+	{
+		if (o instanceof CompressedMessage)
+		{
+			CompressedMessage cm = (CompressedMessage) o;
+			long start = System.nanoTime();
+			byte[] encoded = decompress(cm.getCodec(), cm.getClassName(), MediaSenseMessage.class, cm.getData(), cm.getLength(), true);
+			DECOMPRESS.recordSince(start);
+			return (MediaSenseMessage) new ObjectInputStream(new ByteArrayInputStream(encoded)).readObject();
+		}
+		return o instanceof MediaSenseMessage ? (MediaSenseMessage) o : null;
+	}
+
+	/**
+	 * Decompresses a payload received from another node. The class it names
+	 * is looked up without initializing it, and must be of the expected type,
+	 * and the length it claims is at most {@link #MAX_LENGTH}, so that a peer
+	 * can neither run the static initializer of any class nor make this node
+	 * allocate whatever it likes.
+	 * @param type the type the class of the payload must have
+	 * @param dictionary whether the payload is compressed against the
+	 * dictionary of its class, see {@link #dictionary(Class)}
+	 * @throws IOException if the payload is refused or corrupt
+	 */
+	static byte[] decompress(String codecname, String classname, Class<?> type, byte[] data, int length, boolean dictionary) throws IOException, ClassNotFoundException
+	{
+		PayloadCodec codec = codec(codecname);
+		if (codec == null)
+		{
+			throw new IOException("unknown codec " + codecname);
+		}
+		if (length < 0 || length > MAX_LENGTH)
+		{
+			throw new IOException("payload of " + length + " bytes refused");
+		}
+		Class<?> c = Class.forName(classname, false, Compression.class.getClassLoader());
+		if (!type.isAssignableFrom(c))
+		{
+			throw new IOException(classname + " is not a " + type.getName());
+		}
+		return codec.decompress(data, dictionary ? dictionary(c) : null, length);
+	}
+
+	/**
+	 * Returns the dictionary of a class, the serialized descriptors of the
+	 * classes common to all messages followed by its own if it is a message
+	 * of the platform.
+	 */
+	static byte[] dictionary(Class<?> c) throws IOException
+	{
+		byte[] dictionary = DICTIONARIES.get(c.getName());
+		if (dictionary == null)
+		{
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(buffer);
+			for (Class<?> common : COMMON)
+			{
+				out.writeObject(ObjectStreamClass.lookup(common));
+			}
+			ObjectStreamClass descriptor = ObjectStreamClass.lookup(c);
+			if (descriptor != null && Arrays.asList(MESSAGES).contains(c))
+			{
+				out.writeObject(descriptor);
+			}
+			out.close();
+			dictionary = buffer.toByteArray();
+			DICTIONARIES.putIfAbsent(c.getName(), dictionary);
+		}
+		return dictionary;
+	}
+
+	/**
+	 * Returns the checksum of the dictionaries of the messages of the
+	 * platform, which differs between nodes running different versions of
+	 * the classes they are made of.
+	 */
+	static String getDictionaryVersion()
+	{
+		String v = version;
+		if (v == null)
+		{
+			CRC32 crc = new CRC32();
+			try
+			{
+				for (Class<?> c : MESSAGES)
+				{
+					crc.update(dictionary(c));
+				}
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			v = Long.toHexString(crc.getValue());
+			version = v;
+		}
+		return v;
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.tomp2p.connection.PeerConnection;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.peers.PeerAddress;
+import se.mediasense.metrics.Counter;
+import se.mediasense.metrics.Gauge;
+import se.mediasense.metrics.Histogram;
+import se.mediasense.metrics.MetricsRegistry;
+import se.mediasense.util.Configuration;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * Persistent connections of a node to the peers it sends messages to.
+ * <p>The first message to a peer opens a connection which is kept alive and
+ * reused by the following ones, instead of a connection per message. A
+ * connection idle for <i>connectionidlemillis</i> is closed. At most
+ * <i>connectionpoolmax</i> connections are kept; beyond that the least
+ * recently used idle one is closed, and if all of them are in use the message
+ * is sent on a connection of its own. <i>connectionpoolmax=0</i> disables the
+ * pool.
+ * <p>The connections opened and reused are counted as
+ * <i>connection.created</i> and <i>connection.reused</i>, and the
+ * <i>.reuseratio</i> gauge is the permille of messages sent on a connection
+ * already open. The first exchange on a new connection, which includes its
+ * setup, is recorded in the <i>connection.connect.latency</i> histogram.
+ */
+public final class ConnectionPool
+{
+	public static final int DEFAULT_MAX_CONNECTIONS = 64;
+	public static final int DEFAULT_IDLE_MILLIS = 30000;
+	private final MediaSenseContext context;
+	//in access order, the eldest is the least recently used
+	private final LinkedHashMap<PeerAddress, Pooled> connections = new LinkedHashMap<PeerAddress, Pooled>(16, 0.75f, true);
+	private final Counter created;
+	private final Counter reused;
+	private final Counter evicted;
+	private final Counter overflow;
+	private final Histogram connect;
+	private Timer sweeper = null;
+
+	public ConnectionPool(MediaSenseContext _context)
+	{
+		context = _context;
+		String prefix = context.getName() == null ? "connection." : "connection." + context.getName() + ".";
+		MetricsRegistry metrics = MetricsRegistry.getSharedInstance();
+		created = metrics.counter(prefix + "created");
+		reused = metrics.counter(prefix + "reused");
+		evicted = metrics.counter(prefix + "evicted");
+		overflow = metrics.counter(prefix + "overflow");
+		connect = metrics.histogram(prefix + "connect.latency");
+		metrics.gauge(prefix + "reuseratio", new Gauge()
+		{
+			public long getValue()
+			{
+				long total = created.get() + reused.get();
+				return total == 0 ? 0 : reused.get() * 1000 / total;
+			}
+		});
+		metrics.gauge(prefix + "open", new Gauge()
+		{
+			public long getValue()
+			{
+				synchronized (ConnectionPool.this)
+				{
+					return connections.size();
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Sends an object to a peer on its pooled connection.
+	 * @return the response
+	 */
+	public FutureResponse send(PeerAddress destination, Object object)
+	{
+		Peer peer = context.getPeer();
+		final Pooled pooled = acquire(peer, destination);
+		if (pooled == null)
+		{
+			return peer.sendDirect(destination).setObject(object).start();
+		}
+		final long start = System.nanoTime();
+		final boolean fresh = pooled.fresh.compareAndSet(true, false);
+		FutureResponse fr = peer.sendDirect(pooled.connection).setObject(object).start();
+		fr.addListener(new BaseFutureAdapter<FutureResponse>()
+		{
+			public void operationComplete(FutureResponse f) throws Exception
+			{
+				if (fresh && f.isSuccess())
+				{
+					connect.recordSince(start);
+				}
+				release(pooled, f.isSuccess());
+			}
+		});
+		return fr;
+	}
+
+	/**
+	 * Returns the connection to a peer, opening it if needed, or null if the
+	 * message has to be sent on a connection of its own.
+	 */
+	private synchronized Pooled acquire(Peer peer, PeerAddress destination)
+	{
+		Configuration config = context.getConfiguration();
+		int max = config.getIntProperty("connectionpoolmax", DEFAULT_MAX_CONNECTIONS);
+		if (max <= 0)
+		{
+			return null;
+		}
+		Pooled pooled = connections.get(destination);
+		if (pooled != null && !pooled.connection.isClosed())
+		{
+			pooled.inuse++;
+			reused.inc();
+			return pooled;
+		}
+		if (pooled != null)
+		{
+			connections.remove(destination);
+		}
+		if (connections.size() >= max && !evictEldestIdle())
+		{
+			overflow.inc();
+			return null;
+		}
+		int idle = config.getIntProperty("connectionidlemillis", DEFAULT_IDLE_MILLIS);
+		PeerConnection connection = peer.createPeerConnection(destination, idle);
+		if (connection == null)
+		{
+			overflow.inc();
+			return null;
+		}
+		pooled = new Pooled(destination, connection);
+		pooled.inuse++;
+		connections.put(destination, pooled);
+		created.inc();
+		sweeper(idle);
+		return pooled;
+	}
+
+	/**
+	 * Marks a send as done. A connection whose send failed is closed, so that
+	 * the next message opens a new one.
+	 */
+	private synchronized void release(Pooled pooled, boolean success)
+	{
+		pooled.inuse--;
+		pooled.lastused = System.currentTimeMillis();
+		if (!success && pooled.inuse == 0 && connections.get(pooled.destination) == pooled)
+		{
+			connections.remove(pooled.destination);
+			pooled.connection.close();
+		}
+	}
+
+	private boolean evictEldestIdle()
+	{
+		for (Iterator<Pooled> it = connections.values().iterator(); it.hasNext();)
+		{
+			Pooled pooled = it.next();
+			if (pooled.inuse == 0)
+			{
+				it.remove();
+				pooled.connection.close();
+				evicted.inc();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Closes the connections not used for <i>connectionidlemillis</i>.
+	 */
+	synchronized void evictIdle()
+	{
+		long idle = context.getConfiguration().getIntProperty("connectionidlemillis", DEFAULT_IDLE_MILLIS);
+		long now = System.currentTimeMillis();
+		for (Iterator<Pooled> it = connections.values().iterator(); it.hasNext();)
+		{
+			Pooled pooled = it.next();
+			if (pooled.inuse == 0 && now - pooled.lastused >= idle)
+			{
+				it.remove();
+				pooled.connection.close();
+				evicted.inc();
+			}
+		}
+	}
+
+	private void sweeper(long idle)
+	{
+		if (sweeper != null)
+		{
+			return;
+		}
+		sweeper = new Timer(context.getName() == null ? "mediasense-connections" : "mediasense-connections-" + context.getName(), true);
+		long period = Math.max(1000, idle / 4);
+		sweeper.schedule(new TimerTask()
+		{
+			public void run()
+			{
+				evictIdle();
+			}
+		}, period, period);
+	}
+
+	/**
+	 * Closes all the connections.
+	 */
+	public void close()
+	{
+		List<Pooled> open;
+		synchronized (this)
+		{
+			if (sweeper != null)
+			{
+				sweeper.cancel();
+				sweeper = null;
+			}
+			open = new ArrayList<Pooled>(connections.values());
+			connections.clear();
+		}
+		for (Pooled pooled : open)
+		{
+			pooled.connection.close();
+		}
+	}
+
+	private static final class Pooled
+	{
+		final PeerAddress destination;
+		final PeerConnection connection;
+		int inuse = 0;
+		long lastused = System.currentTimeMillis();
+		final AtomicBoolean fresh = new AtomicBoolean(true);
+
+		Pooled(PeerAddress _destination, PeerConnection _connection)
+		{
+			destination = _destination;
+			connection = _connection;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.mediasense.messages.MediaSenseMessage;
+import se.mediasense.metrics.MetricsRegistry;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * Fire-and-forget delivery of messages in single datagrams, for messages
+ * which tolerate loss, such as periodic sensor notifications.
+ * <p>Each node listens on a datagram port of its own, <i>datagramport</i>
+ * (any free port by default, -1 disables it), advertised in its
+ * {@link P2PMediaSenseHost}. A message is sent as a datagram if its type is
+ * listed in <i>datagramtypes</i> or if the caller asks for
+ * {@link se.mediasense.disseminationlayer.communication.Communication#UDP}.
+ * Messages larger than <i>datagrammaxbytes</i>, and those for nodes without
+ * a datagram port, take the reliable path instead.
+ * <p>Every datagram carries a sequence number per destination, from which the
+ * receiver counts the datagrams lost or reordered on the way.
+ */
+final class DatagramTransport implements Runnable
+{
+	public static final int DEFAULT_MAX_BYTES = 1400;
+	private static final int MAX_DATAGRAM = 65507;
+	private static final int MAX_SOURCES = 1024;
+	private static final int RECEIVE_BUFFER = 1 << 20;
+	private final MediaSenseContext context;
+	private final P2PCommunication communication;
+	private final Compression compression;
+	private final ConcurrentHashMap<SocketAddress, AtomicInteger> sequences = new ConcurrentHashMap<SocketAddress, AtomicInteger>();
+	private final Map<SocketAddress, Integer> expected = new HashMap<SocketAddress, Integer>();
+	private volatile DatagramSocket socket = null;
+	private volatile String typesproperty = null;
+	private volatile Set<String> types = Collections.emptySet();
+
+	DatagramTransport(MediaSenseContext _context, P2PCommunication _communication, Compression _compression)
+	{
+		context = _context;
+		communication = _communication;
+		compression = _compression;
+	}
+
+	/**
+	 * Binds the datagram port and starts receiving.
+	 * @return the port bound, 0 if datagrams are disabled or the port cannot
+	 * be bound
+	 */
+	int open()
+	{
+		int port = context.getConfiguration().getIntProperty("datagramport", 0);
+		if (port < 0)
+		{
+			return 0;
+		}
+		try
+		{
+			socket = new DatagramSocket(port);
+			//absorbs bursts while the receiver decodes
+			socket.setReceiveBufferSize(RECEIVE_BUFFER);
+		} catch (SocketException e)
+		{
+			e.printStackTrace();
+			return 0;
+		}
+		Thread receiver = new Thread(this, context.getName() == null ? "mediasense-datagram" : "mediasense-datagram-" + context.getName());
+		receiver.setDaemon(true);
+		receiver.start();
+		return socket.getLocalPort();
+	}
+
+	void close()
+	{
+		DatagramSocket s = socket;
+		socket = null;
+		if (s != null)
+		{
+			s.close();
+		}
+	}
+
+	/**
+	 * Checks whether messages of a type are sent as datagrams by default.
+	 */
+	boolean isDatagramType(String msgtype)
+	{
+		String property = context.getConfiguration().getProperty("datagramtypes");
+		if (property == null)
+		{
+			return false;
+		}
+		if (!property.equals(typesproperty))
+		{
+			Set<String> parsed = new HashSet<String>();
+			for (String type : property.split(","))
+			{
+				if (type.trim().length() > 0)
+				{
+					parsed.add(type.trim());
+				}
+			}
+			types = parsed;
+			typesproperty = property;
+		}
+		return types.contains(msgtype);
+	}
+
+	/**
+	 * Sends a message as a datagram without waiting for anything.
+	 * @return the size of the datagram, or -1 if the message must take the
+	 * reliable path
+	 */
+	int send(P2PMediaSenseHost destination, MediaSenseMessage msg)
+	{
+		MetricsRegistry metrics = MetricsRegistry.getSharedInstance();
+		DatagramSocket s = socket;
+		if (s == null || destination.getDatagramPort() <= 0)
+		{
+			metrics.counter("message.datagram.fallback").inc();
+			return -1;
+		}
+		byte[] frame;
+		try
+		{
+			frame = MessageBatch.encode(msg);
+			CompressedMessage compressed = compression.compress(msg, frame, compression.negotiate(destination.getAddress()));
+			if (compressed != null)
+			{
+				frame = MessageBatch.encode(compressed);
+			}
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			return -1;
+		}
+		int max = Math.min(MAX_DATAGRAM, context.getConfiguration().getIntProperty("datagrammaxbytes", DEFAULT_MAX_BYTES));
+		if (frame.length + 4 > max)
+		{
+			metrics.counter("message.datagram.oversized").inc();
+			return -1;
+		}
+		InetSocketAddress target = new InetSocketAddress(destination.getAddress().getInetAddress(), destination.getDatagramPort());
+		AtomicInteger sequence = sequences.get(target);
+		if (sequence == null)
+		{
+			AtomicInteger created = new AtomicInteger();
+			sequence = sequences.putIfAbsent(target, created);
+			if (sequence == null)
+			{
+				sequence = created;
+			}
+		}
+		int seq = sequence.incrementAndGet();
+		byte[] datagram = new byte[frame.length + 4];
+		datagram[0] = (byte) (seq >>> 24);
+		datagram[1] = (byte) (seq >>> 16);
+		datagram[2] = (byte) (seq >>> 8);
+		datagram[3] = (byte) seq;
+		System.arraycopy(frame, 0, datagram, 4, frame.length);
+		try
+		{
+			s.send(new DatagramPacket(datagram, datagram.length, target));
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			metrics.counter("message.datagram.fallback").inc();
+			return -1;
+		}
+		metrics.counter("message.datagram.sent").inc();
+		return datagram.length;
+	}
+
+	@Override
+	public void run()
+	{
+		byte[] buffer = new byte[MAX_DATAGRAM];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		MetricsRegistry metrics = MetricsRegistry.getSharedInstance();
+		DatagramSocket s;
+		while ((s = socket) != null)
+		{
+			try
+			{
+				packet.setLength(buffer.length);
+				s.receive(packet);
+			} catch (IOException e)
+			{
+				//closing the socket ends the receive
+				if (socket != null)
+				{
+					e.printStackTrace();
+				}
+				continue;
+			}
+			try
+			{
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer, 0, packet.getLength()));
+				track(packet.getSocketAddress(), in.readInt(), metrics);
+				MediaSenseMessage msg = Compression.unwrap(new ObjectInputStream(in).readObject());
+				if (msg == null)
+				{
+					throw new IOException("not a message");
+				}
+				metrics.counter("message.datagram.received").inc();
+				communication.receive(msg);
+			} catch (Exception e)
+			{
+				metrics.counter("message.datagram.malformed").inc();
+			}
+		}
+	}
+
+	/**
+	 * Counts the datagrams skipped since the last one from the same source as
+	 * lost, and the late ones as reordered. A sender which restarted begins
+	 * again at 1.
+	 */
+	private void track(SocketAddress source, int seq, MetricsRegistry metrics)
+	{
+		Integer next = expected.get(source);
+		if (next == null || seq == 1)
+		{
+			if (expected.size() >= MAX_SOURCES)
+			{
+				expected.clear();
+			}
+		}
+		else if (seq > next.intValue())
+		{
+			metrics.counter("message.datagram.lost").add(seq - next.intValue());
+		}
+		else if (seq < next.intValue())
+		{
+			metrics.counter("message.datagram.reordered").inc();
+			return;
+		}
+		expected.put(source, Integer.valueOf(seq + 1));
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The built-in codec, deflate at the default level. The deflaters and
+ * inflaters are kept per thread and reset between uses.
+ */
+public final class DeflateCodec implements PayloadCodec
+{
+	public static final String NAME = "deflate";
+	/**
+	 * The most deflate expands its input, 258 bytes from two bits.
+	 */
+	private static final long MAX_RATIO = 1032;
+	private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>()
+	{
+		@Override
+		protected Deflater initialValue()
+		{
+			return new Deflater();
+		}
+	};
+	private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>()
+	{
+		@Override
+		protected Inflater initialValue()
+		{
+			return new Inflater();
+		}
+	};
+	private static final ThreadLocal<byte[]> CHUNK = new ThreadLocal<byte[]>()
+	{
+		@Override
+		protected byte[] initialValue()
+		{
+			return new byte[8192];
+		}
+	};
+
+	public String getName()
+	{
+		return NAME;
+	}
+
+	public byte[] compress(byte[] data, byte[] dictionary)
+	{
+		Deflater deflater = DEFLATER.get();
+		deflater.reset();
+		if (dictionary != null)
+		{
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(data);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+		byte[] chunk = CHUNK.get();
+		while (!deflater.finished())
+		{
+			out.write(chunk, 0, deflater.deflate(chunk));
+		}
+		return out.toByteArray();
+	}
+
+	public byte[] decompress(byte[] data, byte[] dictionary, int length) throws IOException
+	{
+		if (length < 0 || length > data.length * MAX_RATIO + 64)
+		{
+			//more than deflate can expand to, the length is a lie
+			throw new IOException("corrupt payload, " + data.length + " bytes claim " + length);
+		}
+		Inflater inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setInput(data);
+		byte[] result = new byte[length];
+		int n = 0;
+		try
+		{
+			while (n < length)
+			{
+				int k = inflater.inflate(result, n, length - n);
+				if (k == 0 && inflater.needsDictionary() && dictionary != null)
+				{
+					inflater.setDictionary(dictionary);
+				}
+				else if (k == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+				{
+					break;
+				}
+				n += k;
+			}
+		} catch (DataFormatException e)
+		{
+			throw new IOException(e.getMessage());
+		} catch (IllegalArgumentException e)
+		{
+			//compressed against another dictionary
+			throw new IOException(e.getMessage());
+		}
+		if (n != length)
+		{
+			throw new IOException("corrupt payload, " + n + " of " + length + " bytes");
+		}
+		return result;
+	}
+}
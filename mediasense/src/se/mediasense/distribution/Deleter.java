@@ -7,10 +7,12 @@ import net.tomp2p.futures.FutureDHT;
 import net.tomp2p.p2p.Peer;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.storage.Data;
+import se.mediasense.util.MediaSenseContext;
 
 public class Deleter implements BaseFutureListener<FutureDHT>, FuturePrimitive
 {
 	
+	private final MediaSenseContext context;
 	private UCI uci = null;
 	private PrimitiveListener lookuplistener = null;
 	private boolean complete = false;
@@ -23,26 +25,43 @@ public class Deleter implements BaseFutureListener<FutureDHT>, FuturePrimitive
 	private FutureDHT futureDHT = null;
 	private REASON reason = null;
 	private String DHTReason = "";
+	private final PrimitiveTimer timer;
 	
 	
 	
 	public Deleter(UCI _uci)
 	{
+		this(_uci, MediaSenseContext.getDefault());
+	}
+
+	/**
+	 * Creates the primitive on the given node.
+	 */
+	public Deleter(UCI _uci, MediaSenseContext _context)
+	{
+		context = _context;
+		timer = new PrimitiveTimer("delete", context);
 		uci = _uci;
+		timer.setUCI(String.valueOf(uci));
 		
 	}
 
 	public void startAsynchronousDeletion(PrimitiveListener l)
 	{
 		
+		timer.enter("REMOVING");
+		lookuplistener = timer.wrap(l);
 		try 
 		{
 			Data data = new Data(uci.toString());
 		    Number160 key = Number160.createHash(uci.toString());
-		    futureDHT = P2PCommunication.peer.remove(Number160.createHash(uci.toString())).start();
+		    futureDHT = context.getPeer().remove(Number160.createHash(uci.toString())).start();
 			futureDHT.addListener(this);
 		} catch (IOException e) {
 			e.printStackTrace();
+			//no remove to wait for, the deletion is over
+			reason = REASON.DELETE_FAILED;
+			lookuplistener.handleCompleted(this);
 		}	   		
 		
 	    
@@ -50,20 +69,29 @@ public class Deleter implements BaseFutureListener<FutureDHT>, FuturePrimitive
 	
 	public Deleter startSynchronousDeletion()
 	{
+		timer.enter("REMOVING");
 		try {
 			Data data = new Data(uci.toString());
-		    futureDHT = P2PCommunication.peer.remove(Number160.createHash(uci.toString())).start();
-		    futureDHT.awaitUninterruptibly();
+		    futureDHT = context.getPeer().remove(Number160.createHash(uci.toString())).start();
+		    context.getTimeouts().await("remove", futureDHT);
 	    	complete = (futureDHT.isCompleted());
 	    	deleted =futureDHT.isSuccess();
-	    	peer = P2PCommunication.peer;
+	    	peer = context.getPeer();
 	    	DHTReason = futureDHT.getFailedReason();
+	    	if(deleted)
+	    	{
+	    		context.getPrefixIndex().unindex(uci.toString());
+	    		context.getJournal().logDelete(uci.toString());
+	    		context.getValueStore().remove(uci.toString());
+	    		context.getLeaseRenewer().remove(uci.toString());
+	    	}
 		    
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
 
+	  timer.finish(deleted);
 	  return this;  
 	}
 
@@ -79,8 +107,15 @@ public class Deleter implements BaseFutureListener<FutureDHT>, FuturePrimitive
 	{
     	complete = (futureDHT.isCompleted());
     	deleted =futureDHT.isSuccess();
-    	peer = P2PCommunication.peer;
+    	peer = context.getPeer();
     	DHTReason = futureDHT.getFailedReason();
+    	if(deleted)
+    	{
+    		context.getPrefixIndex().unindex(uci.toString());
+    		context.getJournal().logDelete(uci.toString());
+    		context.getValueStore().remove(uci.toString());
+    		context.getLeaseRenewer().remove(uci.toString());
+    	}
 		lookuplistener.handleCompleted(this);
 
 	}
@@ -120,7 +155,7 @@ public class Deleter implements BaseFutureListener<FutureDHT>, FuturePrimitive
 	}
 
 	public void setLookuplistener(PrimitiveListener lookuplistener) {
-		this.lookuplistener = lookuplistener;
+		this.lookuplistener = timer.wrap(lookuplistener);
 	}
 
 
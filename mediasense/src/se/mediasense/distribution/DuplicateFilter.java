@@ -0,0 +1,153 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.util.Arrays;
+
+import se.mediasense.messages.MediaSenseMessage;
+import se.mediasense.metrics.Counter;
+import se.mediasense.metrics.MetricsRegistry;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * Drops the messages received again, after a retry or a redelivery by the
+ * overlay, before they reach the listeners.
+ * <p>The messages seen are kept by type and ID in a rotating Bloom filter of
+ * two generations. New IDs go into the current generation, and an ID is a
+ * duplicate if either generation holds it. Every <i>dedupwindowmillis</i>, or
+ * once <i>dedupcapacity</i> messages have been added, the current generation
+ * becomes the previous one and the previous one is cleared, so a message is
+ * remembered for at least one window and memory stays fixed at 4 bytes per
+ * message of capacity and generation whatever the rate. At 32 bits per
+ * message a new message is mistaken for a duplicate with a probability of
+ * about 1 in 5 million. A capacity of 0 disables the filter.
+ * <p>The duplicates dropped are the <i>dedup.dropped</i> counter, the
+ * rotations <i>dedup.rotations</i>.
+ */
+public final class DuplicateFilter
+{
+	public static final int DEFAULT_WINDOW_MILLIS = 10000;
+	public static final int DEFAULT_CAPACITY = 1000000;
+	private static final int BITS_PER_MESSAGE = 32;
+	private static final int HASHES = 22;
+	private final long window;
+	private final int capacity;
+	private final Counter dropped;
+	private final Counter rotations;
+	private long[] current;
+	private long[] previous;
+	private int added = 0;
+	private long rotated = System.currentTimeMillis();
+
+	public DuplicateFilter(MediaSenseContext context)
+	{
+		window = context.getConfiguration().getIntProperty("dedupwindowmillis", DEFAULT_WINDOW_MILLIS);
+		capacity = Math.max(0, context.getConfiguration().getIntProperty("dedupcapacity", DEFAULT_CAPACITY));
+		//a multiple of 64 bits, at least one word
+		int words = Math.max(1, (int) ((long) capacity * BITS_PER_MESSAGE / 64));
+		current = capacity == 0 ? null : new long[words];
+		previous = capacity == 0 ? null : new long[words];
+		String prefix = context.getName() == null ? "dedup." : "dedup." + context.getName() + ".";
+		MetricsRegistry metrics = MetricsRegistry.getSharedInstance();
+		dropped = metrics.counter(prefix + "dropped");
+		rotations = metrics.counter(prefix + "rotations");
+	}
+
+
+	/**
+	 * Records a received message, unless it has been seen before. The type
+	 * is part of the key since a response may carry the ID of its request.
+	 * @return true if the message is a duplicate and is to be dropped
+	 */
+	public boolean isDuplicate(MediaSenseMessage msg)
+	{
+		if (current == null || msg.getMsgID() == null)
+		{
+			return false;
+		}
+		long h1 = hash(msg.getMsgType(), msg.getMsgID());
+		//the second hash only has to differ per key, and be odd so that the
+		//probes cover the whole filter
+		long h2 = mix(h1) | 1;
+		long bits = (long) current.length * 64;
+		synchronized (this)
+		{
+			long now = System.currentTimeMillis();
+			if (now - rotated >= window || added >= capacity)
+			{
+				long[] cleared = previous;
+				Arrays.fill(cleared, 0L);
+				previous = current;
+				current = cleared;
+				added = 0;
+				rotated = now;
+				rotations.inc();
+			}
+			boolean incurrent = true;
+			boolean inprevious = true;
+			long probe = h1;
+			for (int i = 0; i < HASHES; i++)
+			{
+				int bit = (int) ((probe & Long.MAX_VALUE) % bits);
+				long mask = 1L << bit;
+				int word = bit >>> 6;
+				incurrent &= (current[word] & mask) != 0;
+				inprevious &= (previous[word] & mask) != 0;
+				current[word] |= mask;
+				probe += h2;
+			}
+			if (incurrent || inprevious)
+			{
+				dropped.inc();
+				return true;
+			}
+			added++;
+			return false;
+		}
+	}
+
+	/**
+	 * 64 bit FNV-1a over the type and the ID.
+	 */
+	private static long hash(String type, String id)
+	{
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < type.length(); i++)
+		{
+			h = (h ^ type.charAt(i)) * 0x100000001b3L;
+		}
+		h = (h ^ '/') * 0x100000001b3L;
+		for (int i = 0; i < id.length(); i++)
+		{
+			h = (h ^ id.charAt(i)) * 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * The finalizer of MurmurHash3.
+	 */
+	private static long mix(long h)
+	{
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb93e80fe53cbL;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.tomp2p.futures.BaseFutureListener;
+import net.tomp2p.futures.FutureDHT;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.Data;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * The FIND primitive, which lists all registered UCIs starting with a prefix
+ * using the {@link PrefixIndex}.
+ * <p>The search first fetches a digest of the matching index bucket, which only
+ * contains the keys, and then streams the UCIs themselves page by page using
+ * {@link #nextPage()} or {@link #startAsynchronousNextPage(PrimitiveListener)}.
+ */
+public class Finder implements BaseFutureListener<FutureDHT>, FuturePrimitive
+{
+	private final MediaSenseContext context;
+	private String prefix = null;
+	private String bucket = null;
+	private PrimitiveListener findlistener = null;
+	private boolean complete = false;
+	private boolean found = false;
+	public enum REASON
+	{
+		INVALID_PREFIX, NOT_FOUND, INTERNAL_ERROR
+	};
+	private enum STATE
+	{
+		DIGEST, FETCHING, COMPLETED
+	};
+	public static final int DEFAULT_PAGE_SIZE = 50;
+	private String ID = null;
+	private Peer peer = null;
+	private FutureDHT futureDHT = null;
+	private REASON reason = null;
+	private String DHTReason = "";
+	private STATE state = null;
+	private int pagesize = DEFAULT_PAGE_SIZE;
+	private List<Number160> keys = new ArrayList<Number160>();
+	private int cursor = 0;
+	private List<String> page = new ArrayList<String>();
+
+
+
+	public Finder(String _prefix)
+	{
+		this(_prefix, MediaSenseContext.getDefault());
+	}
+
+	/**
+	 * Creates the primitive on the given node.
+	 */
+	public Finder(String _prefix, MediaSenseContext _context)
+	{
+		context = _context;
+		prefix = _prefix;
+		bucket = context.getPrefixIndex().bucketOf(_prefix);
+	}
+
+	/**
+	 * Sets the maximum number of index entries fetched per page. Since entries
+	 * are filtered against the prefix after fetching, a page may contain
+	 * fewer UCIs than this.
+	 * @param _pagesize the page size
+	 * @return this finder
+	 */
+	public Finder setPageSize(int _pagesize)
+	{
+		pagesize = _pagesize;
+		return this;
+	}
+
+	public void startAsynchronousFind(PrimitiveListener l)
+	{
+		findlistener = l;
+		if (bucket == null)
+		{
+			invalidPrefix();
+			findlistener.handleCompleted(this);
+			return;
+		}
+		state = STATE.DIGEST;
+		futureDHT = context.getPrefixIndex().digest(bucket);
+		futureDHT.addListener(this);
+	}
+
+	/**
+	 * Fetches the next page asynchronously, the listener is called once the
+	 * page is available through {@link #getPage()}.
+	 * @param l the listener to notify
+	 */
+	public void startAsynchronousNextPage(PrimitiveListener l)
+	{
+		findlistener = l;
+		if (!hasNextPage())
+		{
+			page = new ArrayList<String>();
+			findlistener.handleCompleted(this);
+			return;
+		}
+		state = STATE.FETCHING;
+		futureDHT = context.getPrefixIndex().fetch(bucket, nextKeys());
+		futureDHT.addListener(this);
+	}
+
+	public Finder startSynchronousFind()
+	{
+		if (bucket == null)
+		{
+			invalidPrefix();
+			return this;
+		}
+		try
+		{
+			futureDHT = context.getPrefixIndex().digest(bucket);
+			context.getTimeouts().await("get", futureDHT);
+			completeDigest(futureDHT);
+
+		} catch (Exception e)
+		{
+			reason = REASON.INTERNAL_ERROR;
+			complete = false;
+			found = false;
+			return this;
+		}
+		return this;
+	}
+
+	/**
+	 * Fetches the next page synchronously.
+	 * @return the UCIs of the page, empty once all pages have been fetched
+	 */
+	public List<String> nextPage()
+	{
+		if (!hasNextPage())
+		{
+			return new ArrayList<String>();
+		}
+		try
+		{
+			futureDHT = context.getPrefixIndex().fetch(bucket, nextKeys());
+			context.getTimeouts().await("get", futureDHT);
+			completePage(futureDHT);
+
+		} catch (Exception e)
+		{
+			reason = REASON.INTERNAL_ERROR;
+			DHTReason = futureDHT.getFailedReason();
+			page = new ArrayList<String>();
+		}
+		return page;
+	}
+
+	public boolean hasNextPage()
+	{
+		return cursor < keys.size();
+	}
+
+	private List<Number160> nextKeys()
+	{
+		int end = Math.min(cursor + pagesize, keys.size());
+		List<Number160> next = new ArrayList<Number160>(keys.subList(cursor, end));
+		cursor = end;
+		return next;
+	}
+
+	private void invalidPrefix()
+	{
+		reason = REASON.INVALID_PREFIX;
+		complete = true;
+		found = false;
+	}
+
+	private void completeDigest(FutureDHT future)
+	{
+		complete = future.isCompleted();
+		peer = context.getPeer();
+		DHTReason = future.getFailedReason();
+		keys = new ArrayList<Number160>();
+		cursor = 0;
+		if (future.isSuccess() && future.getDigest() != null)
+		{
+			keys.addAll(future.getDigest().getKeyDigest().keySet());
+			Collections.sort(keys);
+		}
+		found = !keys.isEmpty();
+		if (!found)
+		{
+			reason = REASON.NOT_FOUND;
+		}
+	}
+
+	private void completePage(FutureDHT future) throws Exception
+	{
+		page = new ArrayList<String>();
+		if (future.isSuccess())
+		{
+			for (Data data : future.getDataMap().values())
+			{
+				String uci = (String) data.getObject();
+				if (uci.startsWith(prefix))
+				{
+					page.add(uci);
+				}
+			}
+			Collections.sort(page);
+		}
+	}
+
+
+	@Override
+	public void exceptionCaught(Throwable t) throws Exception
+	{
+		reason = REASON.INTERNAL_ERROR;
+		complete = (futureDHT.isCompleted());
+		found = false;
+		DHTReason = futureDHT.getFailedReason();
+		page = new ArrayList<String>();
+		findlistener.handleCompleted(this);
+	}
+
+	@Override
+	public void operationComplete(FutureDHT future) throws Exception
+	{
+		try
+		{
+			if (state == STATE.DIGEST)
+			{
+				completeDigest(future);
+				if (hasNextPage())
+				{
+					startAsynchronousNextPage(findlistener);
+					return;
+				}
+				page = new ArrayList<String>();
+			}
+			else if (state == STATE.FETCHING)
+			{
+				completePage(future);
+			}
+		} catch (Exception e)
+		{
+			reason = REASON.INTERNAL_ERROR;
+			page = new ArrayList<String>();
+		}
+		state = STATE.COMPLETED;
+		findlistener.handleCompleted(this);
+	}
+
+	/**
+	 * Returns the most recently fetched page.
+	 * @return the UCIs of the current page
+	 */
+	public List<String> getPage()
+	{
+		return page;
+	}
+
+	/**
+	 * Returns the number of index entries in the bucket. This is an upper
+	 * bound on the number of matching UCIs.
+	 */
+	public int getResultCount()
+	{
+		return keys.size();
+	}
+
+	public String getPrefix()
+	{
+		return prefix;
+	}
+
+	@Override
+	public boolean isComplete() {
+		return complete;
+	}
+
+	@Override
+	public boolean isSuccess() {
+		return found;
+	}
+
+	@Override
+	public String getID() {
+		return ID;
+	}
+
+	@Override
+	public Peer getPeer() {
+		return peer;
+	}
+
+	public FutureDHT getFutureDHT() {
+		return futureDHT;
+	}
+
+	@Override
+	public String getDHTReason() {
+		return DHTReason;
+	}
+
+	public String getReason() {
+		return reason.toString();
+	}
+
+	@Override
+	public void setLookuplistener(PrimitiveListener lookuplistener) {
+		this.findlistener = lookuplistener;
+	}
+
+}
@@ -0,0 +1,380 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.peers.PeerAddress;
+import se.mediasense.metrics.Counter;
+import se.mediasense.metrics.Gauge;
+import se.mediasense.metrics.Histogram;
+import se.mediasense.metrics.MetricsRegistry;
+import se.mediasense.util.Configuration;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * Credit-based flow control of the messages between nodes, so that a fast
+ * sender cannot flood the executor of a slow receiver and stall its I/O
+ * threads.
+ * <p>A receiver answers every message or batch with a {@link CreditGrant},
+ * the number of messages it can take: its share of the spare capacity of its
+ * executor, split evenly among the senders heard from within the last
+ * <i>flowstallmillis</i>, at most <i>flowmaxcredits</i>, and never more
+ * than is left after the credits the others have not spent yet. A sender spends one
+ * credit per message, and sends no more of a batch than it has credits for.
+ * Out of credits, it holds the messages for that destination, which queue up
+ * behind, while a timer asks for a new grant every <i>flowprobemillis</i>. If
+ * none comes within <i>flowstallmillis</i> the batch is shed, and its messages
+ * fail. A peer which grants nothing, such as an older node, is not limited.
+ * <p>Control messages are neither limited nor answered with a grant, so they
+ * do not take a share from the senders of data.
+ * <p>Per destination the credits left are the <i>flow.&lt;peer&gt;.credits</i>
+ * gauge and the stalls the <i>.stalls</i> counter, both dropped along with
+ * the credits once nothing has been sent to the destination for a minute;
+ * in total the stalls, the messages shed and the time stalled are
+ * <i>flow.stalls</i>, <i>flow.shed</i> and the <i>flow.stall.latency</i>
+ * histogram.
+ */
+public final class FlowControl
+{
+	public static final int DEFAULT_MAX_CREDITS = Configuration.DEFAULT_FLOW_CREDITS;
+	public static final int DEFAULT_STALL_MILLIS = Configuration.DEFAULT_FLOW_STALL_MILLIS;
+	public static final int DEFAULT_PROBE_MILLIS = 20;
+	private static final long IDLE_PEER_MILLIS = 60000;
+	private final MediaSenseContext context;
+	private final ConnectionPool pool;
+	private final String metricsprefix;
+	private final Counter stalls;
+	private final Counter shed;
+	private final Histogram stalled;
+	private final ConcurrentHashMap<PeerAddress, Credits> credits = new ConcurrentHashMap<PeerAddress, Credits>();
+	private final Map<PeerAddress, Sender> senders = new HashMap<PeerAddress, Sender>();
+	private Timer prober = null;
+	private boolean sweeping = false;
+
+	public FlowControl(MediaSenseContext _context, ConnectionPool _pool)
+	{
+		context = _context;
+		pool = _pool;
+		metricsprefix = context.getName() == null ? "flow." : "flow." + context.getName() + ".";
+		MetricsRegistry metrics = MetricsRegistry.getSharedInstance();
+		stalls = metrics.counter(metricsprefix + "stalls");
+		shed = metrics.counter(metricsprefix + "shed");
+		stalled = metrics.histogram(metricsprefix + "stall.latency");
+	}
+
+
+	/**
+	 * Returns the credits this node grants a sender now, or null if flow
+	 * control is disabled by a <i>flowmaxcredits</i> of 0.
+	 * @param sender the sender, counted as active from now on
+	 */
+	synchronized CreditGrant grant(PeerAddress sender)
+	{
+		Configuration config = context.getConfiguration();
+		int max = config.getFlowMaxCredits();
+		if (max <= 0)
+		{
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		long window = config.getFlowStallMillis();
+		Sender me = senders.get(sender);
+		if (me == null)
+		{
+			me = new Sender();
+			senders.put(sender, me);
+		}
+		me.seen = now;
+		//the grant replaces whatever the sender has left
+		me.outstanding = 0;
+		//the credits granted to the others and not spent yet are taken already
+		int others = 0;
+		for (Iterator<Sender> i = senders.values().iterator(); i.hasNext();)
+		{
+			Sender s = i.next();
+			if (now - s.seen > window)
+			{
+				i.remove();
+			}
+			else
+			{
+				others += s.outstanding;
+			}
+		}
+		int spare = Math.max(0, context.getExecutor().getSpareCapacity());
+		//rounded up, so that a little spare capacity is not granted to no one
+		int share = (spare + senders.size() - 1) / senders.size();
+		me.outstanding = Math.max(0, Math.min(max, Math.min(share, spare - others)));
+		return new CreditGrant(me.outstanding);
+	}
+
+	/**
+	 * Returns the credits of a destination.
+	 */
+	Credits credits(PeerAddress destination)
+	{
+		Credits c = credits.get(destination);
+		if (c == null)
+		{
+			Credits created = new Credits(destination);
+			c = credits.putIfAbsent(destination, created);
+			if (c == null)
+			{
+				c = created;
+				c.register();
+				sweep();
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Drops the credits of the destinations nothing has been sent to for a
+	 * while, and their metrics. They start afresh if they are sent to again.
+	 */
+	void evictIdle()
+	{
+		long now = System.currentTimeMillis();
+		for (Iterator<Credits> it = credits.values().iterator(); it.hasNext();)
+		{
+			Credits c = it.next();
+			if (now - c.used > IDLE_PEER_MILLIS)
+			{
+				it.remove();
+				c.unregister();
+			}
+		}
+	}
+
+	private synchronized void sweep()
+	{
+		if (sweeping)
+		{
+			return;
+		}
+		sweeping = true;
+		prober().schedule(new TimerTask()
+		{
+			public void run()
+			{
+				evictIdle();
+			}
+		}, IDLE_PEER_MILLIS, IDLE_PEER_MILLIS / 4);
+	}
+
+	/**
+	 * Stops the probes.
+	 */
+	synchronized void close()
+	{
+		if (prober != null)
+		{
+			prober.cancel();
+			prober = null;
+		}
+		sweeping = false;
+	}
+
+	private synchronized Timer prober()
+	{
+		if (prober == null)
+		{
+			prober = new Timer(context.getName() == null ? "mediasense-flow" : "mediasense-flow-" + context.getName(), true);
+		}
+		return prober;
+	}
+
+	/**
+	 * A sender granted credits, and how many of them it may not have spent
+	 * yet.
+	 */
+	private static final class Sender
+	{
+		private long seen;
+		private int outstanding;
+	}
+
+	/**
+	 * The credits left for one destination, used by the one thread sending
+	 * to it at a time.
+	 */
+	final class Credits
+	{
+		private final PeerAddress destination;
+		private final String peer;
+		private final Counter peerstalls;
+		private volatile int credits;
+		private volatile boolean granted = false;
+		private volatile long used = System.currentTimeMillis();
+
+		Credits(PeerAddress _destination)
+		{
+			destination = _destination;
+			credits = context.getConfiguration().getFlowMaxCredits();
+			peer = metricsprefix + destination.getInetAddress().getHostAddress() + ":" + destination.portTCP();
+			peerstalls = MetricsRegistry.getSharedInstance().counter(peer + ".stalls");
+		}
+
+		void register()
+		{
+			MetricsRegistry.getSharedInstance().gauge(peer + ".credits", new Gauge()
+			{
+				public long getValue()
+				{
+					return credits;
+				}
+			});
+		}
+
+		void unregister()
+		{
+			MetricsRegistry.getSharedInstance().remove(peer + ".credits");
+			MetricsRegistry.getSharedInstance().remove(peer + ".stalls");
+		}
+
+		/**
+		 * Takes the credits for up to n messages, waiting for a grant while
+		 * there are none. The grant is asked for by a timer, the caller only
+		 * waits for it.
+		 * @return the number of messages which may be sent now, all of them
+		 * if the destination never granted any, 0 if no grant came in time
+		 * and the messages are to be shed
+		 */
+		int acquire(int n)
+		{
+			used = System.currentTimeMillis();
+			if (!granted)
+			{
+				return n;
+			}
+			if (credits > 0)
+			{
+				return take(n);
+			}
+			Configuration config = context.getConfiguration();
+			long start = System.nanoTime();
+			long deadline = System.currentTimeMillis() + config.getFlowStallMillis();
+			stalls.inc();
+			peerstalls.inc();
+			Probe probe = new Probe();
+			prober().schedule(probe, 0, Math.max(1, config.getIntProperty("flowprobemillis", DEFAULT_PROBE_MILLIS)));
+			try
+			{
+				synchronized (this)
+				{
+					long left;
+					while (credits <= 0 && (left = deadline - System.currentTimeMillis()) > 0)
+					{
+						wait(left);
+					}
+				}
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			} finally
+			{
+				probe.cancel();
+			}
+			stalled.recordSince(start);
+			if (credits > 0)
+			{
+				return take(n);
+			}
+			shed.add(n);
+			return 0;
+		}
+
+		private int take(int n)
+		{
+			int k = Math.min(n, credits);
+			credits -= k;
+			return k;
+		}
+
+		/**
+		 * Takes the grant returned with an acknowledgement, if any.
+		 */
+		void update(FutureResponse fr)
+		{
+			if (!fr.isSuccess() || fr.getBuffer() == null || fr.getBuffer().readableBytes() == 0)
+			{
+				return;
+			}
+			try
+			{
+				//the object can only be decoded once
+				Object reply = fr.getObject();
+				if (reply instanceof CreditGrant)
+				{
+					synchronized (this)
+					{
+						credits = ((CreditGrant) reply).getCredits();
+						granted = true;
+						//wakes a sender stalled for credits
+						notifyAll();
+					}
+				}
+			} catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Asks the destination for a new grant, unless the last request is
+		 * still unanswered.
+		 */
+		private final class Probe extends TimerTask
+		{
+			private volatile boolean asking = false;
+
+			@Override
+			public void run()
+			{
+				if (asking)
+				{
+					return;
+				}
+				asking = true;
+				try
+				{
+					pool.send(destination, new CreditGrant(0)).addListener(new BaseFutureAdapter<FutureResponse>()
+					{
+						public void operationComplete(FutureResponse fr) throws Exception
+						{
+							update(fr);
+							asking = false;
+						}
+					});
+				} catch (RuntimeException e)
+				{
+					//the timer thread must survive, the next probe tries again
+					e.printStackTrace();
+					asking = false;
+				}
+			}
+		}
+	}
+}
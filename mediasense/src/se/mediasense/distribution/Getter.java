@@ -30,11 +30,13 @@ import net.tomp2p.storage.Data;
 
 import org.json.simple.JSONObject;
 
-import se.mediasense.util.ThreadExecutor;
+import se.mediasense.tracing.TraceContext;
+import se.mediasense.util.MediaSenseContext;
 
 public class Getter
 implements BaseFutureListener<FutureDHT>, FuturePrimitive
 {
+	private final MediaSenseContext context;
 	private UCI uci = null;
 	private String suci=null;
 	private PrimitiveListener getListener = null;
@@ -57,28 +59,40 @@ implements BaseFutureListener<FutureDHT>, FuturePrimitive
 	private Data rpeer = null;
 	private JSONObject ruci = null;
 	private Map<String, Serializable> data = null;
+	private final PrimitiveTimer timer;
 	
 	
 	
 	public Getter(String _uci)
 	{
+		this(_uci, MediaSenseContext.getDefault());
+	}
+
+	/**
+	 * Creates the primitive on the given node.
+	 */
+	public Getter(String _uci, MediaSenseContext _context)
+	{
+		context = _context;
+		timer = new PrimitiveTimer("get", context);
 		suci = _uci;
+		timer.setUCI(suci);
 		
 	}
 
 	public void startAsynchronousGet(PrimitiveListener l)
 	{
+		    getListener = timer.wrap(l);
 			resolveUCI();
-		    getListener = l;
 	}
 	
 	
 	
 	private void resolveUCI()
 	{
-		    state = STATE.RESOLVE_UCI;		
-			futureDHT = P2PCommunication.peer.get(Number160.createHash(suci)).start();
-		    futureDHT.addListener(this);		
+		    state = STATE.RESOLVE_UCI;
+		    timer.enter(state.name());
+			futureDHT = context.getTimeouts().get(Number160.createHash(suci), this);
 	}
 	
 	
@@ -88,6 +102,7 @@ implements BaseFutureListener<FutureDHT>, FuturePrimitive
 	{
 		try {
 		    state = STATE.RESOLVE_PEER;
+		    timer.enter(state.name());
 		    if(future.isFailed())
 		    {
 		    	reason = REASON.UCI_DOES_NOT_EXIST;
@@ -100,9 +115,18 @@ implements BaseFutureListener<FutureDHT>, FuturePrimitive
 		    }
 		    else
 		    {
-			    ruci = (JSONObject)future.getData().getObject();		    
-			    futureDHT = P2PCommunication.peer.get(Number160.createHash((String)ruci.get("host"))).start();
-			    futureDHT.addListener(this);
+			    ruci = (JSONObject)future.getData().getObject();
+			    if(context.getLeaseRenewer().isNearlyExpired(ruci))
+			    {
+			    	//the owner has stopped renewing, do not wait for it to time out
+			    	reason = REASON.PEER_DOES_NOT_EXIST;
+			    	complete=true;
+			    	gotten =false;
+			    	setData(new HashMap<String, Serializable>());
+			    	getListener.handleCompleted(this);
+			    	return;
+			    }
+			    futureDHT = context.getTimeouts().get(Number160.createHash((String)ruci.get("host")), this);
 		    }
 		} catch (Exception e) 
 		{
@@ -120,6 +144,7 @@ implements BaseFutureListener<FutureDHT>, FuturePrimitive
 		try {    
 			
 			state = STATE.GETTING;
+			timer.enter(state.name());
 		    if(future.isFailed())
 		    {
 		    	reason = REASON.PEER_DOES_NOT_EXIST;
@@ -133,9 +158,10 @@ implements BaseFutureListener<FutureDHT>, FuturePrimitive
 		    else
 		    {
 			    rpeer = future.getData();
-			    GetterImplementation g = new GetterImplementation(this);
-			    g.addUCI(new UCI((String)ruci.get("host"), new P2PMediaSenseHost(((PeerAddress)rpeer.getObject()).getID().toString(), (PeerAddress)futureDHT.getData().getObject())));
-			    ThreadExecutor.SharedInstance().submit(g);
+			    GetterImplementation g = new GetterImplementation(this, context);
+			    PeerAddress peeraddress = (PeerAddress)rpeer.getObject();
+			    g.addUCI(new UCI(suci, new P2PMediaSenseHost(peeraddress.getID().toString(), peeraddress)));
+			    context.getExecutor().submit(g);
 		    }
 		} catch (Exception e) 
 		{
@@ -149,14 +175,25 @@ implements BaseFutureListener<FutureDHT>, FuturePrimitive
 	}	
 	
 	
-	protected void completeAsynchronousGet(Map<String, Serializable> mp)
+	/**
+	 * Completes the get with the resources the owners have answered with, or
+	 * fails it with the reason of the first UCI which could not be gotten.
+	 */
+	protected void completeAsynchronousGet(Map<String, Serializable> mp, Map<String, REASON> failures)
 	{
 		    state = STATE.COMPLETED;
 			complete=true;
-			gotten =true;
+			gotten =failures.isEmpty();
+			if(!gotten)
+			{
+				reason = failures.values().iterator().next();
+			}
 			DHTReason = futureDHT.getFailedReason();
 			setData(mp);
-		    getListener.handleCompleted(this);		    
+			if(getListener != null)
+			{
+				getListener.handleCompleted(this);
+			}		    
 		 
 	}
 	
@@ -168,35 +205,53 @@ implements BaseFutureListener<FutureDHT>, FuturePrimitive
 		Data data = null;
 	
 		try {
-	    FutureDHT futureDHT = P2PCommunication.peer.get(Number160.createHash(suci)).start();
-	    futureDHT.awaitUninterruptibly();
+	    timer.enter("RESOLVE_UCI");
+	    futureDHT = context.getTimeouts().get(Number160.createHash(suci));
 	    data = futureDHT.getData(); 
 	    ruci = (JSONObject)data.getObject();
+	    if(context.getLeaseRenewer().isNearlyExpired(ruci))
+	    {
+	    	reason = REASON.PEER_DOES_NOT_EXIST;
+	    	complete=true;
+	    	gotten =false;
+	    	this.setData(new HashMap<String, Serializable>());
+	    	timer.finish(gotten);
+	    	return this;
+	    }
 	    
-	    futureDHT = P2PCommunication.peer.get(Number160.createHash((String)ruci.get("host"))).start();
-	    futureDHT.awaitUninterruptibly();
+	    timer.enter("RESOLVE_PEER");
+	    futureDHT = context.getTimeouts().get(Number160.createHash((String)ruci.get("host")));
 	    
 	    peeraddress = (PeerAddress)futureDHT.getData().getObject();
 	    
 	    uci = new UCI(suci, new P2PMediaSenseHost(peeraddress.getID().toString(), peeraddress));
 	    
-	    GetterImplementation g = new GetterImplementation(this);
+	    timer.enter("GETTING");
+	    GetterImplementation g = new GetterImplementation(this, context);
 	    g.addUCI(uci);
 	    @SuppressWarnings("rawtypes")
-		Future f = ThreadExecutor.SharedInstance().submit(g);
+		Future f = context.getExecutor().submit(g);
 	    this.setData(((Map<String, Serializable>) f.get()));
+	    complete=true;
+	    gotten =g.getFailures().isEmpty();
+	    if(!gotten)
+	    {
+	    	reason = g.getFailures().values().iterator().next();
+	    }
 	    
 		} catch (Exception e) 
 		{
 	    	reason = REASON.INTERNAL_ERROR;
-			complete=(futureDHT.isCompleted());
+			complete=(futureDHT != null && futureDHT.isCompleted());
 			gotten =false;
 			this.setData(new HashMap<String, Serializable>());
-			DHTReason = futureDHT.getFailedReason();
+			DHTReason = futureDHT == null ? e.getMessage() : futureDHT.getFailedReason();
+			timer.finish(gotten);
 			return this;
 
 		}
 	
+		timer.finish(gotten);
 		return this;
 	}
 
@@ -285,13 +340,21 @@ implements BaseFutureListener<FutureDHT>, FuturePrimitive
 
 	@Override
 	public void setLookuplistener(PrimitiveListener lookuplistener) {
-       this.getListener = lookuplistener;		
+       this.getListener = timer.wrap(lookuplistener);		
 	}
 
 	public Map<String, Serializable> getData() {
 		return data;
 	}
 
+	/**
+	 * Returns the trace context of the current phase, carried by the
+	 * GetMessage sent on behalf of this getter.
+	 */
+	TraceContext getTraceContext() {
+		return timer.getTraceContext();
+	}
+
 	private void setData(Map<String, Serializable> data) {
 		this.data = data;
 	}
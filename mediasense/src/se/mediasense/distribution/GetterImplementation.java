@@ -17,30 +17,32 @@
 package se.mediasense.distribution;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 
-import se.mediasense.disseminationlayer.disseminationcore.DisseminationCore;
+import se.mediasense.disseminationlayer.communication.DestinationNotReachableException;
 import se.mediasense.messages.GetMessage;
 import se.mediasense.messages.MediaSenseListener;
 import se.mediasense.messages.MediaSenseMessage;
 import se.mediasense.messages.NotifyMessage;
-import se.mediasense.util.MediaSenseConstants;
+import se.mediasense.util.MediaSenseContext;
 
 public final class GetterImplementation implements MediaSenseListener, Callable<Map<String, Serializable>>
 {
 
-    private final P2PCommunication communication = (P2PCommunication) MediaSenseConstants.COMMUNICATION;
-    private final DisseminationCore disseminationcore = MediaSenseConstants.DISSEMINATIONCORE;
+    private final MediaSenseContext context;
     private final HashMap<String, UCI> getqueue = new HashMap<String, UCI>();
     private final HashMap<String, java.io.Serializable> getresults = new HashMap<String, java.io.Serializable>();
+    private final HashMap<String, Getter.REASON> getfailures = new HashMap<String, Getter.REASON>();
     private Getter getter = null;
 
-    public GetterImplementation(Getter _getter)
+    public GetterImplementation(Getter _getter, MediaSenseContext _context)
     {
     	getter = _getter;
+    	context = _context;
     }
 
     public Map<String, Serializable> call()
@@ -48,27 +50,46 @@ public final class GetterImplementation implements MediaSenseListener, Callable<
 
         startGet();
 
+        //UCIs whose owners have not answered within the adaptive timeout
+        //fail, they are left out of the results
+        long start = System.nanoTime();
+        long timeout = context.getTimeouts().getTimeout("notify");
         synchronized (getqueue)
         {
-            while (!getqueue.isEmpty())
+            long deadline = System.currentTimeMillis() + timeout;
+            long left = timeout;
+            while (!getqueue.isEmpty() && left > 0)
             {
                 try
                 {
-                    getqueue.wait();
+                    getqueue.wait(left);
                 } catch (InterruptedException ex)
                 {
                 }
+                left = deadline - System.currentTimeMillis();
             }
-            
-            if(getter!=null)
+            if (getqueue.isEmpty())
             {
-            	getter.completeAsynchronousGet(getresults);
-            	
+                context.getTimeouts().record("notify", start);
             }
-
+            else
+            {
+                context.getTimeouts().recordTimeout("notify", timeout);
+            }
+            //late answers are dropped
+            for (String u : getqueue.keySet())
+            {
+                getfailures.put(u, Getter.REASON.INTERNAL_ERROR);
+            }
+            getqueue.clear();
         }
 
-        disseminationcore.removeListener(NotifyMessage.TYPE, this);
+        context.getDisseminationCore().removeListener(NotifyMessage.TYPE, this);
+
+        if(getter!=null)
+        {
+        	getter.completeAsynchronousGet(getresults, getfailures);
+        }
 
         return getresults;
     }
@@ -96,46 +117,65 @@ public final class GetterImplementation implements MediaSenseListener, Callable<
 
     
 
+    /**
+     * Returns the UCIs which could not be gotten and why, once the get has
+     * completed.
+     */
+    public Map<String, Getter.REASON> getFailures()
+    {
+        return getfailures;
+    }
+
+    /**
+     * Listens for the answers before sending the GetMessages, so that an
+     * answer from a fast or local owner cannot be missed. UCIs whose owners
+     * cannot be reached fail at once.
+     */
     private void startGet()
     {
 
-        if(getter==null)
+        context.getDisseminationCore().registerListener(NotifyMessage.TYPE, this);
+        List<UCI> pending;
+        synchronized (getqueue)
         {
-            disseminationcore.registerListener(NotifyMessage.TYPE, this);
+            pending = new ArrayList<UCI>(getqueue.values());
         }
-        else
+        for (UCI u : pending)
         {
-           
-
-        }    
-        for (UCI u : getqueue.values())
-        {
-            MediaSenseMessage msg = new GetMessage(u, u.getOwner(), MediaSenseConstants.LOCALHOST);
-         
-                communication.sendMessage(msg);
-   
+            MediaSenseMessage msg = new GetMessage(u, u.getOwner(), context.getLocalHost());
+            if (getter != null)
+            {
+                msg.setTraceContext(getter.getTraceContext());
+            }
+            try
+            {
+                context.getCommunication().sendMessage(msg);
+            } catch (DestinationNotReachableException e)
+            {
+                //the owner cannot answer, so the get does not wait for it
+                synchronized (getqueue)
+                {
+                    getqueue.remove(u.getUciAsString());
+                    getfailures.put(u.getUciAsString(), Getter.REASON.PEER_DOES_NOT_EXIST);
+                    getqueue.notify();
+                }
+            }
         }
     }
 
     private void completeGet(NotifyMessage _msg)
     {
 
-        if (getqueue.containsKey(_msg.getUCI().getUciAsString()))
+        synchronized (getqueue)
         {
-
-            getresults.put(_msg.getUCI().getUciAsString(), _msg.getResource());
-
-            getqueue.remove(_msg.getUCI().getUciAsString());
-
-
-            synchronized (getqueue)
+            if (getqueue.remove(_msg.getUCI().getUciAsString()) != null)
             {
 
+                getresults.put(_msg.getUCI().getUciAsString(), _msg.getResource());
+
                 getqueue.notify();
 
             }
-
-
         }
 
     }
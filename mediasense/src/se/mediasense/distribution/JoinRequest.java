@@ -0,0 +1,29 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a joining node to the peer it joined through. A bootstrap node
+ * answers with a sample of the healthy peers it knows, as a list of
+ * {@link net.tomp2p.peers.PeerAddress}, or null when it is busy.
+ */
+public final class JoinRequest implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+}
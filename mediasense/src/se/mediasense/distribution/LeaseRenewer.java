@@ -0,0 +1,278 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.simple.JSONObject;
+
+import net.tomp2p.futures.FutureDHT;
+import net.tomp2p.p2p.Peer;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.Data;
+import se.mediasense.metrics.MetricsRegistry;
+import se.mediasense.util.Configuration;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * Keeps the leases of the records owned by this node alive.
+ * <p>UCI records, prefix index entries and the host address record are all
+ * written with a TTL of <i>registrationleaseseconds</i>. Every third of a lease
+ * the renewer re-puts all of them in batches of <i>leaserenewalbatch</i>
+ * UCIs, and purges the expired records held by the local storage. An UCI
+ * whose record another host has taken over is dropped, not overwritten.
+ * When a node dies its records stop being renewed and disappear from the
+ * overlay within one lease.
+ * A batch which does not complete within the put timeout does not hold up
+ * the next; its records are put again at the next renewal.
+ * <p>Readers use {@link #isNearlyExpired(JSONObject)} to skip records which
+ * have missed a renewal, since their owner is most likely gone. The expiry in
+ * a record is on the clock of its owner, so it is compared with a margin of
+ * <i>leaseskewmillis</i> for the clocks of the owner and the reader to differ;
+ * the record itself expires on the TTL the storage keeps.
+ */
+public final class LeaseRenewer implements Runnable
+{
+	public static final int DEFAULT_SKEW_MILLIS = 30000;
+	private static final long RECOVERY_POLL_MILLIS = 100;
+	private final MediaSenseContext context;
+	private final Set<String> owned = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private Thread renewer = null;
+	private volatile boolean running = false;
+	private volatile boolean recovering = false;
+
+	public LeaseRenewer(MediaSenseContext _context)
+	{
+		context = _context;
+	}
+
+
+	/**
+	 * Returns the lease given to records written by this node, 0 when leases
+	 * are disabled.
+	 */
+	public int getLeaseSeconds()
+	{
+		return context.getConfiguration().getLeaseSeconds();
+	}
+
+	/**
+	 * Builds the record stored under the hash of an UCI owned by this node.
+	 */
+	@SuppressWarnings("unchecked")
+	JSONObject createRecord(String uci)
+	{
+		Configuration config = context.getConfiguration();
+		JSONObject obj = new JSONObject();
+		obj.put("key", Number160.createHash(uci).toString());
+		obj.put("uci", uci);
+		obj.put("host", config.getHostID());
+		int lease = config.getLeaseSeconds();
+		if (lease > 0)
+		{
+			obj.put("expires", System.currentTimeMillis() + lease * 1000L);
+			obj.put("lease", lease);
+		}
+		return obj;
+	}
+
+	/**
+	 * Checks whether a record has less than a quarter of its lease left, as
+	 * far as the clocks of its owner and this node agree within
+	 * <i>leaseskewmillis</i>. A live owner renews every third of a lease, so
+	 * such a record has missed at least one renewal. Records written without
+	 * a lease never expire.
+	 */
+	public boolean isNearlyExpired(JSONObject record)
+	{
+		Object expires = record.get("expires");
+		//the lease of the owner, that of this node for records of older nodes
+		Object lease = record.get("lease");
+		long millis = lease instanceof Number ? ((Number) lease).longValue() * 1000L : getLeaseSeconds() * 1000L;
+		if (!(expires instanceof Number) || millis <= 0)
+		{
+			return false;
+		}
+		long skew = context.getConfiguration().getIntProperty("leaseskewmillis", DEFAULT_SKEW_MILLIS);
+		return ((Number) expires).longValue() + skew - System.currentTimeMillis() < millis / 4;
+	}
+
+	/**
+	 * Starts renewing the UCIs registered by this node, including those
+	 * recovered from the journal, which are put again at once since their
+	 * records may have expired while the node was down.
+	 */
+	public synchronized void start()
+	{
+		if (running || getLeaseSeconds() <= 0)
+		{
+			return;
+		}
+		Set<String> journalled = context.getJournal().getRegistrations();
+		owned.addAll(journalled);
+		recovering = !journalled.isEmpty();
+		running = true;
+		renewer = new Thread(this, context.getName() == null ? "mediasense-lease" : "mediasense-lease-" + context.getName());
+		renewer.setDaemon(true);
+		renewer.start();
+	}
+
+	public synchronized void stop()
+	{
+		running = false;
+		if (renewer != null)
+		{
+			renewer.interrupt();
+			renewer = null;
+		}
+	}
+
+	public void add(String uci)
+	{
+		owned.add(uci);
+	}
+
+	public void remove(String uci)
+	{
+		owned.remove(uci);
+	}
+
+	@Override
+	public void run()
+	{
+		while (running)
+		{
+			try
+			{
+				Thread.sleep(recovering ? RECOVERY_POLL_MILLIS : getLeaseSeconds() * 1000L / 3);
+			} catch (InterruptedException e)
+			{
+				continue;
+			}
+			if (!running || context.getPeer() == null)
+			{
+				continue;
+			}
+			try
+			{
+				recovering = false;
+				context.getPeer().getPeerBean().getStorage().checkTimeout();
+				renew();
+			} catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Re-puts the host address record, then every owned UCI record and its
+	 * prefix index entries, waiting for each batch, for at most the put
+	 * timeout, before issuing the next. The records of a batch are read
+	 * first: a record which expired is put again only if absent, and one
+	 * which another host has registered meanwhile is no longer owned. Those
+	 * which cannot be read in time are renewed at the next renewal.
+	 */
+	private void renew() throws IOException
+	{
+		Configuration config = context.getConfiguration();
+		Peer peer = context.getPeer();
+		int batchsize = config.getLeaseRenewalBatch();
+		Number160 hostkey = Number160.createHash(config.getHostID());
+		List<FutureDHT> batch = new ArrayList<FutureDHT>(batchsize);
+		batch.add(context.getTimeouts().track("put", peer.put(hostkey).setData(new Data(peer.getPeerAddress()).setTTLSeconds(config.getLeaseSeconds())).start()));
+		await(batch);
+
+		List<String> ucis = new ArrayList<String>(owned);
+		for (int from = 0; from < ucis.size(); from += batchsize)
+		{
+			List<String> chunk = ucis.subList(from, Math.min(ucis.size(), from + batchsize));
+			List<FutureDHT> gets = new ArrayList<FutureDHT>(chunk.size());
+			for (String uci : chunk)
+			{
+				gets.add(context.getTimeouts().track("get", peer.get(Number160.createHash(uci)).start()));
+			}
+			context.getTimeouts().awaitAll("get", gets);
+			for (int i = 0; i < chunk.size(); i++)
+			{
+				renew(chunk.get(i), gets.get(i), batch);
+			}
+			await(batch);
+		}
+	}
+
+	/**
+	 * Adds the puts renewing one UCI to the batch, given the lookup of its
+	 * record.
+	 */
+	private void renew(String uci, FutureDHT found, List<FutureDHT> batch)
+	{
+		if (!found.isCompleted())
+		{
+			return;
+		}
+		Configuration config = context.getConfiguration();
+		Peer peer = context.getPeer();
+		boolean absent = found.isFailed();
+		if (!absent && !isOwn(found))
+		{
+			owned.remove(uci);
+			context.getJournal().logDelete(uci);
+			MetricsRegistry.getSharedInstance().counter(context.getName() == null ? "lease.lost" : "lease." + context.getName() + ".lost").inc();
+			System.err.println("lease of " + uci + " lost, the UCI is registered by another host");
+			return;
+		}
+		try
+		{
+			Data data = new Data(createRecord(uci)).setTTLSeconds(config.getLeaseSeconds());
+			batch.add(context.getTimeouts().track("put", peer.put(Number160.createHash(uci)).setPutIfAbsent(absent).setData(data).start()));
+		} catch (IOException e)
+		{
+			//the other records are renewed all the same
+			e.printStackTrace();
+			return;
+		}
+		for (FutureDHT put : context.getPrefixIndex().index(uci))
+		{
+			batch.add(context.getTimeouts().track("put", put));
+		}
+	}
+
+	private boolean isOwn(FutureDHT found)
+	{
+		try
+		{
+			Object record = found.getData().getObject();
+			return record instanceof JSONObject && context.getConfiguration().getHostID().equals(((JSONObject) record).get("host"));
+		} catch (Exception e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private void await(List<FutureDHT> batch)
+	{
+		context.getTimeouts().awaitAll("put", batch);
+		batch.clear();
+	}
+}
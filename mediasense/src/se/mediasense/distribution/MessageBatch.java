@@ -0,0 +1,97 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import se.mediasense.messages.MediaSenseMessage;
+
+/**
+ * Envelope for several messages sent to the same node in one request. Each
+ * message is serialized on its own, so one which cannot be decoded does not
+ * lose the others.
+ */
+public final class MessageBatch implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	private final ArrayList<byte[]> frames = new ArrayList<byte[]>();
+	private transient int bytes = 0;
+
+	/**
+	 * Serializes a message, or a {@link CompressedMessage}.
+	 * @return the encoded message
+	 * @throws IOException if the message cannot be serialized
+	 */
+	public static byte[] encode(Serializable msg) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		oos.writeObject(msg);
+		oos.close();
+		return out.toByteArray();
+	}
+
+	public void add(byte[] frame)
+	{
+		frames.add(frame);
+		bytes += frame.length;
+	}
+
+	public int size()
+	{
+		return frames.size();
+	}
+
+	/**
+	 * Returns the encoded size of the messages added on this side.
+	 */
+	public int getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * Decodes the messages, decompressing those sent compressed, and skipping
+	 * those which cannot be decoded.
+	 */
+	public List<MediaSenseMessage> getMessages()
+	{
+		List<MediaSenseMessage> messages = new ArrayList<MediaSenseMessage>(frames.size());
+		for (byte[] frame : frames)
+		{
+			try
+			{
+				MediaSenseMessage msg = Compression.unwrap(new ObjectInputStream(new ByteArrayInputStream(frame)).readObject());
+				if (msg != null)
+				{
+					messages.add(msg);
+				}
+			} catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.peers.PeerAddress;
+import se.mediasense.messages.MediaSenseMessage;
+import se.mediasense.metrics.MetricsRegistry;
+import se.mediasense.util.Configuration;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * Coalesces the messages sent to the same node, in the manner of the group
+ * commit of the {@link se.mediasense.util.Journal}.
+ * <p>There is at most one send in flight per destination. Messages sent
+ * meanwhile are queued, and the next send carries all of them in one
+ * {@link MessageBatch}, so that a burst of notifications to one node costs
+ * one request and one acknowledgement instead of one each. A batch holds at
+ * most <i>batchmaxmessages</i> messages and is split into envelopes of at
+ * most <i>batchmaxbytes</i> bytes. With <i>batchlingermillis</i> set, a batch
+ * which is not full waits that long for more messages before it is sent; by
+ * default it is sent at once.
+ * <p>Callers block until their message has been acknowledged, as before, and
+ * the caller whose message is oldest sends the batch.
+ * <p>Control messages have outboxes of their own, so that they never wait
+ * behind a batch of data to the same node, and are not held back by the
+ * credits of the destination, since the destination handles them apart.
+ */
+public final class MessageBatcher
+{
+	public static final int DEFAULT_MAX_MESSAGES = Configuration.DEFAULT_BATCH_MESSAGES;
+	public static final int DEFAULT_MAX_BYTES = Configuration.DEFAULT_BATCH_BYTES;
+	/**
+	 * The size returned for a message shed since the destination granted no
+	 * credits for it, as opposed to -1 for one not delivered.
+	 */
+	public static final int SHED = -2;
+	private final MediaSenseContext context;
+	private final ConnectionPool pool;
+	private final Compression compression;
+	private final FlowControl flow;
+	private final ConcurrentHashMap<PeerAddress, Outbox> outboxes = new ConcurrentHashMap<PeerAddress, Outbox>();
+	private final ConcurrentHashMap<PeerAddress, Outbox> controloutboxes = new ConcurrentHashMap<PeerAddress, Outbox>();
+
+	/**
+	 * @param _pool the connections the messages are sent on
+	 * @param _compression the compression of the messages, negotiated per
+	 * destination
+	 * @param _flow the credits granted by the destinations
+	 */
+	public MessageBatcher(MediaSenseContext _context, ConnectionPool _pool, Compression _compression, FlowControl _flow)
+	{
+		context = _context;
+		pool = _pool;
+		compression = _compression;
+		flow = _flow;
+	}
+
+
+	/**
+	 * Sends a message, together with the other messages queued for the same
+	 * destination, and waits for the acknowledgement.
+	 * @return the encoded size of the message, -1 if it was not delivered or
+	 * {@link #SHED} if it was shed
+	 */
+	public int send(PeerAddress destination, MediaSenseMessage msg)
+	{
+		boolean control = msg.getPriority() == MediaSenseMessage.Priority.CONTROL;
+		ConcurrentHashMap<PeerAddress, Outbox> boxes = control ? controloutboxes : outboxes;
+		Outbox outbox = boxes.get(destination);
+		if (outbox == null)
+		{
+			Outbox created = new Outbox(destination, control);
+			outbox = boxes.putIfAbsent(destination, created);
+			if (outbox == null)
+			{
+				outbox = created;
+			}
+		}
+		return outbox.send(msg);
+	}
+
+	/**
+	 * The messages queued for one destination. The closed batches are full
+	 * and wait to be sent in order, the open one is still being filled.
+	 */
+	private final class Outbox
+	{
+		private final PeerAddress destination;
+		private final boolean control;
+		private FlowControl.Credits credits = null;
+		private final LinkedList<Batch> closed = new LinkedList<Batch>();
+		private Batch open = new Batch();
+		private boolean sending = false;
+
+		Outbox(PeerAddress _destination, boolean _control)
+		{
+			destination = _destination;
+			control = _control;
+		}
+
+		int send(MediaSenseMessage msg)
+		{
+			int max = context.getConfiguration().getBatchMaxMessages();
+			Batch mine;
+			int index;
+			synchronized (this)
+			{
+				mine = open;
+				index = mine.add(msg);
+				if (mine.messages.size() >= max)
+				{
+					closed.add(mine);
+					open = new Batch();
+					notifyAll();
+				}
+				while (!mine.done && sending)
+				{
+					try
+					{
+						wait();
+					} catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+				}
+				if (mine.done)
+				{
+					return mine.sizes[index];
+				}
+				sending = true;
+			}
+			try
+			{
+				lead(mine, max);
+			} finally
+			{
+				synchronized (this)
+				{
+					//a waiting sender takes over the batches still queued
+					sending = false;
+					notifyAll();
+				}
+			}
+			return mine.sizes[index];
+		}
+
+		/**
+		 * Sends the queued batches in order until the given one is done.
+		 */
+		private void lead(Batch mine, int max)
+		{
+			long linger = context.getConfiguration().getBatchLingerMillis();
+			while (!mine.done)
+			{
+				Batch next;
+				synchronized (this)
+				{
+					if (closed.isEmpty())
+					{
+						long deadline = System.currentTimeMillis() + linger;
+						long left = linger;
+						while (open.messages.size() < max && left > 0)
+						{
+							try
+							{
+								wait(left);
+							} catch (InterruptedException e)
+							{
+								Thread.currentThread().interrupt();
+								break;
+							}
+							left = deadline - System.currentTimeMillis();
+						}
+					}
+					if (closed.isEmpty())
+					{
+						next = open;
+						open = new Batch();
+					}
+					else
+					{
+						next = closed.removeFirst();
+					}
+				}
+				//looked up per batch, the credits of an idle destination are dropped
+				credits = control ? null : flow.credits(destination);
+				next.sizes = new int[next.messages.size()];
+				int from = 0;
+				boolean finished = false;
+				try
+				{
+					while (from < next.messages.size())
+					{
+						//no more of the batch than the destination has room for
+						int k = credits == null ? next.messages.size() - from : credits.acquire(next.messages.size() - from);
+						if (k == 0)
+						{
+							Arrays.fill(next.sizes, from, next.messages.size(), SHED);
+							break;
+						}
+						transmit(next, from, from + k);
+						from += k;
+					}
+					finished = true;
+				} catch (RuntimeException e)
+				{
+					//such as the overlay peer gone, the next batches are tried all the same
+					e.printStackTrace();
+				} finally
+				{
+					if (!finished)
+					{
+						Arrays.fill(next.sizes, from, next.messages.size(), -1);
+					}
+					//the senders of the batch must not wait for it forever
+					synchronized (this)
+					{
+						next.done = true;
+						notifyAll();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Sends the messages from..to of a batch, a single message as it is and
+		 * more as envelopes. Messages large enough are compressed if the
+		 * destination supports it. A single message which had to be encoded to
+		 * tell is sent in an envelope of its own, so that it is not encoded
+		 * twice.
+		 */
+		private void transmit(Batch batch, int from, int to)
+		{
+			List<MediaSenseMessage> messages = batch.messages.subList(from, to);
+			PayloadCodec codec = compression.negotiate(destination);
+			if (messages.size() == 1)
+			{
+				Object payload = messages.get(0);
+				if (codec != null)
+				{
+					try
+					{
+						byte[] frame = MessageBatch.encode(messages.get(0));
+						CompressedMessage compressed = compression.compress(messages.get(0), frame, codec);
+						if (compressed != null)
+						{
+							payload = compressed;
+						}
+						else
+						{
+							MessageBatch envelope = new MessageBatch();
+							envelope.add(frame);
+							payload = envelope;
+						}
+					} catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				}
+				FutureResponse fr = pool.send(destination, payload);
+				batch.sizes[from] = acknowledged(fr) ? (int) fr.getRequest().getLength() : -1;
+				return;
+			}
+			Configuration config = context.getConfiguration();
+			int maxbytes = config.getBatchMaxBytes();
+			List<MessageBatch> envelopes = new ArrayList<MessageBatch>();
+			List<List<Integer>> members = new ArrayList<List<Integer>>();
+			MessageBatch envelope = null;
+			for (int i = 0; i < messages.size(); i++)
+			{
+				byte[] frame;
+				try
+				{
+					frame = MessageBatch.encode(messages.get(i));
+					CompressedMessage compressed = compression.compress(messages.get(i), frame, codec);
+					if (compressed != null)
+					{
+						frame = MessageBatch.encode(compressed);
+					}
+				} catch (IOException e)
+				{
+					e.printStackTrace();
+					batch.sizes[from + i] = -1;
+					continue;
+				}
+				if (envelope == null || (envelope.size() > 0 && envelope.getBytes() + frame.length > maxbytes))
+				{
+					envelope = new MessageBatch();
+					envelopes.add(envelope);
+					members.add(new ArrayList<Integer>());
+				}
+				envelope.add(frame);
+				batch.sizes[from + i] = frame.length;
+				members.get(members.size() - 1).add(Integer.valueOf(i));
+			}
+			List<FutureResponse> sent = new ArrayList<FutureResponse>(envelopes.size());
+			for (MessageBatch e : envelopes)
+			{
+				sent.add(pool.send(destination, e));
+			}
+			MetricsRegistry metrics = MetricsRegistry.getSharedInstance();
+			for (int k = 0; k < sent.size(); k++)
+			{
+				metrics.counter("message.batch.envelopes").inc();
+				metrics.histogram("message.batch.messages").record(envelopes.get(k).size());
+				if (!acknowledged(sent.get(k)))
+				{
+					for (Integer i : members.get(k))
+					{
+						batch.sizes[from + i.intValue()] = -1;
+					}
+				}
+			}
+		}
+
+		private boolean acknowledged(FutureResponse fr)
+		{
+			try
+			{
+				context.getTimeouts().await("send", fr);
+				if (credits != null)
+				{
+					credits.update(fr);
+				}
+				return fr.isSuccess();
+			} catch (IOException e)
+			{
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Messages sent together, with the encoded size of each once sent.
+	 */
+	private static final class Batch
+	{
+		private final List<MediaSenseMessage> messages = new ArrayList<MediaSenseMessage>();
+		private int[] sizes = null;
+		private boolean done = false;
+
+		int add(MediaSenseMessage msg)
+		{
+			messages.add(msg);
+			return messages.size() - 1;
+		}
+	}
+}
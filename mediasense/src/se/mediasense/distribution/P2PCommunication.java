@@ -1,89 +1,226 @@
 package se.mediasense.distribution;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.net.Inet4Address;
+import java.io.ObjectInputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.tomp2p.connection.Bindings;
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureDHT;
 import net.tomp2p.futures.FutureDiscover;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.p2p.Peer;
 import net.tomp2p.p2p.PeerMaker;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number480;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.replication.Replication;
 import net.tomp2p.rpc.ObjectDataReply;
 import net.tomp2p.storage.Data;
 import net.tomp2p.storage.ReplicationStorage;
 import net.tomp2p.storage.StorageDisk;
+import net.tomp2p.storage.StorageGeneric;
 import se.mediasense.disseminationlayer.communication.Communication;
+import se.mediasense.disseminationlayer.communication.DestinationNotReachableException;
 import se.mediasense.disseminationlayer.communication.MediaSenseHost;
+import se.mediasense.futures.FutureStartup;
 import se.mediasense.messages.MediaSenseMessage;
-import se.mediasense.util.MediaSenseConstants;
-import se.mediasense.util.ThreadExecutor;
+import se.mediasense.metrics.FlightEvents;
+import se.mediasense.metrics.MetricsRegistry;
+import se.mediasense.tracing.Span;
+import se.mediasense.tracing.Tracer;
+import se.mediasense.util.Configuration;
+import se.mediasense.util.MediaSenseContext;
 
 public class P2PCommunication extends Communication implements ObjectDataReply
 {
 	
-	private static final Communication SHARED_INSTANCE = new P2PCommunication();
-	private static String bootstrapaddress;
-	private static int bootstrapport;
-	private static int localhostport;
-	private static boolean initialized = false;
-	private static P2PMediaSenseHost localhost;
-	public static Peer peer = null;
+	public static final int DEFAULT_PROBE_MILLIS = 3000;
+	public static final int DEFAULT_RETRIES = Configuration.DEFAULT_SEND_RETRIES;
+	public static final int DEFAULT_BACKOFF_MILLIS = Configuration.DEFAULT_BACKOFF_MILLIS;
+	public static final int DEFAULT_BACKOFF_MAX_MILLIS = Configuration.DEFAULT_BACKOFF_MAX_MILLIS;
+	private final MediaSenseContext context;
+	private String bootstrapaddress;
+	private int bootstrapport;
+	private int localhostport;
+	private volatile boolean initialized = false;
+	private volatile P2PMediaSenseHost localhost;
+	private volatile Peer nodepeer = null;
+	private final PeerCache peercache;
+	private final ConnectionPool pool;
+	private final Compression compression;
+	private final FlowControl flow;
+	private final CircuitBreakers breakers;
+	private final DuplicateFilter duplicates;
+	private final Random backoffrandom = new Random();
+	private final ThreadLocal<Boolean> receiving = new ThreadLocal<Boolean>();
+	private final MessageBatcher batcher;
+	private final DatagramTransport datagrams;
+	private final SharedMemoryTransport ipc;
+	private volatile BootStrapService bootstrapservice = null;
+	private volatile boolean refusing = false;
+	private final AtomicInteger refused = new AtomicInteger();
 	
 
     
-	protected P2PCommunication()
+	public P2PCommunication(MediaSenseContext _context)
     {
+        context = _context;
         bootstrapaddress = null;
-        File theDir = new File(MediaSenseConstants.rootdir);
-        if (!theDir.exists())
-        {
-          theDir.mkdir();           
-        }
-        theDir = new File("overlay");
-        if (!theDir.exists())
-        {
-          theDir.mkdir();           
-        }
-        theDir = new File("overlay" + System.getProperty("file.separator") + "persistence");
-        if (!theDir.exists())
-        {
-          theDir.mkdir();          
-        }
-        theDir = new File("overlay" + System.getProperty("file.separator") + "replication");
-        if (!theDir.exists())
-        {
-          theDir.mkdir();           
-        }
+        peercache = new PeerCache(context);
+        pool = new ConnectionPool(context);
+        compression = new Compression(context);
+        flow = new FlowControl(context, pool);
+        breakers = new CircuitBreakers(context);
+        duplicates = new DuplicateFilter(context);
+        batcher = new MessageBatcher(context, pool, compression, flow);
+        datagrams = new DatagramTransport(context, this, compression);
+        ipc = new SharedMemoryTransport(context, this);
     }
 
     
-	public static Communication getSharedInstance()
-    {
-        return SHARED_INSTANCE;
-    }
+
+	/**
+	 * Returns the overlay peer of this node, null before it is initialized.
+	 */
+	public Peer getPeer()
+	{
+		return nodepeer;
+	}
+
+	/**
+	 * Publishes the peer and local host once the node is up.
+	 */
+	private void setPeer(Peer _peer, int datagramport)
+	{
+		nodepeer = _peer;
+		localhost = new P2PMediaSenseHost(_peer.getPeerID().toString(), _peer.getPeerAddress(), datagramport, Compression.getAdvertisedCodecs());
+		ipc.open(localhost.getHostID());
+	}
 
 	
 	@Override
 	public void shutdown() 
 	{
-		peer.shutdown();
+		if (bootstrapservice != null)
+		{
+			bootstrapservice.stop();
+		}
+		datagrams.close();
+		ipc.close();
+		flow.close();
+		pool.close();
+		peercache.save(nodepeer.getPeerBean().getPeerMap().getAll());
+		nodepeer.shutdown();
 	}
 
 
 
+	/**
+	 * Sends a message as a datagram if its type is listed in
+	 * <i>datagramtypes</i>, and on the reliable path otherwise.
+	 */
 	@Override
-	public void sendMessage(MediaSenseMessage _msg)
+	public void sendMessage(MediaSenseMessage _msg) throws DestinationNotReachableException
 	{
-		
-		PeerAddress paddress = ((P2PMediaSenseHost)_msg.getDestination()).getAddress();
-		FutureResponse fr = peer.sendDirect(paddress).setObject(_msg).start();	
-		fr.awaitUninterruptibly();
+		sendMessage(_msg, datagrams.isDatagramType(_msg.getMsgType()) ? UDP : P2P);
+	}
+
+	/**
+	 * Sends a message as a datagram, without waiting for anything, for
+	 * {@link #UDP}, and on the reliable path otherwise. A message which does
+	 * not fit in a datagram takes the reliable path anyway.
+	 * <p>A message to this node itself is received as a copy, like one from
+	 * another node, so the sender may go on changing it. A message to a node of another process on this host goes through
+	 * shared memory if it can, see {@link SharedMemoryTransport}.
+	 * <p>On the reliable path an idempotent message which fails is sent again
+	 * up to <i>sendretries</i> times, after a random backoff of up to
+	 * <i>sendbackoffmillis</i>, doubled per retry up to
+	 * <i>sendbackoffmaxmillis</i>. It is not retried when sent from a thread
+	 * receiving messages, such as a task the executor had no room for run on
+	 * a network thread, which must not sleep. A destination which keeps
+	 * failing is cut off by its circuit breaker, see {@link CircuitBreakers};
+	 * a message shed since the destination had no room for it does not count
+	 * as a failure, nor is it retried.
+	 * @throws DestinationNotReachableException if the message was not
+	 * delivered, or was not sent since the destination is down
+	 */
+	@Override
+	public void sendMessage(MediaSenseMessage _msg, int transport) throws DestinationNotReachableException
+	{
+		P2PMediaSenseHost destination = (P2PMediaSenseHost)_msg.getDestination();
+		PeerAddress paddress = destination.getAddress();
+		long start = System.nanoTime();
+		Object jfr = FlightEvents.ENABLED ? FlightEvents.begin(FlightEvents.Type.MESSAGE_SEND) : null;
+		Span span = Tracer.getSharedInstance().startSpan("send." + _msg.getMsgType(), _msg.getTraceContext());
+		if (span != null)
+		{
+			//the receiver's spans become children of the send
+			_msg.setTraceContext(span.getContext());
+		}
+		int size;
+		DestinationNotReachableException failure = null;
+		if (isLocal(destination))
+		{
+			MetricsRegistry.getSharedInstance().counter("message.loopback").inc();
+			try
+			{
+				size = loopback(_msg);
+			} catch (Exception e)
+			{
+				size = -1;
+				failure = new DestinationNotReachableException("could not copy " + _msg.getMsgType() + " to this node: " + e);
+			}
+		}
+		else
+		{
+			compression.learn(destination);
+			size = ipc.send(destination, _msg);
+			if (size < 0 && transport == UDP)
+			{
+				size = datagrams.send(destination, _msg);
+			}
+			if (size < 0)
+			{
+				try
+				{
+					size = sendReliably(paddress, _msg);
+				} catch (DestinationNotReachableException e)
+				{
+					failure = e;
+				}
+			}
+		}
+		recordOutbound(_msg, size, start);
+		if (jfr != null)
+		{
+			FlightEvents.commit(jfr, FlightEvents.uciOf(_msg), _msg.getMsgType(), size);
+		}
+		if (span != null)
+		{
+			span.setMsgType(_msg.getMsgType()).setHost(context.getHostID()).end();
+		}
+		if (failure != null)
+		{
+			throw failure;
+		}
 
 //		PeerAddress p = ((P2PMediaSenseHost)_msg.getDestination()).getAddress();
 //		FutureResponse fr = peer.sendDirect(p).setObject("hello").start();
@@ -110,6 +247,81 @@ public class P2PCommunication extends Communication implements ObjectDataReply
 				
 	}
 
+	/**
+	 * Sends a message on the reliable path, retrying an idempotent message
+	 * with a jittered exponential backoff, unless the circuit breaker of the
+	 * destination is open.
+	 * @return the encoded size of the message
+	 */
+	private int sendReliably(PeerAddress paddress, MediaSenseMessage _msg) throws DestinationNotReachableException
+	{
+		CircuitBreakers.Breaker breaker = breakers.breaker(paddress);
+		Configuration config = context.getConfiguration();
+		int retries = _msg.isIdempotent() && receiving.get() == null ? config.getSendRetries() : 0;
+		long backoff = config.getSendBackoffMillis();
+		long maxbackoff = config.getSendBackoffMaxMillis();
+		for (int attempt = 0; ; attempt++)
+		{
+			if (!breaker.allow())
+			{
+				throw new DestinationNotReachableException(paddress + " is down", true);
+			}
+			int size = batcher.send(paddress, _msg);
+			if (size >= 0)
+			{
+				breaker.success();
+				return size;
+			}
+			if (size == MessageBatcher.SHED)
+			{
+				//the destination is alive but busy, sending more only adds to it
+				throw new DestinationNotReachableException(paddress + " had no room for " + _msg.getMsgType(), false);
+			}
+			breaker.failure();
+			if (attempt >= retries)
+			{
+				throw new DestinationNotReachableException(paddress + " did not acknowledge " + _msg.getMsgType(), breaker.isOpen());
+			}
+			MetricsRegistry.getSharedInstance().counter("message.out." + _msg.getMsgType() + ".retries").inc();
+			try
+			{
+				//full jitter, so that the senders to a recovering node spread out
+				Thread.sleep(1 + (long) (backoffrandom.nextDouble() * Math.min(maxbackoff, backoff << attempt)));
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new DestinationNotReachableException("interrupted sending to " + paddress);
+			}
+		}
+	}
+
+	/**
+	 * Counts an outbound message per type. The size is the length of the
+	 * encoded request as reported by the overlay, of the message within its
+	 * batch or of its datagram, -1 if it was not delivered.
+	 */
+	private void recordOutbound(MediaSenseMessage _msg, int size, long start)
+	{
+		MetricsRegistry metrics = MetricsRegistry.getSharedInstance();
+		String prefix = "message.out." + _msg.getMsgType();
+		metrics.histogram(prefix + ".latency").recordSince(start);
+		if (size >= 0)
+		{
+			metrics.counter(prefix + ".count").inc();
+			metrics.counter(prefix + ".bytes").add(size);
+		}
+		else
+		{
+			metrics.counter(prefix + ".failed").inc();
+		}
+	}
+
+	private boolean isLocal(MediaSenseHost destination)
+	{
+		P2PMediaSenseHost local = localhost;
+		return local != null && local.getHostID().equals(destination.getHostID());
+	}
+
 	@Override
 	public MediaSenseHost getLocalHost() 
 	{
@@ -119,7 +331,7 @@ public class P2PCommunication extends Communication implements ObjectDataReply
 	@Override
 	public boolean isBehindNat() 
 	{
-		if(peer.getPeerAddress().isFirewalledTCP() || peer.getPeerAddress().isFirewalledUDP())
+		if(nodepeer.getPeerAddress().isFirewalledTCP() || nodepeer.getPeerAddress().isFirewalledUDP())
 		{
 			return true;
 		}
@@ -133,45 +345,115 @@ public class P2PCommunication extends Communication implements ObjectDataReply
 	@Override
 	public void init(String bootstrap, int bootport, int localport) 
 	{
-		bootstrapaddress = bootstrap;
-		bootstrapport = bootport;
+		init(Collections.singletonList(InetSocketAddress.createUnresolved(bootstrap, bootport)), localport);
+	}
+
+	/**
+	 * Joins the overlay through the first peer which answers. The peers cached
+	 * from the last run are probed first, all in parallel, and the bootstrap
+	 * nodes only if none of them answers within <i>bootstrapprobemillis</i>.
+	 * The peers known once joined replace the cache.
+	 */
+	@Override
+	public void init(List<InetSocketAddress> bootstraps, int localport) 
+	{
 	    localhostport = localport;
 	    	    
 	    Bindings b = new Bindings();
-	    InetAddress address = null;
+	    FutureStartup startup = context.getStartup();
 		try 
 		{		
-			String node = MediaSenseConstants.getProperty("mediasensehostid");
-			
-			peer = new PeerMaker(Number160.createHash(node)).setPorts(localhostport).setEnableIndirectReplication(true).setEnableIndirectReplication(true).setBindings(b).makeAndListen();
+			String node = context.getConfiguration().getHostID();
+			Future<StorageGeneric> storage = openStorage();
+			long phase = System.nanoTime();
+			Peer peer = new PeerMaker(Number160.createHash(node)).setPorts(localhostport).setEnableIndirectReplication(true).setEnableIndirectReplication(true).setBindings(b).makeAndListen();
 			peer.setObjectDataReply(this);
 			peer.getDirectDataRPC().setReply(this);
-			peer.getPeerBean().getReplicationStorage().setReplicationFactor(Integer.parseInt(MediaSenseConstants.getProperty("overlayreplicationfactor")));
-		    peer.getPeerBean().setStorage(new StorageDisk("overlay" + System.getProperty("file.separator") + "persistence"));
+			peer.getPeerBean().getReplicationStorage().setReplicationFactor(context.getConfiguration().getReplicationFactor());
+			startup.phase("peer", phase);
 //		    ReplicationStorage rs = new StorageDisk("overlay" + System.getProperty("file.separator") + "replication");
 //		    peer.getPeerBean().setReplicationStorage(new Replication(rs, peer.getPeerAddress(), peer.getPeerBean().getPeerMap(), 1));
-			address = Inet4Address.getByName(bootstrapaddress);	    
-		    FutureDiscover futureDiscover = peer.discover().setInetAddress( address ).setPorts( bootstrapport ).start();
-			futureDiscover.await();
-			localhost = new P2PMediaSenseHost(peer.getPeerID().toString(), peer.getPeerAddress());
-			MediaSenseConstants.LOCALHOST = localhost;
+			phase = System.nanoTime();
+			InetSocketAddress responder = probe(peer, peercache.load());
+			if (responder == null)
+			{
+				responder = probe(peer, bootstraps);
+			}
+			if (responder == null)
+			{
+				peer.shutdown();
+				throw new IOException("no bootstrap node answered " + bootstraps);
+			}
+			startup.phase("probe", phase);
+			bootstrapaddress = responder.getAddress().getHostAddress();
+			bootstrapport = responder.getPort();
+			phase = System.nanoTime();
+		    FutureDiscover futureDiscover = peer.discover().setInetAddress( responder.getAddress() ).setPorts( bootstrapport ).start();
+			context.getTimeouts().await("discover", futureDiscover);
+			startup.phase("discover", phase);
+			phase = System.nanoTime();
+			requestSample(peer, futureDiscover.getReporter());
+			startup.phase("sample", phase);
+			peercache.save(peer.getPeerBean().getPeerMap().getAll());
+			useStorage(peer, storage);
+			setPeer(peer, datagrams.open());
 			initialized=true;		    
-		    Data data=null;
-			try {
-				data = new Data(peer.getPeerAddress());
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-			}
-		    Number160 nr1 = Number160.createHash(node);
-		    FutureDHT futureDHT = P2PCommunication.peer.put(nr1).setData(data).start();
-		    futureDHT.awaitUninterruptibly();
+			publishAddress(peer, node, context.getConfiguration().getLeaseSeconds());
 		
 		} catch (Exception e) 
 		{
 			e.printStackTrace();
+			startup.setFailed(e);
 		}
 	   	   		
 	}
+
+	/**
+	 * Pings all the endpoints at once and returns the first which answers.
+	 * @return the endpoint, resolved, or null if none answered in time
+	 */
+	private InetSocketAddress probe(Peer peer, List<InetSocketAddress> endpoints) throws InterruptedException
+	{
+		if (endpoints.isEmpty())
+		{
+			return null;
+		}
+		final CountDownLatch answered = new CountDownLatch(1);
+		final AtomicReference<InetSocketAddress> first = new AtomicReference<InetSocketAddress>();
+		final AtomicInteger pending = new AtomicInteger(endpoints.size());
+		for (InetSocketAddress endpoint : endpoints)
+		{
+			final InetSocketAddress resolved;
+			try
+			{
+				resolved = new InetSocketAddress(InetAddress.getByName(endpoint.getHostName()), endpoint.getPort());
+			} catch (UnknownHostException e)
+			{
+				e.printStackTrace();
+				if (pending.decrementAndGet() == 0)
+				{
+					answered.countDown();
+				}
+				continue;
+			}
+			peer.ping().setInetAddress(resolved.getAddress()).setPort(resolved.getPort()).setTcpPing().start().addListener(new BaseFutureAdapter<BaseFuture>()
+			{
+				public void operationComplete(BaseFuture f) throws Exception
+				{
+					if (f.isSuccess() && first.compareAndSet(null, resolved))
+					{
+						answered.countDown();
+					}
+					else if (pending.decrementAndGet() == 0)
+					{
+						answered.countDown();
+					}
+				}
+			});
+		}
+		answered.await(context.getConfiguration().getIntProperty("bootstrapprobemillis", DEFAULT_PROBE_MILLIS), TimeUnit.MILLISECONDS);
+		return first.get();
+	}
 	
 	
 	public void initBootStrap(int bootport) 
@@ -179,44 +461,233 @@ public class P2PCommunication extends Communication implements ObjectDataReply
 
 	    	    
 	    Bindings b = new Bindings();
+	    FutureStartup startup = context.getStartup();
 		try 
 		{		
-			String node = MediaSenseConstants.getProperty("mediasensehostid");
-			
-			peer = new PeerMaker(Number160.createHash(node)).setPorts(bootport).setEnableIndirectReplication(true).setBindings(b).makeAndListen();
+			String node = context.getConfiguration().getHostID();
+			Future<StorageGeneric> storage = openStorage();
+			long phase = System.nanoTime();
+			Peer peer = new PeerMaker(Number160.createHash(node)).setPorts(bootport).setEnableIndirectReplication(true).setBindings(b).makeAndListen();
 		    peer.getConfiguration().setBehindFirewall(false);
-			localhost = new P2PMediaSenseHost(peer.getPeerID().toString(), peer.getPeerAddress());
-			MediaSenseConstants.LOCALHOST = localhost;
-			initialized=true;
 			peer.setObjectDataReply(this);
-			peer.getPeerBean().getReplicationStorage().setReplicationFactor(Integer.parseInt(MediaSenseConstants.getProperty("overlayreplicationfactor")));
-		    peer.getPeerBean().setStorage(new StorageDisk("overlay" + System.getProperty("file.separator") + "persistence"));
+			peer.getDirectDataRPC().setReply(this);
+			peer.getPeerBean().getReplicationStorage().setReplicationFactor(context.getConfiguration().getReplicationFactor());
+			startup.phase("peer", phase);
 		  // ReplicationStorage rs = new StorageDisk("overlay" + System.getProperty("file.separator") + "replication");
 		  // peer.getPeerBean().setReplicationStorage(new Replication(rs, peer.getPeerAddress(), peer.getPeerBean().getPeerMap(), 1));
-		    
-		    Data data=null;
-			try {
-				data = new Data(peer.getPeerAddress());
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		    Number160 nr1 = Number160.createHash(node);
-		    FutureDHT futureDHT = P2PCommunication.peer.put(nr1).setData(data).start();
-		    futureDHT.awaitUninterruptibly();
-		    
-		    
-		    System.out.println(peer.getPeerBean().getReplicationStorage().isReplicationEnabled());
-
-
+		    useStorage(peer, storage);
+			setPeer(peer, datagrams.open());
+			bootstrapservice = new BootStrapService(context, peer);
+			bootstrapservice.start();
+			initialized=true;
+		    publishAddress(peer, node, 0);
 		
 		} catch (Exception e) 
 		{
 			e.printStackTrace();
+			startup.setFailed(e);
 		}
 	   	   		
 	}
 
+	/**
+	 * Asks the peer this node joined through for a sample of the peers it
+	 * knows, and adds them to the peer map. Only bootstrap nodes answer.
+	 */
+	private void requestSample(Peer peer, PeerAddress bootstrap)
+	{
+		if (bootstrap == null)
+		{
+			return;
+		}
+		FutureResponse fr = peer.sendDirect(bootstrap).setObject(new JoinRequest()).start();
+		if (!fr.awaitUninterruptibly(context.getConfiguration().getIntProperty("bootstrapprobemillis", DEFAULT_PROBE_MILLIS)) || !fr.isSuccess()
+				|| fr.getBuffer() == null || fr.getBuffer().readableBytes() == 0)
+		{
+			return;
+		}
+		//the object can only be decoded once
+		Object sample = fr.getObject();
+		if (!(sample instanceof List))
+		{
+			return;
+		}
+		for (Object o : (List<?>) sample)
+		{
+			if (o instanceof PeerAddress)
+			{
+				peer.getPeerBean().getPeerMap().peerFound((PeerAddress) o, bootstrap);
+			}
+		}
+	}
+
+	/**
+	 * Starts opening the overlay storage on disk in the background, so that it
+	 * overlaps with binding the peer and the discovery.
+	 * @return the storage being opened, or null if the overlay records are
+	 * kept in memory (<i>overlaystorage=memory</i>), as for short-lived nodes
+	 * such as those of a simulation
+	 */
+	private Future<StorageGeneric> openStorage()
+	{
+		if ("memory".equals(context.getConfiguration().getProperty("overlaystorage")))
+		{
+			return null;
+		}
+		return context.getExecutor().submit(new Callable<StorageGeneric>()
+		{
+			public StorageGeneric call() throws Exception
+			{
+				long phase = System.nanoTime();
+				File persistence = new File(context.getOverlayDir(), "persistence");
+				if (!persistence.exists())
+				{
+					persistence.mkdirs();
+				}
+				File replication = new File(context.getOverlayDir(), "replication");
+				if (!replication.exists())
+				{
+					replication.mkdir();
+				}
+				StorageGeneric disk = new StorageDisk(persistence.getPath());
+				context.getStartup().phase("storage", phase);
+				return disk;
+			}
+		});
+	}
+
+	/**
+	 * Waits for the storage on disk and swaps it in. Records the peer received
+	 * in memory meanwhile are copied over, unless the disk already holds a
+	 * record under the same key.
+	 */
+	private void useStorage(Peer peer, Future<StorageGeneric> storage) throws Exception
+	{
+		if (storage == null)
+		{
+			return;
+		}
+		long phase = System.nanoTime();
+		StorageGeneric disk = storage.get();
+		StorageGeneric memory = peer.getPeerBean().getStorage();
+		peer.getPeerBean().setStorage(disk);
+		for (Map.Entry<Number480, Data> e : new TreeMap<Number480, Data>(memory.map()).entrySet())
+		{
+			Number480 key = e.getKey();
+			if (!disk.contains(key.getLocationKey(), key.getDomainKey(), key.getContentKey()))
+			{
+				disk.put(key.getLocationKey(), key.getDomainKey(), key.getContentKey(), e.getValue());
+			}
+		}
+		context.getStartup().phase("storagewait", phase);
+	}
+
+	/**
+	 * Puts the address of this node under the hash of its host ID without
+	 * waiting for it. The startup future completes when the put does.
+	 */
+	private void publishAddress(Peer peer, String node, int lease) throws IOException
+	{
+		final long phase = System.nanoTime();
+	    Data data = new Data(peer.getPeerAddress()).setTTLSeconds(lease);
+	    peer.put(Number160.createHash(node)).setData(data).start().addListener(new BaseFutureAdapter<FutureDHT>()
+	    {
+	    	public void operationComplete(FutureDHT f) throws Exception
+	    	{
+	    		FutureStartup startup = context.getStartup();
+	    		startup.phase("publish", phase);
+	    		if (f.isSuccess())
+	    		{
+	    			startup.setReady();
+	    		}
+	    		else
+	    		{
+	    			startup.setFailed(f.getFailedReason());
+	    		}
+	    	}
+	    });
+	}
+
+	/**
+	 * Puts every record held by the local storage back into the overlay, so
+	 * that the next closest peers hold a copy before this node leaves. The
+	 * puts are issued in batches of <i>leaserenewalbatch</i>, and no new batch
+	 * is started after the deadline.
+	 * @param deadline the deadline, in {@link System#currentTimeMillis()} time
+	 * @return the number of records handed off
+	 */
+	public int handOff(long deadline)
+	{
+		Peer peer = nodepeer;
+		if (peer == null || peer.getPeerBean().getPeerMap().size() == 0)
+		{
+			return 0;
+		}
+		int batchsize = context.getConfiguration().getLeaseRenewalBatch();
+		List<FutureDHT> batch = new ArrayList<FutureDHT>(batchsize);
+		int handed = 0;
+		for (Map.Entry<Number480, Data> e : getStoredRecords().entrySet())
+		{
+			if (System.currentTimeMillis() >= deadline)
+			{
+				break;
+			}
+			Number480 key = e.getKey();
+			batch.add(peer.put(key.getLocationKey()).setDomainKey(key.getDomainKey()).setData(key.getContentKey(), e.getValue()).start());
+			if (batch.size() >= batchsize)
+			{
+				handed += await(batch, deadline);
+			}
+		}
+		return handed + await(batch, deadline);
+	}
+
+	/**
+	 * Stops handing received messages to the dissemination core, so that
+	 * none is queued on an executor being drained. The messages received
+	 * since are counted, see {@link #getRefusedMessages()}.
+	 */
+	public void stopReceiving()
+	{
+		refusing = true;
+	}
+
+	/**
+	 * Returns the number of messages received since {@link #stopReceiving()}.
+	 */
+	public int getRefusedMessages()
+	{
+		return refused.get();
+	}
+
+	/**
+	 * Returns a copy of the records held by the local storage, empty before
+	 * the node is initialized.
+	 */
+	public Map<Number480, Data> getStoredRecords()
+	{
+		Peer peer = nodepeer;
+		if (peer == null)
+		{
+			return new TreeMap<Number480, Data>();
+		}
+		return new TreeMap<Number480, Data>(peer.getPeerBean().getStorage().map());
+	}
+
+	private int await(List<FutureDHT> batch, long deadline)
+	{
+		int success = 0;
+		for (FutureDHT f : batch)
+		{
+			if (f.awaitUninterruptibly(Math.max(1, deadline - System.currentTimeMillis())) && f.isSuccess())
+			{
+				success++;
+			}
+		}
+		batch.clear();
+		return success;
+	}
+
 	public boolean isInitialized() {
 		return initialized;
 	}
@@ -225,9 +696,54 @@ public class P2PCommunication extends Communication implements ObjectDataReply
 	@Override
 	public Object reply(PeerAddress sender, Object request) throws Exception 
 	{
-		if (request instanceof MediaSenseMessage)
+		if (request instanceof JoinRequest)
+		{
+			BootStrapService service = bootstrapservice;
+			return service == null ? null : service.handshake(sender);
+		}
+		if (request instanceof CreditGrant)
+		{
+			//a sender out of credits asks for more
+			return flow.grant(sender);
+		}
+		if (request instanceof MessageBatch)
+		{
+			boolean control = true;
+			for (MediaSenseMessage msg : ((MessageBatch) request).getMessages())
+			{
+				control &= msg.getPriority() == MediaSenseMessage.Priority.CONTROL;
+				receive(msg);
+			}
+			//control messages are not limited, their senders ignore grants
+			return control ? null : flow.grant(sender);
+		}
+		else if (request instanceof MediaSenseMessage || request instanceof CompressedMessage)
          {
-             final MediaSenseMessage msmsg = (MediaSenseMessage) request;
+             MediaSenseMessage msg = Compression.unwrap(request);
+             receive(msg);
+             return msg.getPriority() == MediaSenseMessage.Priority.CONTROL ? null : flow.grant(sender);
+         }		return null;
+	}
+
+	/**
+	 * Hands a received message to the dissemination core on the executor, on
+	 * its control pool for control messages, and remembers the codecs its
+	 * source supports. A message received before is dropped, see
+	 * {@link DuplicateFilter}.
+	 */
+	void receive(final MediaSenseMessage msmsg)
+	{
+             if (refusing)
+             {
+                 refused.incrementAndGet();
+                 return;
+             }
+             if (duplicates.isDuplicate(msmsg))
+             {
+                 return;
+             }
+             countInbound(msmsg);
+             compression.learn(msmsg.getSource());
 
              Runnable r = new Runnable()
              {
@@ -235,13 +751,43 @@ public class P2PCommunication extends Communication implements ObjectDataReply
                  public void run()
                  {
 
-                     MediaSenseConstants.DISSEMINATIONCORE.handleMessage(msmsg);
+                     context.getDisseminationCore().handleMessage(msmsg);
                  }
              };
 
-             ThreadExecutor.SharedInstance().submit(r);
+             //a task run on this thread, if the executor is full, must not sleep
+             Boolean outer = receiving.get();
+             receiving.set(Boolean.TRUE);
+             try
+             {
+                 context.getExecutor().submit(r, msmsg.getPriority() == MediaSenseMessage.Priority.CONTROL);
+             } finally
+             {
+                 if (outer == null)
+                 {
+                     receiving.remove();
+                 }
+             }
+	}
 
-         }		return null;
+	/**
+	 * Receives a copy of a message sent to this node itself.
+	 * @return the encoded size of the message
+	 */
+	private int loopback(MediaSenseMessage _msg) throws IOException, ClassNotFoundException
+	{
+		byte[] encoded = MessageBatch.encode(_msg);
+		receive((MediaSenseMessage) new ObjectInputStream(new ByteArrayInputStream(encoded)).readObject());
+		return encoded.length;
+	}
+
+	private void countInbound(MediaSenseMessage msmsg)
+	{
+             MetricsRegistry.getSharedInstance().counter("message.in." + msmsg.getMsgType() + ".count").inc();
+             if (FlightEvents.ENABLED)
+             {
+                 FlightEvents.commit(FlightEvents.begin(FlightEvents.Type.MESSAGE_RECEIVE), FlightEvents.uciOf(msmsg), msmsg.getMsgType(), -1);
+             }
 	}
 
 
@@ -24,27 +24,21 @@ import net.tomp2p.futures.FutureDHT;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.storage.Data;
-import se.mediasense.disseminationlayer.disseminationcore.DisseminationCore;
 import se.mediasense.disseminationlayer.lookupservice.LookupService;
 import se.mediasense.messages.MediaSenseListener;
 import se.mediasense.messages.MediaSenseMessage;
 import se.mediasense.util.LookupException;
-import se.mediasense.util.MediaSenseConstants;
+import se.mediasense.util.MediaSenseContext;
 
 public final class P2PLookupService implements LookupService, MediaSenseListener, Runnable
 {
-	private final P2PCommunication communication = (P2PCommunication)MediaSenseConstants.COMMUNICATION;
-    private final DisseminationCore disseminationcore = MediaSenseConstants.DISSEMINATIONCORE;
-    public static final LookupService SHARED_INSTANCE = new P2PLookupService();
+	private final MediaSenseContext context;
 
-    protected P2PLookupService()
+    public P2PLookupService(MediaSenseContext _context)
     {
+        context = _context;
     }
     
-    public static LookupService getSharedInstance()
-    {
-        return SHARED_INSTANCE;
-    }
 
 	@Override
 	public void run() {
@@ -65,12 +59,10 @@ public final class P2PLookupService implements LookupService, MediaSenseListener
 		Data data = null;
 	
 		try {
-	    FutureDHT futureDHT = P2PCommunication.peer.get(Number160.createHash(uci)).start();
-	    futureDHT.awaitUninterruptibly();
+	    FutureDHT futureDHT = context.getTimeouts().get(Number160.createHash(uci));
 	    data = futureDHT.getData();
 	    
-	    futureDHT = P2PCommunication.peer.get(data.getPeerId()).start();
-	    futureDHT.awaitUninterruptibly();	       
+	    futureDHT = context.getTimeouts().get(data.getPeerId());
 	    peeraddress = (PeerAddress)futureDHT.getData().getObject();
 	    
 	    Uci = new UCI(data.getObject().toString(), new P2PMediaSenseHost(peeraddress.getID().toString(), peeraddress));
@@ -92,12 +84,10 @@ public final class P2PLookupService implements LookupService, MediaSenseListener
 		Data data = null;
 	
 		try {
-	    FutureDHT futureDHT = P2PCommunication.peer.get(Number160.createHash(uci)).start();
-	    futureDHT.awaitUninterruptibly();
+	    FutureDHT futureDHT = context.getTimeouts().get(Number160.createHash(uci));
 	    data = futureDHT.getData();
 	    
-	    futureDHT = P2PCommunication.peer.get(data.getPeerId()).start();
-	    futureDHT.awaitUninterruptibly();	       
+	    futureDHT = context.getTimeouts().get(data.getPeerId());
 	    peeraddress = (PeerAddress)futureDHT.getData().getObject();
 	    
 	    Uci = new UCI(data.getObject().toString(), new P2PMediaSenseHost(peeraddress.getID().toString(), peeraddress));
@@ -120,7 +110,7 @@ public final class P2PLookupService implements LookupService, MediaSenseListener
 				Data data;
 				data = new Data(uci.toString());
 			    Number160 key = Number160.createHash(uci.toString());
-			    FutureDHT futureDHT = P2PCommunication.peer.put(key).setPutIfAbsent(true).setData(data).start();
+			    FutureDHT futureDHT = context.getPeer().put(key).setPutIfAbsent(true).setData(data).start();
 			    futureDHT.addListener(new BaseFutureAdapter<FutureDHT>() 
 			    {
 		                 public void operationComplete(FutureDHT f) throws Exception 
@@ -141,10 +131,13 @@ public final class P2PLookupService implements LookupService, MediaSenseListener
 			Data data;
 			data = new Data(uci.toString());
 		    Number160 key = Number160.createHash(uci.toString());
-		    FutureDHT futureDHT = P2PCommunication.peer.put(key).setPutIfAbsent(true).setData(data).start();
-		    if(!(futureDHT.awaitUninterruptibly(10000)))
+		    FutureDHT futureDHT = context.getPeer().put(key).setPutIfAbsent(true).setData(data).start();
+		    try
+		    {
+		    	context.getTimeouts().await("put", futureDHT);
+		    } catch (IOException e)
 		    {
-		    	throw new LookupException(uci, futureDHT.getFailedReason().toString());
+		    	throw new LookupException(uci, e.getMessage());
 		    }
 		    
 		} catch (IOException e) {
@@ -161,7 +154,7 @@ public final class P2PLookupService implements LookupService, MediaSenseListener
 				Data data;
 				data = new Data(uci.toString());
 			    Number160 key = Number160.createHash(uci.toString());
-			    FutureDHT futureDHT = P2PCommunication.peer.remove(key).start();
+			    FutureDHT futureDHT = context.getPeer().remove(key).start();
 			    futureDHT.addListener(new BaseFutureAdapter<FutureDHT>() 
 			    {
 		                 public void operationComplete(FutureDHT f) throws Exception 
@@ -182,10 +175,13 @@ public final class P2PLookupService implements LookupService, MediaSenseListener
 			Data data;
 			data = new Data(uci.toString());
 		    Number160 key = Number160.createHash(uci.toString());
-		    FutureDHT futureDHT = P2PCommunication.peer.remove(key).start();
-		    if(!(futureDHT.awaitUninterruptibly(10000)))
+		    FutureDHT futureDHT = context.getPeer().remove(key).start();
+		    try
 		    {
-		    	throw new LookupException(uci, futureDHT.getFailedReason().toString());
+		    	context.getTimeouts().await("remove", futureDHT);
+		    } catch (IOException e)
+		    {
+		    	throw new LookupException(uci, e.getMessage());
 		    }
 		    
 		} catch (IOException e) {
@@ -202,7 +198,7 @@ public final class P2PLookupService implements LookupService, MediaSenseListener
 				Data data;
 				data = new Data(uci.toString());
 			    Number160 key = Number160.createHash(uci.toString());
-			    FutureDHT futureDHT = P2PCommunication.peer.put(key).setData(data).start();
+			    FutureDHT futureDHT = context.getPeer().put(key).setData(data).start();
 			    futureDHT.addListener(new BaseFutureAdapter<FutureDHT>() 
 			    {
 		                 public void operationComplete(FutureDHT f) throws Exception 
@@ -224,10 +220,13 @@ public final class P2PLookupService implements LookupService, MediaSenseListener
 			Data data;
 			data = new Data(uci.toString());
 		    Number160 key = Number160.createHash(uci.toString());
-		    FutureDHT futureDHT = P2PCommunication.peer.put(key).setData(data).start();
-		    if(!(futureDHT.awaitUninterruptibly(10000)))
+		    FutureDHT futureDHT = context.getPeer().put(key).setData(data).start();
+		    try
+		    {
+		    	context.getTimeouts().await("put", futureDHT);
+		    } catch (IOException e)
 		    {
-		    	throw new LookupException(uci, futureDHT.getFailedReason().toString());
+		    	throw new LookupException(uci, e.getMessage());
 		    }
 		    
 		} catch (IOException e) {
@@ -26,12 +26,27 @@ public class P2PMediaSenseHost implements MediaSenseHost, Serializable
 	private static final long serialVersionUID = 7518844019250489965L;
 	private final String ID;
     private final PeerAddress address;
+    private final int datagramport;
+    private final String[] codecs;
   
 
     public P2PMediaSenseHost(String _ID, PeerAddress _address)
+    {
+        this(_ID, _address, 0, null);
+    }
+
+    /**
+     * @param _datagramport the port the host receives datagrams on, 0 if it
+     * does not
+     * @param _codecs the compression codecs the host supports, as returned by
+     * {@link Compression#getAdvertisedCodecs()}, null if unknown
+     */
+    public P2PMediaSenseHost(String _ID, PeerAddress _address, int _datagramport, String[] _codecs)
     {
         ID = _ID;
         address = _address;
+        datagramport = _datagramport;
+        codecs = _codecs;
 
     }
 
@@ -47,5 +62,21 @@ public class P2PMediaSenseHost implements MediaSenseHost, Serializable
         return address;
     }
 
+    /**
+     * Returns the port the host receives datagrams on, 0 if it does not.
+     */
+    public int getDatagramPort()
+    {
+        return datagramport;
+    }
+
+    /**
+     * Returns the compression codecs the host supports, null if unknown.
+     */
+    public String[] getCodecs()
+    {
+        return codecs;
+    }
+
     
 }
@@ -0,0 +1,46 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.io.IOException;
+
+/**
+ * A compression algorithm for the messages and values sent to other nodes,
+ * registered with {@link Compression#register(PayloadCodec)}.
+ */
+public interface PayloadCodec
+{
+	/**
+	 * Returns the name under which nodes advertise and negotiate the codec.
+	 */
+	String getName();
+
+	/**
+	 * Compresses data against a dictionary.
+	 * @param dictionary the dictionary, or null
+	 * @return the compressed data
+	 */
+	byte[] compress(byte[] data, byte[] dictionary) throws IOException;
+
+	/**
+	 * Decompresses data compressed against the same dictionary.
+	 * @param length the length of the data before compression
+	 * @return the data
+	 * @throws IOException if the data is corrupt
+	 */
+	byte[] decompress(byte[] data, byte[] dictionary, int length) throws IOException;
+}
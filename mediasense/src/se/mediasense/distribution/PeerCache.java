@@ -0,0 +1,178 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.tomp2p.peers.PeerAddress;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * The peers this node was last connected to, kept in <i>system/peers</i> as
+ * one <tt>host:port</tt> per line. On the next start they are probed before
+ * the bootstrap nodes, so a restarting node joins through a peer it already
+ * knows and does not load the bootstrap nodes.
+ */
+public final class PeerCache
+{
+	public static final int DEFAULT_SIZE = 16;
+	private final MediaSenseContext context;
+	private final File theFile;
+
+	public PeerCache(MediaSenseContext _context)
+	{
+		context = _context;
+		theFile = new File(context.getSystemDir(), "peers");
+	}
+
+
+	/**
+	 * Parses a comma separated list of <tt>host:port</tt> endpoints, as in the
+	 * <i>bootstrapaddresses</i> property. Malformed entries are skipped.
+	 * @param endpoints the list, may be null
+	 * @return the endpoints, unresolved
+	 */
+	public static List<InetSocketAddress> parse(String endpoints)
+	{
+		List<InetSocketAddress> list = new ArrayList<InetSocketAddress>();
+		if (endpoints == null)
+		{
+			return list;
+		}
+		for (String entry : endpoints.split(","))
+		{
+			int colon = entry.lastIndexOf(':');
+			if (colon <= 0)
+			{
+				continue;
+			}
+			try
+			{
+				int port = Integer.parseInt(entry.substring(colon + 1).trim());
+				list.add(InetSocketAddress.createUnresolved(entry.substring(0, colon).trim(), port));
+			} catch (IllegalArgumentException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the cached peers, or an empty list if
+	 * nothing is cached.
+	 */
+	public List<InetSocketAddress> load()
+	{
+		StringBuilder endpoints = new StringBuilder();
+		if (!theFile.exists())
+		{
+			return parse(null);
+		}
+		BufferedReader in = null;
+		try
+		{
+			in = new BufferedReader(new FileReader(theFile));
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				endpoints.append(line).append(',');
+			}
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		} finally
+		{
+			close(in);
+		}
+		return parse(endpoints.toString());
+	}
+
+	/**
+	 * Replaces the cached peers. The file is written next to the old one and
+	 * renamed over it, so a crash leaves either list intact.
+	 * @param peers the peers, at most <i>peercachesize</i> of them are kept
+	 */
+	public void save(Collection<PeerAddress> peers)
+	{
+		int size = context.getConfiguration().getIntProperty("peercachesize", DEFAULT_SIZE);
+		Set<String> endpoints = new LinkedHashSet<String>();
+		for (PeerAddress p : peers)
+		{
+			if (endpoints.size() >= size)
+			{
+				break;
+			}
+			endpoints.add(p.getInetAddress().getHostAddress() + ":" + p.portTCP());
+		}
+		if (endpoints.isEmpty())
+		{
+			return;
+		}
+		File tmp = new File(theFile.getPath() + ".tmp");
+		PrintWriter out = null;
+		try
+		{
+			out = new PrintWriter(new FileWriter(tmp));
+			for (String endpoint : endpoints)
+			{
+				out.println(endpoint);
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(theFile))
+			{
+				theFile.delete();
+				tmp.renameTo(theFile);
+			}
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		} finally
+		{
+			if (out != null)
+			{
+				out.close();
+			}
+		}
+	}
+
+	private static void close(BufferedReader in)
+	{
+		if (in != null)
+		{
+			try
+			{
+				in.close();
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.tomp2p.futures.FutureDHT;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.Data;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * Distributed prefix index over the hierarchical UCI namespace.
+ * <p>Every registered UCI is stored once under each of its ancestor prefixes
+ * (the UCI cut after every '/'), using the prefix as the location key and the
+ * UCI as the content key. A prefix query is therefore a single DHT lookup of
+ * one bucket instead of a scan of the whole overlay.
+ * <p>Only the first <i>prefixindexdepth</i> levels are indexed, which bounds
+ * the number of puts per registration.
+ */
+public final class PrefixIndex
+{
+	private static final String LOCATION_PREFIX = "mediasense.prefix:";
+	private final MediaSenseContext context;
+
+	public PrefixIndex(MediaSenseContext _context)
+	{
+		context = _context;
+	}
+
+
+	/**
+	 * Adds the UCI to the bucket of every indexed ancestor prefix. The puts are
+	 * issued asynchronously, registration does not wait for the index. The
+	 * entries carry the registration lease and are renewed along with it.
+	 * @param uci the registered UCI
+	 * @return the puts, just started
+	 */
+	public List<FutureDHT> index(String uci)
+	{
+		Number160 contentkey = Number160.createHash(uci);
+		int lease = context.getConfiguration().getLeaseSeconds();
+		List<FutureDHT> puts = new ArrayList<FutureDHT>();
+		for (String prefix : prefixesOf(uci))
+		{
+			try
+			{
+				puts.add(context.getPeer().put(locationKey(prefix)).setData(contentkey, new Data(uci).setTTLSeconds(lease)).start());
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		return puts;
+	}
+
+	/**
+	 * Removes the UCI from the bucket of every indexed ancestor prefix.
+	 * @param uci the deleted UCI
+	 */
+	public void unindex(String uci)
+	{
+		Number160 contentkey = Number160.createHash(uci);
+		for (String prefix : prefixesOf(uci))
+		{
+			context.getPeer().remove(locationKey(prefix)).setContentKey(contentkey).start();
+		}
+	}
+
+	/**
+	 * Starts a digest lookup of the bucket for the given prefix, returning only
+	 * the content keys stored in it.
+	 * @param bucket a prefix ending with '/', see {@link #bucketOf(String)}
+	 */
+	FutureDHT digest(String bucket)
+	{
+		return context.getPeer().get(locationKey(bucket)).setDigest().start();
+	}
+
+	/**
+	 * Starts a lookup of the given content keys from the bucket for the given
+	 * prefix.
+	 */
+	FutureDHT fetch(String bucket, List<Number160> contentkeys)
+	{
+		return context.getPeer().get(locationKey(bucket)).setContentKeys(contentkeys).start();
+	}
+
+	/**
+	 * Returns the indexed ancestor prefixes of an UCI, shortest first.
+	 * "a/b/c" yields "a/" and "a/b/".
+	 */
+	public List<String> prefixesOf(String uci)
+	{
+		int depth = getDepth();
+		List<String> prefixes = new ArrayList<String>();
+		int idx = uci.indexOf('/');
+		while (idx >= 0 && idx < uci.length() - 1 && prefixes.size() < depth)
+		{
+			prefixes.add(uci.substring(0, idx + 1));
+			idx = uci.indexOf('/', idx + 1);
+		}
+		return prefixes;
+	}
+
+	/**
+	 * Returns the bucket which holds all UCIs starting with the given prefix,
+	 * i.e. the prefix cut after its last '/'. Returns null when the prefix does
+	 * not contain a complete path segment, or goes deeper than the index.
+	 */
+	public String bucketOf(String prefix)
+	{
+		int idx = prefix.lastIndexOf('/');
+		if (idx < 0)
+		{
+			return null;
+		}
+		String bucket = prefix.substring(0, idx + 1);
+		int levels = 0;
+		for (int i = 0; i < bucket.length(); i++)
+		{
+			if (bucket.charAt(i) == '/')
+			{
+				levels++;
+			}
+		}
+		return levels <= getDepth() ? bucket : null;
+	}
+
+	private Number160 locationKey(String prefix)
+	{
+		return Number160.createHash(LOCATION_PREFIX + prefix);
+	}
+
+	private int getDepth()
+	{
+		return context.getConfiguration().getPrefixIndexDepth();
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import se.mediasense.metrics.FlightEvents;
+import se.mediasense.metrics.MetricsRegistry;
+import se.mediasense.tracing.Span;
+import se.mediasense.tracing.TraceContext;
+import se.mediasense.tracing.Tracer;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * Records the latency of each phase of a primitive, its total latency and
+ * whether it succeeded, under <i>primitive.&lt;name&gt;.*</i> in the
+ * {@link se.mediasense.metrics.MetricsRegistry}.
+ * <p>When the primitive is sampled by the {@link se.mediasense.tracing.Tracer}
+ * the primitive and each of its phases are also recorded as spans.
+ * <p>A primitive counts as in flight on its node from its first phase until
+ * it finishes, which is what a draining node waits for.
+ */
+final class PrimitiveTimer
+{
+	private final String prefix;
+	private final long started = System.nanoTime();
+	private long phaseStarted = started;
+	private String phase = null;
+	private boolean finished = false;
+	private final Span root;
+	private Span phaseSpan = null;
+	private Object phaseEvent = null;
+	private String uci = null;
+	private final String host;
+	private final MediaSenseContext context;
+	private boolean inflight = false;
+
+	PrimitiveTimer(String primitive, MediaSenseContext _context)
+	{
+		prefix = "primitive." + primitive + ".";
+		context = _context;
+		host = context.getHostID();
+		root = Tracer.getSharedInstance().startTrace(prefix + "total");
+		if (root != null)
+		{
+			root.setHost(host);
+		}
+	}
+
+	/**
+	 * Tags the spans of this primitive with the UCI it works on.
+	 */
+	void setUCI(String _uci)
+	{
+		uci = _uci;
+		if (root != null)
+		{
+			root.setUCI(uci);
+		}
+	}
+
+	/**
+	 * Returns the context of the current phase, to be carried by the messages
+	 * sent by this primitive, or null if it is not traced.
+	 */
+	synchronized TraceContext getTraceContext()
+	{
+		if (phaseSpan != null)
+		{
+			return phaseSpan.getContext();
+		}
+		return root == null ? null : root.getContext();
+	}
+
+	/**
+	 * Ends the current phase, if any, and starts timing the next one.
+	 */
+	synchronized void enter(String next)
+	{
+		long now = System.nanoTime();
+		if (!inflight && next != null && !finished)
+		{
+			//in flight from the first phase until finished
+			inflight = true;
+			context.operationStarted();
+		}
+		if (phase != null)
+		{
+			MetricsRegistry.getSharedInstance().histogram(prefix + phase).recordSince(phaseStarted);
+		}
+		if (phaseSpan != null)
+		{
+			phaseSpan.end();
+			phaseSpan = null;
+		}
+		if (phaseEvent != null)
+		{
+			FlightEvents.commit(phaseEvent, uci, prefix + phase, -1);
+			phaseEvent = null;
+		}
+		phase = next;
+		phaseStarted = now;
+		if (next != null && root != null)
+		{
+			phaseSpan = Tracer.getSharedInstance().startSpan(prefix + next, root.getContext()).setHost(host);
+		}
+		if (next != null && FlightEvents.ENABLED)
+		{
+			phaseEvent = FlightEvents.begin(FlightEvents.Type.DHT_OPERATION);
+		}
+	}
+
+	/**
+	 * Ends the current phase and records the outcome. Only the first call has
+	 * any effect.
+	 */
+	synchronized void finish(boolean success)
+	{
+		if (finished)
+		{
+			return;
+		}
+		finished = true;
+		enter(null);
+		if (inflight)
+		{
+			context.operationFinished();
+		}
+		MetricsRegistry registry = MetricsRegistry.getSharedInstance();
+		registry.histogram(prefix + "total").recordSince(started);
+		registry.counter(prefix + (success ? "success" : "failure")).inc();
+		if (root != null)
+		{
+			root.end();
+		}
+	}
+
+	/**
+	 * Wraps the listener of an asynchronous primitive so the outcome is
+	 * recorded before the listener is called.
+	 */
+	PrimitiveListener wrap(final PrimitiveListener l)
+	{
+		if (l == null)
+		{
+			return null;
+		}
+		return new PrimitiveListener()
+		{
+			public void handleCompleted(FuturePrimitive futureprimitive)
+			{
+				finish(futureprimitive.isSuccess());
+				l.handleCompleted(futureprimitive);
+			}
+		};
+	}
+}
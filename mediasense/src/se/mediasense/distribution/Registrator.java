@@ -20,17 +20,19 @@ import java.io.IOException;
 
 import org.json.simple.JSONObject;
 
+import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.BaseFutureListener;
 import net.tomp2p.futures.FutureDHT;
 import net.tomp2p.p2p.Peer;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.storage.Data;
 import se.mediasense.distribution.Updater.REASON;
-import se.mediasense.util.MediaSenseConstants;
+import se.mediasense.util.MediaSenseContext;
 
 
 public class Registrator implements BaseFutureListener<FutureDHT>, FuturePrimitive
 {
+	private final MediaSenseContext context;
 	private String uci = null;
 	private PrimitiveListener lookuplistener = null;
 	private boolean complete = false;
@@ -48,53 +50,81 @@ public class Registrator implements BaseFutureListener<FutureDHT>, FuturePrimiti
 	private String DHTReason = "";
 	private STATE state = null;
 	private boolean forceregister = false;
+	private final PrimitiveTimer timer;
 	
 	
 	
 	public Registrator(String _uci)
 	{
+		this(_uci, MediaSenseContext.getDefault());
+	}
+
+	/**
+	 * Creates the primitive on the given node.
+	 */
+	public Registrator(String _uci, MediaSenseContext _context)
+	{
+		context = _context;
+		timer = new PrimitiveTimer("register", context);
 		uci = _uci;
+		timer.setUCI(uci);
 		
 	}
 
 	public void startAsynchronousRegistration(PrimitiveListener l)
 	{
-		
-		    state = STATE.DUPLICATE_CONTROL;		
-			futureDHT = P2PCommunication.peer.get(Number160.createHash(uci)).start();
+		    state = STATE.DUPLICATE_CONTROL;
+		    timer.enter(state.name());
+		    lookuplistener = timer.wrap(l);
+			futureDHT = context.getPeer().get(Number160.createHash(uci)).start();
 		    futureDHT.addListener(this);
-		    lookuplistener = l;
 
 	}
 
 	private void completeAsynchronousRegistration(FutureDHT future)
 	{
-	    state = STATE.REGISTRATION_COMPLETION;		
+	    state = STATE.REGISTRATION_COMPLETION;
+	    timer.enter(state.name());
 		Data data;
 		try {
 	    Number160 key = Number160.createHash(uci);
-		JSONObject obj=new JSONObject();
-		obj.put("key", key.toString());
-		obj.put("uci", uci);
-		obj.put("mediasensehost", MediaSenseConstants.LOCALHOST.getHostID());
-		data = new Data(obj);
+		data = new Data(context.getLeaseRenewer().createRecord(uci)).setTTLSeconds(context.getLeaseRenewer().getLeaseSeconds());
 	    if(future.isFailed())
 	    {
 	    
-		    futureDHT = P2PCommunication.peer.put(key).setPutIfAbsent(true).setData(data).start();
+		    futureDHT = context.getPeer().put(key).setPutIfAbsent(true).setData(data).start();
+		    futureDHT.addListener(new BaseFutureAdapter<FutureDHT>()
+		    {
+		    	public void operationComplete(FutureDHT f) throws Exception
+		    	{
+		    		if(f.isSuccess())
+		    		{
+		    			context.getPrefixIndex().index(uci);
+		    			context.getJournal().logRegister(uci);
+		    			context.getLeaseRenewer().add(uci);
+		    		}
+		    	}
+		    });
 			complete=(futureDHT.isCompleted());
 			registered =futureDHT.isSuccess();
-			peer = P2PCommunication.peer;
+			peer = context.getPeer();
 			DHTReason = futureDHT.getFailedReason();
 			lookuplistener.handleCompleted(this);
 
 	    }
 	    
+	    else if(isRecovered(future))
+	    {
+			complete=true;
+			registered =true;
+			peer = context.getPeer();
+			lookuplistener.handleCompleted(this);
+	    }
 	    else
 	    {
 			complete=(futureDHT.isCompleted());
 			registered =false;
-			peer = P2PCommunication.peer;
+			peer = context.getPeer();
 			DHTReason = futureDHT.getFailedReason();
 			reason = REASON.DUPLICATE;
 			lookuplistener.handleCompleted(this);
@@ -116,28 +146,40 @@ public class Registrator implements BaseFutureListener<FutureDHT>, FuturePrimiti
 	{
 		Data data;
 		try {
+	    state = STATE.DUPLICATE_CONTROL;
+	    timer.enter(state.name());
 	    Number160 key = Number160.createHash(uci.toString());
-		JSONObject obj=new JSONObject();
-		obj.put("key", key.toString());
-		obj.put("uci", uci);
-		obj.put("host", MediaSenseConstants.getProperty("mediasensehostid"));
-		data = new Data(obj);
-	    futureDHT = P2PCommunication.peer.get(Number160.createHash(uci)).start();
-	    futureDHT.awaitUninterruptibly();
+		data = new Data(context.getLeaseRenewer().createRecord(uci)).setTTLSeconds(context.getLeaseRenewer().getLeaseSeconds());
+	    futureDHT = context.getPeer().get(Number160.createHash(uci)).start();
+	    context.getTimeouts().await("get", futureDHT);
+	    state = STATE.REGISTRATION_COMPLETION;
+	    timer.enter(state.name());
 	    if(futureDHT.isFailed())
 	    {
-		    futureDHT = P2PCommunication.peer.put(key).setPutIfAbsent(true).setData(data).start();
-		    futureDHT.awaitUninterruptibly();  
+		    futureDHT = context.getPeer().put(key).setPutIfAbsent(true).setData(data).start();
+		    context.getTimeouts().await("put", futureDHT);
 			complete=(futureDHT.isCompleted());
 			registered =futureDHT.isSuccess();
-			peer = P2PCommunication.peer;
+			peer = context.getPeer();
 			DHTReason = futureDHT.getFailedReason();
+			if(registered)
+			{
+				context.getPrefixIndex().index(uci);
+				context.getJournal().logRegister(uci);
+				context.getLeaseRenewer().add(uci);
+			}
+	    }
+	    else if(isRecovered(futureDHT))
+	    {
+			complete=true;
+			registered =true;
+			peer = context.getPeer();
 	    }
 	    else
 	    {
 			complete=(futureDHT.isCompleted());
 			registered =false;
-			peer = P2PCommunication.peer;
+			peer = context.getPeer();
 			DHTReason = futureDHT.getFailedReason();
 			reason = REASON.DUPLICATE;
 	    	
@@ -148,12 +190,35 @@ public class Registrator implements BaseFutureListener<FutureDHT>, FuturePrimiti
 	    	reason = REASON.INTERNAL_ERROR;
 			complete=(futureDHT.isCompleted());
 			registered =false;
+		    timer.finish(registered);
 		    return this;
 		}	    
+	    timer.finish(registered);
 	    return this;
 	}
 
 
+	/**
+	 * Tells if the record found by the duplicate control is the one this
+	 * node registered before a restart, according to the journal, so that
+	 * registering it again the first time succeeds without a put. A record
+	 * of another host is a duplicate, whatever the journal holds; one which
+	 * expired meanwhile is put again as any new registration.
+	 */
+	private boolean isRecovered(FutureDHT found)
+	{
+		try
+		{
+			JSONObject record = (JSONObject) found.getData().getObject();
+			return context.getConfiguration().getHostID().equals(record.get("host")) && context.getJournal().reclaim(uci);
+		} catch (Exception e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+
 	@Override
 	public void exceptionCaught(Throwable t) throws Exception 
 	{
@@ -234,7 +299,7 @@ public class Registrator implements BaseFutureListener<FutureDHT>, FuturePrimiti
 	}
 
 	public void setLookuplistener(PrimitiveListener lookuplistener) {
-		this.lookuplistener = lookuplistener;
+		this.lookuplistener = timer.wrap(lookuplistener);
 	}
 	
 
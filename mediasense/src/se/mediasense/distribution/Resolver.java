@@ -24,11 +24,13 @@ import net.tomp2p.p2p.Peer;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.storage.Data;
+import se.mediasense.util.MediaSenseContext;
 
 
 
 public class Resolver implements BaseFutureListener<FutureDHT>, FuturePrimitive
 {
+	private final MediaSenseContext context;
 	private UCI uci = null;
 	private String suci=null;
 	private PrimitiveListener lookuplistener = null;
@@ -49,27 +51,39 @@ public class Resolver implements BaseFutureListener<FutureDHT>, FuturePrimitive
 	private STATE state = null;
 	private Data rpeer = null;
 	private Data ruci = null;
+	private final PrimitiveTimer timer;
 	
 	
 	
 	public Resolver(String _uci)
 	{
+		this(_uci, MediaSenseContext.getDefault());
+	}
+
+	/**
+	 * Creates the primitive on the given node.
+	 */
+	public Resolver(String _uci, MediaSenseContext _context)
+	{
+		context = _context;
+		timer = new PrimitiveTimer("resolve", context);
 		suci = _uci;
+		timer.setUCI(suci);
 		
 	}
 
 	public void startAsynchronousResolve(PrimitiveListener l)
 	{
+		    lookuplistener = timer.wrap(l);
 			resolveUCI();
-		    lookuplistener = l;
 	}
 	
 	
 	private void resolveUCI()
 	{
-		    state = STATE.RESOLVE_UCI;		
-			futureDHT = P2PCommunication.peer.get(Number160.createHash(suci)).start();
-		    futureDHT.addListener(this);		
+		    state = STATE.RESOLVE_UCI;
+		    timer.enter(state.name());
+			futureDHT = context.getTimeouts().get(Number160.createHash(suci), this);
 	}
 	
 	
@@ -79,6 +93,7 @@ public class Resolver implements BaseFutureListener<FutureDHT>, FuturePrimitive
 		 try 
 		 {
 		    state = STATE.RESOLVE_PEER;
+		    timer.enter(state.name());
 		    if(future.isFailed())
 		    {
 		    	reason = REASON.UCI_DOES_NOT_EXIST;
@@ -92,8 +107,17 @@ public class Resolver implements BaseFutureListener<FutureDHT>, FuturePrimitive
 		    {
 			    ruci = future.getData();
 			    JSONObject obj  = (JSONObject)ruci.getObject();
-				FutureDHT futureDHT = P2PCommunication.peer.get(Number160.createHash((String)obj.get("host"))).start();
-			    futureDHT.addListener(this);
+			    if(context.getLeaseRenewer().isNearlyExpired(obj))
+			    {
+			    	//the owner has stopped renewing, do not wait for it to time out
+			    	reason = REASON.PEER_DOES_NOT_EXIST;
+			    	complete=true;
+			    	resolved =false;
+			    	uci = new UCI(suci, null);
+			    	lookuplistener.handleCompleted(this);
+			    	return;
+			    }
+				context.getTimeouts().get(Number160.createHash((String)obj.get("host")), this);
 		    }
 		 } catch (Exception e) 
 		 {
@@ -122,7 +146,7 @@ public class Resolver implements BaseFutureListener<FutureDHT>, FuturePrimitive
 				complete=(futureDHT.isCompleted());
 				resolved =false;
 				DHTReason = futureDHT.getFailedReason();
-			    uci = new UCI(ruci.getObject().toString(), null);
+			    uci = new UCI(suci, null);
 			    lookuplistener.handleCompleted(this);
 	
 		    }
@@ -132,7 +156,8 @@ public class Resolver implements BaseFutureListener<FutureDHT>, FuturePrimitive
 				rpeer = future.getData();
 				resolved =true;
 				DHTReason = futureDHT.getFailedReason();
-			    uci = new UCI(ruci.getObject().toString(), new P2PMediaSenseHost(((PeerAddress)futureDHT.getData().getObject()).getID().toString(), (PeerAddress)futureDHT.getData().getObject()));
+			    PeerAddress peeraddress = (PeerAddress)rpeer.getObject();
+			    uci = new UCI(suci, new P2PMediaSenseHost(peeraddress.getID().toString(), peeraddress));
 				lookuplistener.handleCompleted(this);
 		    }		
 		
@@ -154,14 +179,25 @@ public class Resolver implements BaseFutureListener<FutureDHT>, FuturePrimitive
 		Data data = null;
 	
 		try {
-	    FutureDHT futureDHT = P2PCommunication.peer.get(Number160.createHash(suci)).start();
-	    futureDHT.awaitUninterruptibly();
+	    timer.enter("RESOLVE_UCI");
+	    FutureDHT futureDHT = context.getTimeouts().get(Number160.createHash(suci));
 	    data = futureDHT.getData(); 
 	    JSONObject obj = (JSONObject)data.getObject();
-	    futureDHT = P2PCommunication.peer.get(Number160.createHash((String)obj.get("host"))).start();
-	    futureDHT.awaitUninterruptibly();	       
+	    if(context.getLeaseRenewer().isNearlyExpired(obj))
+	    {
+	    	reason = REASON.PEER_DOES_NOT_EXIST;
+	    	complete=true;
+	    	resolved =false;
+	    	uci = new UCI(suci, null);
+	    	timer.finish(resolved);
+	    	return this;
+	    }
+	    timer.enter("RESOLVE_PEER");
+	    futureDHT = context.getTimeouts().get(Number160.createHash((String)obj.get("host")));
 	    peeraddress = (PeerAddress)futureDHT.getData().getObject();
-	    uci = new UCI(data.getObject().toString(), new P2PMediaSenseHost(peeraddress.getID().toString(), peeraddress));
+	    uci = new UCI(suci, new P2PMediaSenseHost(peeraddress.getID().toString(), peeraddress));
+	    complete=true;
+	    resolved =true;
 	    
 	    
 		} catch (Exception e) 
@@ -171,10 +207,12 @@ public class Resolver implements BaseFutureListener<FutureDHT>, FuturePrimitive
 			complete=false;
 			resolved =false;
 		    uci = new UCI(suci, null);
+			timer.finish(resolved);
 			return this;
 
 		}
 	
+		timer.finish(resolved);
 		return this;
 	}
 
@@ -262,7 +300,7 @@ public class Resolver implements BaseFutureListener<FutureDHT>, FuturePrimitive
 
 	@Override
 	public void setLookuplistener(PrimitiveListener lookuplistener) {
-       this.lookuplistener = lookuplistener;		
+       this.lookuplistener = timer.wrap(lookuplistener);		
 	}
 
 	public UCI getUci() {
@@ -0,0 +1,602 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.distribution;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+import se.mediasense.disseminationlayer.communication.MediaSenseHost;
+import se.mediasense.messages.MediaSenseMessage;
+import se.mediasense.metrics.MetricsRegistry;
+import se.mediasense.util.Configuration;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * Delivery of messages through shared memory to the nodes of other processes
+ * on the same host, instead of a TCP round trip on loopback.
+ * <p>Each node has an inbox directory under <i>ipcdir</i>, by default
+ * mediasense-ipc-&lt;user name&gt; in the temporary directory, named after its
+ * host ID. The directories and rings are created for the owner only, and one
+ * which belongs to another user or is open to others is never used, so only
+ * the nodes of processes of the same user reach each other. A sender maps a ring buffer file of its own in the inbox of the
+ * destination, <i>ipcbytes</i> large, so that every ring has a single writer
+ * process and a single reader; a sender which restarts replaces its ring.
+ * The reader polls its rings, spinning for <i>ipcspinmicros</i> after the
+ * last message, by default only on hosts with more than one processor, and
+ * parking after that, from 50 microseconds up to a millisecond while idle,
+ * and stamps a heartbeat in each ring it reads. A ring whose heartbeat is
+ * older than <i>ipcstalemillis</i>, such as a new one the reader has not
+ * found yet or one whose reader is gone, is not written to. Messages to
+ * other hosts, messages which do not fit and messages to a full or stale
+ * ring take the usual path, so messages to a node may overtake each other
+ * while a ring is set up. An <i>ipcbytes</i> of 0 disables the transport.
+ * <p>A ring file starts with a header holding the position read up to, the
+ * position written up to and the heartbeat, followed by the data, frames of a
+ * length and a serialized message. A frame never wraps; a length of -1 or
+ * less than 4 bytes left before the end skips to the start. A ring with a
+ * frame or position out of bounds is dropped. A position is written after,
+ * and read before, the data it covers, with a volatile access in between so
+ * that the compiler does not reorder them; the plain stores to the mapped
+ * file are only seen in that order by another process on processors which
+ * keep the order of stores and of loads, so the transport is only enabled
+ * on x86.
+ */
+final class SharedMemoryTransport implements Runnable
+{
+	public static final int DEFAULT_RING_BYTES = 1 << 20;
+	public static final int DEFAULT_STALE_MILLIS = 1000;
+	public static final int DEFAULT_SPIN_MICROS = 1000;
+	private static final int HEADER = 64;
+	private static final int READ = 0;
+	private static final int WRITTEN = 8;
+	private static final int HEARTBEAT = 16;
+	private static final int WRAP = -1;
+	private static final long SCAN_MILLIS = 100;
+	private static final long IDLE_NANOS = 50000;
+	private static final long MAX_IDLE_NANOS = 1000000;
+	private final MediaSenseContext context;
+	private final P2PCommunication communication;
+	private final ConcurrentHashMap<String, Ring> outgoing = new ConcurrentHashMap<String, Ring>();
+	private final ConcurrentHashMap<String, Long> absent = new ConcurrentHashMap<String, Long>();
+	private final Map<File, Ring> incoming = new HashMap<File, Ring>();
+	private volatile File inbox = null;
+	private volatile UserPrincipal owner = null;
+	private volatile String localid = null;
+	private volatile int fence = 0;
+
+	SharedMemoryTransport(MediaSenseContext _context, P2PCommunication _communication)
+	{
+		context = _context;
+		communication = _communication;
+	}
+
+	/**
+	 * Creates the inbox of this node and starts reading it.
+	 * @param hostid the host ID of this node
+	 */
+	void open(String hostid)
+	{
+		if (context.getConfiguration().getIntProperty("ipcbytes", DEFAULT_RING_BYTES) <= 0 || !isOrdered())
+		{
+			return;
+		}
+		File dir = new File(getDirectory(), name(hostid));
+		try
+		{
+			owner = dir.toPath().getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+			createPrivate(dir.getParentFile().toPath());
+			createPrivate(dir.toPath());
+		} catch (Exception e)
+		{
+			//also thrown by file systems without POSIX permissions
+			System.err.println("cannot create the inbox " + dir + ": " + e);
+			return;
+		}
+		File[] left = dir.listFiles();
+		if (left != null)
+		{
+			//rings of an earlier run of this node, their senders make new ones
+			for (File f : left)
+			{
+				f.delete();
+			}
+		}
+		localid = hostid;
+		inbox = dir;
+		Thread reader = new Thread(this, context.getName() == null ? "mediasense-ipc" : "mediasense-ipc-" + context.getName());
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	void close()
+	{
+		File dir = inbox;
+		inbox = null;
+		localid = null;
+		outgoing.clear();
+		if (dir != null)
+		{
+			File[] rings = dir.listFiles();
+			if (rings != null)
+			{
+				for (File f : rings)
+				{
+					f.delete();
+				}
+			}
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Tells if this processor makes stores to memory visible to other
+	 * processors in program order, which the rings rely on.
+	 */
+	private static boolean isOrdered()
+	{
+		String arch = System.getProperty("os.arch", "");
+		return arch.equals("x86") || arch.equals("i386") || arch.equals("i686") || arch.equals("amd64") || arch.equals("x86_64");
+	}
+
+	private File getDirectory()
+	{
+		String dir = context.getConfiguration().getProperty("ipcdir");
+		return dir != null ? new File(dir) : new File(System.getProperty("java.io.tmpdir"), "mediasense-ipc-" + name(System.getProperty("user.name")));
+	}
+
+	/**
+	 * Creates a directory for the owner only, unless it exists.
+	 * @throws IOException if it cannot be created, or exists and is not
+	 * private to the owner
+	 */
+	private void createPrivate(Path dir) throws IOException
+	{
+		Path parent = dir.getParent();
+		if (parent != null)
+		{
+			Files.createDirectories(parent);
+		}
+		try
+		{
+			Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		} catch (FileAlreadyExistsException e)
+		{
+			//checked below, such as one created in advance by another user
+		}
+		if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS) || !isPrivate(dir))
+		{
+			throw new IOException(dir + " belongs to another user or is open to others");
+		}
+	}
+
+	/**
+	 * Tells if a file, not following links, belongs to the user of this
+	 * process and no one else may read, write or search it.
+	 */
+	private boolean isPrivate(Path path) throws IOException
+	{
+		if (!Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).equals(owner))
+		{
+			return false;
+		}
+		Set<PosixFilePermission> others = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+		others.remove(PosixFilePermission.OWNER_READ);
+		others.remove(PosixFilePermission.OWNER_WRITE);
+		others.remove(PosixFilePermission.OWNER_EXECUTE);
+		return others.isEmpty();
+	}
+
+	private static String name(String hostid)
+	{
+		return hostid.replaceAll("[^A-Za-z0-9]", "_");
+	}
+
+	/**
+	 * Writes a message to the ring of this node in the inbox of the
+	 * destination, if it is on this host.
+	 * @return the size of the frame, or -1 if the message must take another
+	 * path
+	 */
+	int send(MediaSenseHost destination, MediaSenseMessage msg)
+	{
+		String source = localid;
+		if (source == null)
+		{
+			return -1;
+		}
+		Configuration config = context.getConfiguration();
+		long now = System.currentTimeMillis();
+		String id = destination.getHostID();
+		Ring ring = outgoing.get(id);
+		if (ring == null)
+		{
+			ring = connect(id, source, now);
+			if (ring == null)
+			{
+				return -1;
+			}
+		}
+		MetricsRegistry metrics = MetricsRegistry.getSharedInstance();
+		if (now - ring.getHeartbeat() > config.getIntProperty("ipcstalemillis", DEFAULT_STALE_MILLIS))
+		{
+			if (!ring.file.exists())
+			{
+				//the reader restarted and removed the ring, make a new one
+				outgoing.remove(id, ring);
+			}
+			metrics.counter("message.ipc.fallback").inc();
+			return -1;
+		}
+		byte[] frame;
+		try
+		{
+			frame = MessageBatch.encode(msg);
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			return -1;
+		}
+		if (!offer(ring, frame))
+		{
+			metrics.counter("message.ipc.fallback").inc();
+			return -1;
+		}
+		metrics.counter("message.ipc.sent").inc();
+		return frame.length;
+	}
+
+	/**
+	 * Creates the ring of this node in the inbox of a destination. Rings are
+	 * created one at a time, since creating one removes the earlier rings of
+	 * the same sender.
+	 * @return the ring, or null if the destination has no inbox
+	 */
+	private synchronized Ring connect(String id, String source, long now)
+	{
+		Ring ring = outgoing.get(id);
+		if (ring != null)
+		{
+			return ring;
+		}
+		Long checked = absent.get(id);
+		if (checked != null && now - checked.longValue() < SCAN_MILLIS * 10)
+		{
+			return null;
+		}
+		File dir = new File(getDirectory(), name(id));
+		if (!dir.isDirectory())
+		{
+			//most likely on another host, not looked for again for a while
+			absent.put(id, Long.valueOf(now));
+			return null;
+		}
+		try
+		{
+			if (!isPrivate(dir.getParentFile().toPath()) || !isPrivate(dir.toPath()))
+			{
+				//made by another user to receive the messages of this node
+				System.err.println("not using the inbox " + dir + " of another user");
+				absent.put(id, Long.valueOf(now));
+				return null;
+			}
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			absent.put(id, Long.valueOf(now));
+			return null;
+		}
+		absent.remove(id);
+		try
+		{
+			ring = Ring.create(dir, name(source), context.getConfiguration().getIntProperty("ipcbytes", DEFAULT_RING_BYTES));
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			absent.put(id, Long.valueOf(now));
+			return null;
+		}
+		outgoing.put(id, ring);
+		return ring;
+	}
+
+	/**
+	 * Appends a frame to a ring, unless it is full.
+	 */
+	private boolean offer(Ring ring, byte[] frame)
+	{
+		synchronized (ring)
+		{
+			MappedByteBuffer buffer = ring.buffer;
+			long capacity = ring.capacity;
+			long need = 4 + frame.length;
+			long written = buffer.getLong(WRITTEN);
+			int pos = (int) (written % capacity);
+			long skip = capacity - pos < need ? capacity - pos : 0;
+			if (need > capacity || written + skip + need - buffer.getLong(READ) > capacity)
+			{
+				return false;
+			}
+			if (skip >= 4)
+			{
+				buffer.putInt(HEADER + pos, WRAP);
+			}
+			if (skip > 0)
+			{
+				pos = 0;
+			}
+			buffer.putInt(HEADER + pos, frame.length);
+			ByteBuffer data = buffer.duplicate();
+			data.position(HEADER + pos + 4);
+			data.put(frame);
+			//the frame is in place before the reader can see it
+			fence = pos;
+			buffer.putLong(WRITTEN, written + skip + need);
+			return true;
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		Configuration config = context.getConfiguration();
+		//spinning on a single processor only delays the threads it waits for
+		int spin = Runtime.getRuntime().availableProcessors() > 1 ? DEFAULT_SPIN_MICROS : 0;
+		long scanned = 0;
+		long active = System.nanoTime();
+		long idle = IDLE_NANOS;
+		File dir;
+		while ((dir = inbox) != null)
+		{
+			long now = System.currentTimeMillis();
+			if (now - scanned >= SCAN_MILLIS)
+			{
+				scan(dir, now);
+				scanned = now;
+			}
+			boolean polled = false;
+			for (Iterator<Map.Entry<File, Ring>> i = incoming.entrySet().iterator(); i.hasNext();)
+			{
+				Map.Entry<File, Ring> e = i.next();
+				try
+				{
+					polled |= poll(e.getValue());
+				} catch (IOException x)
+				{
+					//the frames that follow cannot be found, the sender makes a new ring
+					MetricsRegistry.getSharedInstance().counter("message.ipc.malformed").inc();
+					System.err.println("dropping " + e.getKey() + ": " + x.getMessage());
+					i.remove();
+					e.getKey().delete();
+				}
+			}
+			if (polled)
+			{
+				active = System.nanoTime();
+				idle = IDLE_NANOS;
+			}
+			else if (System.nanoTime() - active > config.getIntProperty("ipcspinmicros", spin) * 1000L)
+			{
+				//the longer the rings stay empty, the less often they are polled
+				LockSupport.parkNanos(idle);
+				idle = Math.min(MAX_IDLE_NANOS, idle * 2);
+			}
+			else
+			{
+				//lets the threads handling the messages run on a busy host
+				Thread.yield();
+			}
+		}
+		incoming.clear();
+	}
+
+	/**
+	 * Maps the rings created in the inbox since the last scan, forgets those
+	 * removed, and stamps the heartbeat of each.
+	 */
+	private void scan(File dir, long now)
+	{
+		File[] files = dir.listFiles();
+		if (files != null)
+		{
+			for (File f : files)
+			{
+				if (f.getName().endsWith(".ring") && !incoming.containsKey(f))
+				{
+					try
+					{
+						Path path = f.toPath();
+						if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS) || !isPrivate(path))
+						{
+							//not from a process of this user, never read
+							f.delete();
+							continue;
+						}
+						incoming.put(f, Ring.map(f));
+					} catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+		for (Iterator<Map.Entry<File, Ring>> i = incoming.entrySet().iterator(); i.hasNext();)
+		{
+			Map.Entry<File, Ring> e = i.next();
+			if (!e.getKey().exists())
+			{
+				i.remove();
+			}
+			else
+			{
+				e.getValue().buffer.putLong(HEARTBEAT, now);
+			}
+		}
+	}
+
+	/**
+	 * Hands the messages written to a ring since the last poll to the node.
+	 * @return true if there were any
+	 * @throws IOException if a frame or position is out of bounds
+	 */
+	private boolean poll(Ring ring) throws IOException
+	{
+		MappedByteBuffer buffer = ring.buffer;
+		long capacity = ring.capacity;
+		long read = buffer.getLong(READ);
+		long written = buffer.getLong(WRITTEN);
+		if (read == written)
+		{
+			return false;
+		}
+		if (read > written || written - read > capacity)
+		{
+			throw new IOException("positions out of bounds");
+		}
+		//the frames are read after the position written up to
+		int f = fence;
+		MetricsRegistry metrics = MetricsRegistry.getSharedInstance();
+		while (read < written)
+		{
+			int pos = (int) (read % capacity);
+			int length = capacity - pos < 4 ? WRAP : buffer.getInt(HEADER + pos);
+			if (length == WRAP)
+			{
+				read += capacity - pos;
+				continue;
+			}
+			if (length < 0 || length > capacity - pos - 4 || read + 4 + length > written)
+			{
+				throw new IOException("frame length " + length + " out of bounds");
+			}
+			byte[] frame = new byte[length];
+			ByteBuffer data = buffer.duplicate();
+			data.position(HEADER + pos + 4);
+			data.get(frame);
+			read += 4 + length;
+			try
+			{
+				Object decoded = new ObjectInputStream(new ByteArrayInputStream(frame)).readObject();
+				if (!(decoded instanceof MediaSenseMessage))
+				{
+					throw new IOException("not a message");
+				}
+				metrics.counter("message.ipc.received").inc();
+				communication.receive((MediaSenseMessage) decoded);
+			} catch (Exception e)
+			{
+				metrics.counter("message.ipc.malformed").inc();
+			}
+		}
+		fence = f;
+		buffer.putLong(READ, read);
+		return true;
+	}
+
+	/**
+	 * A ring buffer file mapped into memory.
+	 */
+	private static final class Ring
+	{
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private final long capacity;
+
+		private Ring(File _file, MappedByteBuffer _buffer)
+		{
+			file = _file;
+			buffer = _buffer;
+			capacity = buffer.capacity() - HEADER;
+		}
+
+		/**
+		 * Creates a ring of the given capacity in an inbox, with a name of
+		 * its own so that the reader tells it from the ring of an earlier run
+		 * of the same sender, which is removed. The ring has a temporary name
+		 * until it is complete, so that the reader never maps a partial file.
+		 */
+		static Ring create(File dir, String source, int capacity) throws IOException
+		{
+			File[] earlier = dir.listFiles();
+			if (earlier != null)
+			{
+				for (File f : earlier)
+				{
+					if (f.getName().startsWith(source + "-"))
+					{
+						f.delete();
+					}
+				}
+			}
+			String name = source + "-" + Long.toHexString(System.nanoTime());
+			File file = new File(dir, name + ".ring");
+			File tmp = new File(dir, name + ".tmp");
+			FileAttribute<Set<PosixFilePermission>> attr = PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+			Files.createFile(tmp.toPath(), attr);
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try
+			{
+				raf.setLength(HEADER + capacity);
+				MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + capacity);
+				if (!tmp.renameTo(file))
+				{
+					throw new IOException("cannot create " + file);
+				}
+				return new Ring(file, buffer);
+			} finally
+			{
+				raf.close();
+			}
+		}
+
+		static Ring map(File file) throws IOException
+		{
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try
+			{
+				return new Ring(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+			} finally
+			{
+				raf.close();
+			}
+		}
+
+		long getHeartbeat()
+		{
+			return buffer.getLong(HEARTBEAT);
+		}
+	}
+}
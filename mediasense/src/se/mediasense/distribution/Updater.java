@@ -26,10 +26,12 @@ import net.tomp2p.p2p.Peer;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.storage.Data;
 import se.mediasense.distribution.Resolver.REASON;
+import se.mediasense.util.MediaSenseContext;
 
 
 public class Updater implements BaseFutureListener<FutureDHT>, FuturePrimitive
 {
+	private final MediaSenseContext context;
 	private String uci = null;
 	private PrimitiveListener lookuplistener = null;
 	private boolean complete = false;
@@ -50,28 +52,42 @@ public class Updater implements BaseFutureListener<FutureDHT>, FuturePrimitive
 	private STATE state = null;
 	private boolean forceupdate = false;
 	private String hostid = null;
+	private final PrimitiveTimer timer;
 	
 	
 	
 	public Updater(String _uci)
 	{
+		this(_uci, MediaSenseContext.getDefault());
+	}
+
+	/**
+	 * Creates the primitive on the given node.
+	 */
+	public Updater(String _uci, MediaSenseContext _context)
+	{
+		context = _context;
+		timer = new PrimitiveTimer("update", context);
 		uci = _uci;
+		timer.setUCI(uci);
 		
 	}
 
 	public void startAsynchronousUpdate(PrimitiveListener l)
 	{
 		
-		    state = STATE.EXIST_CONTROL;		
-			futureDHT = P2PCommunication.peer.get(Number160.createHash(uci)).start();
+		    state = STATE.EXIST_CONTROL;
+		    timer.enter(state.name());
+		    lookuplistener = timer.wrap(l);
+			futureDHT = context.getPeer().get(Number160.createHash(uci)).start();
 		    futureDHT.addListener(this);
-		    lookuplistener = l;
 
 	}
 
 	private void completeAsynchronousUpdate(FutureDHT future)
 	{
-	    state = STATE.UPDATE_COMPLETION;		
+	    state = STATE.UPDATE_COMPLETION;
+	    timer.enter(state.name());
 		Data data = null;;
 		try {
 		JSONObject obj = (JSONObject)future.getData().getObject();
@@ -90,10 +106,10 @@ public class Updater implements BaseFutureListener<FutureDHT>, FuturePrimitive
 	    else
 	    {
 		    data = new Data(obj);
-	    	futureDHT = P2PCommunication.peer.put(key).setData(data).start();			
+	    	futureDHT = context.getPeer().put(key).setData(data).start();			
 	    	complete=futureDHT.isCompleted();
 			updated =futureDHT.isSuccess();
-			peer = P2PCommunication.peer;
+			peer = context.getPeer();
 			DHTReason = futureDHT.getFailedReason();
 			lookuplistener.handleCompleted(this);
 	    	
@@ -114,10 +130,14 @@ public class Updater implements BaseFutureListener<FutureDHT>, FuturePrimitive
 	{
 		Data data;
 		try {
+	    state = STATE.EXIST_CONTROL;
+	    timer.enter(state.name());
 		data = new Data(uci.toString());
 	    Number160 key = Number160.createHash(uci.toString());
-	    futureDHT = P2PCommunication.peer.get(Number160.createHash(uci.toString())).start();
-	    futureDHT.awaitUninterruptibly();
+	    futureDHT = context.getPeer().get(Number160.createHash(uci.toString())).start();
+	    context.getTimeouts().await("get", futureDHT);
+	    state = STATE.UPDATE_COMPLETION;
+	    timer.enter(state.name());
 	    if(futureDHT.isFailed())
 	    {
 	    
@@ -126,15 +146,18 @@ public class Updater implements BaseFutureListener<FutureDHT>, FuturePrimitive
 			DHTReason = futureDHT.getFailedReason();
 			lookuplistener.handleCompleted(this);
 			reason = REASON.DOES_NOT_EXIST;		    
+	    	timer.finish(updated);
 	    	return this;
 	    }
 	    else
 	    {
-		    futureDHT = P2PCommunication.peer.put(key).setData(data).start();			
+		    futureDHT = context.getPeer().put(key).setData(data).start();
+		    context.getTimeouts().await("put", futureDHT);
 	    	complete=futureDHT.isCompleted();
 			updated =futureDHT.isSuccess();
-			peer = P2PCommunication.peer;
+			peer = context.getPeer();
 			DHTReason = futureDHT.getFailedReason();
+			timer.finish(updated);
 			return this;	    	
 	    }
 	    
@@ -143,6 +166,7 @@ public class Updater implements BaseFutureListener<FutureDHT>, FuturePrimitive
 			complete=(futureDHT.isCompleted());
 			DHTReason = futureDHT.getFailedReason();
 			updated =false;
+		    timer.finish(updated);
 		    return this;
 		    }	    
 	}
@@ -229,7 +253,7 @@ public class Updater implements BaseFutureListener<FutureDHT>, FuturePrimitive
 
 
 	public void setLookuplistener(PrimitiveListener lookuplistener) {
-		this.lookuplistener = lookuplistener;
+		this.lookuplistener = timer.wrap(lookuplistener);
 	}
 
 
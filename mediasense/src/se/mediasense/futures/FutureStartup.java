@@ -0,0 +1,83 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.futures;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import se.mediasense.metrics.MetricsRegistry;
+
+/**
+ * Completes when a node is ready to serve, i.e. it has joined the overlay and
+ * published its own address. It also keeps the duration of each phase of
+ * the startup, which are recorded as <i>startup.&lt;phase&gt;</i> in the
+ * {@link se.mediasense.metrics.MetricsRegistry} as well.
+ */
+public class FutureStartup extends BaseFutureImpl<FutureStartup> {
+    private final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+    private final long started = System.nanoTime();
+
+    public FutureStartup() {
+        self(this);
+    }
+
+    /**
+     * Records the duration of a startup phase.
+     * 
+     * @param phase
+     *            the name of the phase
+     * @param startnanos
+     *            when the phase started, in {@link System#nanoTime()} time
+     */
+    public void phase(final String phase, final long startnanos) {
+        long micros = (System.nanoTime() - startnanos) / 1000;
+        synchronized (lock) {
+            timings.put(phase, micros);
+        }
+        MetricsRegistry.getSharedInstance().histogram("startup." + phase).record(micros);
+    }
+
+    /**
+     * Sets the node as ready, and records the time since the future was
+     * created as the <i>total</i> phase.
+     * 
+     * @return this
+     */
+    public FutureStartup setReady() {
+        phase("total", started);
+        synchronized (lock) {
+            if (!setCompletedAndNotify()) {
+                return this;
+            }
+            this.type = FutureType.OK;
+        }
+        notifyListerenrs();
+        return this;
+    }
+
+    /**
+     * Returns the duration of each phase recorded so far, in microseconds, in
+     * the order they completed.
+     * 
+     * @return a copy of the phase timings
+     */
+    public Map<String, Long> getTimings() {
+        synchronized (lock) {
+            return new LinkedHashMap<String, Long>(timings);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.interfacelayer;
+
+/**
+ * The outcome of {@link MediaSensePlatform#drain(long)}: how much of the
+ * work in flight when the drain started was completed or handed off, and how
+ * much was dropped at the deadline.
+ */
+public final class DrainReport
+{
+	private final int primitivesCompleted;
+	private final int primitivesDropped;
+	private final long tasksCompleted;
+	private final int tasksDropped;
+	private final int messagesDropped;
+	private final int recordsHandedOff;
+	private final int recordsDropped;
+	private final long elapsedMillis;
+
+	DrainReport(int _primitivesCompleted, int _primitivesDropped, long _tasksCompleted, int _tasksDropped, int _messagesDropped,
+			int _recordsHandedOff, int _recordsDropped, long _elapsedMillis)
+	{
+		primitivesCompleted = _primitivesCompleted;
+		primitivesDropped = _primitivesDropped;
+		tasksCompleted = _tasksCompleted;
+		tasksDropped = _tasksDropped;
+		messagesDropped = _messagesDropped;
+		recordsHandedOff = _recordsHandedOff;
+		recordsDropped = _recordsDropped;
+		elapsedMillis = _elapsedMillis;
+	}
+
+	/**
+	 * Returns the number of primitives which were in flight when the drain
+	 * started and completed before the deadline.
+	 */
+	public int getPrimitivesCompleted()
+	{
+		return primitivesCompleted;
+	}
+
+	/**
+	 * Returns the number of primitives still in flight at the deadline. Their
+	 * listeners will not be called.
+	 */
+	public int getPrimitivesDropped()
+	{
+		return primitivesDropped;
+	}
+
+	/**
+	 * Returns the number of executor tasks, such as message deliveries,
+	 * notifies and subscription fan-outs, which ran during the drain.
+	 */
+	public long getTasksCompleted()
+	{
+		return tasksCompleted;
+	}
+
+	/**
+	 * Returns the number of executor tasks cancelled at the deadline or
+	 * refused during the drain.
+	 */
+	public int getTasksDropped()
+	{
+		return tasksDropped;
+	}
+
+	/**
+	 * Returns the number of messages received once the node stopped taking
+	 * them in, until it shut down. They were not delivered.
+	 */
+	public int getMessagesDropped()
+	{
+		return messagesDropped;
+	}
+
+	/**
+	 * Returns the number of locally stored records put back into the overlay.
+	 */
+	public int getRecordsHandedOff()
+	{
+		return recordsHandedOff;
+	}
+
+	/**
+	 * Returns the number of locally stored records which could not be handed
+	 * off. They survive only where the overlay already replicated them.
+	 */
+	public int getRecordsDropped()
+	{
+		return recordsDropped;
+	}
+
+	public long getElapsedMillis()
+	{
+		return elapsedMillis;
+	}
+
+	/**
+	 * Returns true if nothing was dropped.
+	 */
+	public boolean isComplete()
+	{
+		return primitivesDropped == 0 && tasksDropped == 0 && messagesDropped == 0 && recordsDropped == 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "drained in " + elapsedMillis + " ms: primitives " + primitivesCompleted + " completed/" + primitivesDropped + " dropped, tasks "
+				+ tasksCompleted + " completed/" + tasksDropped + " dropped, messages " + messagesDropped + " dropped, records " + recordsHandedOff + " handed off/" + recordsDropped + " dropped";
+	}
+}
@@ -17,6 +17,9 @@
  */
 package se.mediasense.interfacelayer;
 
+import java.net.InetSocketAddress;
+import java.util.List;
+
 import se.mediasense.addinlayer.AddInManager;
 import se.mediasense.disseminationlayer.communication.Communication;
 import se.mediasense.disseminationlayer.communication.DestinationNotReachableException;
@@ -24,16 +27,21 @@ import se.mediasense.disseminationlayer.communication.MediaSenseHost;
 import se.mediasense.disseminationlayer.disseminationcore.DisseminationCore;
 import se.mediasense.disseminationlayer.lookupservice.LookupService;
 import se.mediasense.distribution.Deleter;
+import se.mediasense.distribution.Finder;
 import se.mediasense.distribution.Getter;
+import se.mediasense.distribution.P2PCommunication;
+import se.mediasense.distribution.PeerCache;
 import se.mediasense.distribution.Registrator;
 import se.mediasense.distribution.Resolver;
 import se.mediasense.distribution.UCI;
 import se.mediasense.distribution.Updater;
+import se.mediasense.futures.FutureStartup;
 import se.mediasense.messages.MediaSenseListener;
 import se.mediasense.messages.MediaSenseMessage;
 import se.mediasense.messages.NotifyMessage;
 import se.mediasense.messages.SetMessage;
-import se.mediasense.util.MediaSenseConstants;
+import se.mediasense.metrics.MetricsRegistry;
+import se.mediasense.util.MediaSenseContext;
 
 /**
  *
@@ -54,11 +62,12 @@ import se.mediasense.util.MediaSenseConstants;
 public final class MediaSensePlatform
 {
 
-    private DisseminationCore disseminationcore = MediaSenseConstants.DISSEMINATIONCORE;
+    private final MediaSenseContext context;
+    private DisseminationCore disseminationcore;
     private AddInManager addInManager = null;
     private MediaSenseApplication application;
-    private Communication communication = MediaSenseConstants.COMMUNICATION;
-    private LookupService lookupservice = MediaSenseConstants.LOOKUPSERVICE;
+    private Communication communication;
+    private LookupService lookupservice;
 
    
     /**
@@ -76,26 +85,133 @@ public final class MediaSensePlatform
      */
     public MediaSensePlatform(MediaSenseApplication app)
     {
-    	MediaSenseConstants.loadProps();
+    	this(app, MediaSenseContext.getDefault());
+    }
+
+    /**
+     * Creates the platform of one node in a JVM hosting several nodes, see
+     * {@link se.mediasense.util.MediaSenseContext}. The node keeps its state
+     * in the base directory of the context, and shares nothing with other
+     * nodes but the metrics and traces.
+     *
+     * @param app the default application of the node
+     * @param _context the node
+     */
+    public MediaSensePlatform(MediaSenseApplication app, MediaSenseContext _context)
+    {
+    	context = _context;
+    	disseminationcore = context.getDisseminationCore();
+    	communication = context.getCommunication();
+    	lookupservice = context.getLookupService();
+    	long phase = System.nanoTime();
+    	context.getConfigurationStore().load();
+    	context.getExecutor().configure(context.getConfiguration());
+    	context.getStartup().phase("config", phase);
+    	phase = System.nanoTime();
+    	context.getJournal().open();
+    	context.getStartup().phase("journal", phase);
+    	MetricsRegistry.getSharedInstance().start();
         addInManager = new AddInManager(this);
 
         application = app;
 
     }
 
+    /**
+     * Returns the node this platform runs on.
+     *
+     * @return the context of the node
+     */
+    public MediaSenseContext getContext()
+    {
+        return context;
+    }
+
+    /**
+     * Returns the future which completes once the node has joined the overlay
+     * and can serve primitives. The network is brought up by the application
+     * through {@link se.mediasense.disseminationlayer.communication.Communication#init(String, int, int)},
+     * this only reports when it is done.
+     *
+     * @return the readiness of the node
+     */
+    public FutureStartup getReadiness()
+    {
+        return context.getStartup();
+    }
+
     /**
      * De-registers and shutsdown the entire platform along with network
      * connectivity. No applications are executable after this method has been
-     * called. All currently loaded addins are also unloaded.
+     * called. All currently loaded addins are also unloaded. Work in flight
+     * is lost, use {@link #drain(long)} to complete it first.
      */
     public void shutdown()
     {
         addInManager.unloadAllAddIns();
 
+        context.getLeaseRenewer().stop();
+
         communication.shutdown();
 
         lookupservice.shutdown();
 
+        context.getTimeouts().shutdown();
+
+        context.getJournal().close();
+
+        context.getConfigurationStore().flush();
+
+        if (context.isDefault())
+        {
+            MetricsRegistry.getSharedInstance().stop();
+        }
+        context.getExecutor().shutdown();
+
+    }
+
+    /**
+     * Drains the platform, then shuts it down. New primitives are refused at
+     * once, while the primitives in flight run to completion. Every record
+     * held by this node is then put back into the overlay, so its neighbors
+     * hold it when the node leaves. The node then stops taking in messages,
+     * and the queued message deliveries, notifies and subscription fan-outs
+     * are run last. Whatever is not done by the deadline is dropped, as are
+     * the messages received meanwhile.
+     *
+     * @param timeoutMillis how long to wait for the drain, in milliseconds
+     * @return what was drained and what was dropped
+     */
+    public DrainReport drain(long timeoutMillis)
+    {
+        long start = System.currentTimeMillis();
+        long deadline = start + timeoutMillis;
+        context.startDraining();
+        int inflight = context.getOperationsInFlight();
+        long completedtasks = context.getExecutor().getCompletedTaskCount();
+
+        int remaining = context.awaitOperations(deadline);
+
+        int stored = 0;
+        int handed = 0;
+        P2PCommunication p2p = null;
+        if (communication.isInitialized())
+        {
+            p2p = (P2PCommunication) communication;
+            stored = p2p.getStoredRecords().size();
+            handed = p2p.handOff(deadline);
+            p2p.stopReceiving();
+        }
+        context.getLeaseRenewer().stop();
+
+        int droppedtasks = context.getExecutor().drain(deadline);
+        completedtasks = context.getExecutor().getCompletedTaskCount() - completedtasks;
+
+        shutdown();
+
+        int droppedmessages = p2p == null ? 0 : p2p.getRefusedMessages();
+        return new DrainReport(Math.max(0, inflight - remaining), remaining, completedtasks, droppedtasks, droppedmessages, handed, stored - handed,
+                System.currentTimeMillis() - start);
     }
 
     /**
@@ -110,9 +226,35 @@ public final class MediaSensePlatform
     public boolean init(String boostrapaddress, int bootstrapport, int localport)
     {
 
-        MediaSenseConstants.DISSEMINATIONCORE.registerListener(DisseminationCore.DEFAULT_LISTENER, (MediaSenseListener) application);
-        MediaSenseConstants.COMMUNICATION.init(boostrapaddress, bootstrapport, localport );
-        return MediaSenseConstants.COMMUNICATION.isInitialized();
+        disseminationcore.registerListener(DisseminationCore.DEFAULT_LISTENER, (MediaSenseListener) application);
+        communication.init(boostrapaddress, bootstrapport, localport );
+        if(communication.isInitialized())
+        {
+            context.getLeaseRenewer().start();
+        }
+        return communication.isInitialized();
+
+    }
+
+    /**
+     * Initializes the Distributed MediaSense platform through the first of
+     * several bootstrap nodes which answers. The peers this node knew when it
+     * last ran are tried first, so a restart does not need the bootstrap nodes.
+     *
+     * @param bootstraps the addresses and listening ports of the bootstrap nodes
+     * @param localport This is the listening port of the node being created on this device
+     * @return true if successfully started
+     */
+    public boolean init(List<InetSocketAddress> bootstraps, int localport)
+    {
+
+        disseminationcore.registerListener(DisseminationCore.DEFAULT_LISTENER, (MediaSenseListener) application);
+        communication.init(bootstraps, localport);
+        if(communication.isInitialized())
+        {
+            context.getLeaseRenewer().start();
+        }
+        return communication.isInitialized();
 
     }
 
@@ -124,12 +266,13 @@ public final class MediaSensePlatform
     public boolean init()
     {
 
-        return init("local ip e.g. 192.168.0.1", 2000, 8000); //the ip address should be changed to local ip for local bootstrapping
-		//In order to use the MediaSense's bootstrap ip,contact us!
+        return init(8000);
 
     }
     /**
-     * Initializes the Distributed MediaSense platform using the default boostrap and port. 
+     * Initializes the Distributed MediaSense platform using the bootstrap nodes
+     * listed in the <i>bootstrapaddresses</i> property, as comma separated
+     * <tt>host:port</tt> endpoints.
      * The current bootstrap address can be located on http://www.mediasense.se
      * @param localport This is the listening port of the node being created on this device
      * @return true if successfully started
@@ -137,7 +280,7 @@ public final class MediaSensePlatform
        public boolean init(int localport)
     {
 
-            return init("local ip e.g. 192.168.0.1", 2000, localport); //the ip address should be changed to local ip for local bootstrapping
+            return init(PeerCache.parse(context.getConfiguration().getProperty("bootstrapaddresses")), localport);
 		   //In order to use the MediaSense's bootstrap ip,contact us!
 
     } 
@@ -174,10 +317,21 @@ public final class MediaSensePlatform
     public boolean isInitalized()
     {
 
-        return MediaSenseConstants.COMMUNICATION.isInitialized();
+        return communication.isInitialized();
 
     }
 
+    /**
+     * Refuses new primitives once the platform is draining.
+     */
+    private void checkAccepting()
+    {
+        if (context.isDraining())
+        {
+            throw new IllegalStateException("The platform is draining");
+        }
+    }
+
     /**
      * The RESOLVE primitive action, which resolves an UCI to the node which
      * owns the resource identified by this UCI <p>This call is asynchronous or synchronous.
@@ -187,11 +341,26 @@ public final class MediaSensePlatform
     public Resolver resolveUCI(String uci)
     {
 
-        return new Resolver(uci);
+        checkAccepting();
+        return new Resolver(uci, context);
 
     }
 
-    
+    /**
+     * The FIND primitive action, which lists the registered UCIs starting with
+     * a prefix, e.g. "building7/floor3/". The prefix must contain at least one
+     * complete path segment. <p>This call is asynchronous or synchronous, and the
+     * result is fetched page by page.
+     * @param prefix the UCI prefix to search for
+     * @return the finder object
+     */
+    public Finder find(String prefix)
+    {
+
+        checkAccepting();
+        return new Finder(prefix, context);
+
+    }
 
     /**
      * The REGISTER primitive action, which registers an UCI which can later be
@@ -204,7 +373,8 @@ public final class MediaSensePlatform
      */
     public Registrator registerUCI(String uci)
     {
-    	return new Registrator(uci);
+    	checkAccepting();
+    	return new Registrator(uci, context);
     }
     
     
@@ -219,7 +389,8 @@ public final class MediaSensePlatform
     public Deleter delete(UCI uci)
     {
         
-    	return new Deleter(uci);
+    	checkAccepting();
+    	return new Deleter(uci, context);
 
     }
     
@@ -238,7 +409,8 @@ public final class MediaSensePlatform
     public Updater update(String uci)
     {
         
-    	return new Updater(uci);
+    	checkAccepting();
+    	return new Updater(uci, context);
 
     }
 
@@ -251,7 +423,8 @@ public final class MediaSensePlatform
      */ 
     public Getter get(String uci)
     {
-       Getter g = new Getter(uci);
+       checkAccepting();
+       Getter g = new Getter(uci, context);
        
        return g;
 
@@ -265,7 +438,8 @@ public final class MediaSensePlatform
      */ 
     public Getter get(UCI uci)
     {
-       Getter g = new Getter(uci.getUciAsString());
+       checkAccepting();
+       Getter g = new Getter(uci.getUciAsString(), context);
        
        return g;
 
@@ -299,11 +473,42 @@ public final class MediaSensePlatform
     public void notify(UCI uci, java.io.Serializable value, MediaSenseHost destination) throws DestinationNotReachableException
     {
 
-        MediaSenseMessage m = new NotifyMessage(uci, value, destination, MediaSenseConstants.LOCALHOST);
+        MediaSenseMessage m = new NotifyMessage(uci, value, destination, context.getLocalHost());
 
         disseminationcore.Dispatch(m);
     }
 
+    /**
+     * Publishes the current value of an UCI owned by this host.
+     * <p>The value is serialized once and kept in the local
+     * {@link se.mediasense.disseminationlayer.disseminationcore.ValueStore}.
+     * GetMessages for the UCI are then answered by the platform itself and are
+     * no longer delivered to the listeners. SetMessages for the UCI are still
+     * delivered to them, and do not change the stored value: the owner
+     * publishes the new value again once it has accepted it.
+     * @param uci the UCI owned by this host
+     * @param value the current value
+     */
+    public void publish(UCI uci, java.io.Serializable value)
+    {
+        try
+        {
+            context.getValueStore().put(uci.getUciAsString(), value);
+        } catch (java.io.IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops answering GetMessages for an UCI from the local value store.
+     * @param uci the previously published UCI
+     */
+    public void unpublish(UCI uci)
+    {
+        context.getValueStore().remove(uci.getUciAsString());
+    }
+
     
 
     /**
@@ -366,6 +571,26 @@ public final class MediaSensePlatform
 
     }
 
+    /**
+     * Sends a message over the given transport. With
+     * {@link se.mediasense.disseminationlayer.communication.Communication#UDP}
+     * the message is sent in a single datagram, without waiting for it to be
+     * delivered, which suits values sent periodically such as sensor
+     * notifications. Messages too large for a datagram are delivered as usual.
+     * Message types can also be sent as datagrams by default by listing them
+     * in the <i>datagramtypes</i> property.
+     *
+     * @param msg the message to be delivered
+     * @param transport the transport, one of the constants of
+     * {@link se.mediasense.disseminationlayer.communication.Communication}
+     */
+    public void sendMessage(MediaSenseMessage msg, int transport) throws DestinationNotReachableException
+    {
+
+        disseminationcore.Dispatch(msg, transport);
+
+    }
+
     /**
      * Returns the localhost This is implementation specific, however for most
      * cases, the getHostID is sufficient identification for the host. However,
@@ -376,7 +601,7 @@ public final class MediaSensePlatform
      */
     public MediaSenseHost getLocalHost()
     {
-        return MediaSenseConstants.LOCALHOST;
+        return context.getLocalHost();
     }
     
     public static void main(String [] args)
@@ -31,6 +31,7 @@ import se.mediasense.distribution.UCI;
 public final class DeleteMessage extends MediaSenseMessage
 {
 	
+	private static final long serialVersionUID = -8880900397301936763L;
 	private final UCI uci;
         public static final String TYPE = DeleteMessage.class.getName();
         
@@ -82,6 +83,15 @@ public final class DeleteMessage extends MediaSenseMessage
             
         }
 
-  
-	
+    @Override
+    public Priority getPriority()
+    {
+        return Priority.CONTROL;
+    }
+
+    @Override
+    public boolean isIdempotent()
+    {
+        return true;
+    }
 }
@@ -35,6 +35,7 @@ import se.mediasense.disseminationlayer.communication.MediaSenseHost;
 public final class DuplicateUCICheckMessage extends MediaSenseMessage implements Serializable
 {
 
+    private static final long serialVersionUID = 3758777165908980373L;
     private final String uci;
     public static final String TYPE = DuplicateUCICheckMessage.class.getName();
 
@@ -95,4 +96,16 @@ public final class DuplicateUCICheckMessage extends MediaSenseMessage implements
         return super.getSource();
 
     }
+
+    @Override
+    public Priority getPriority()
+    {
+        return Priority.CONTROL;
+    }
+
+    @Override
+    public boolean isIdempotent()
+    {
+        return true;
+    }
 }
@@ -36,6 +36,7 @@ import se.mediasense.disseminationlayer.communication.MediaSenseHost;
 public final class DuplicateUCICheckResponseMessage extends MediaSenseMessage
 {
 
+    private static final long serialVersionUID = -2711685600502874498L;
     private final String uci;
     private final MediaSenseHost host;
     public static final String TYPE = DuplicateUCICheckResponseMessage.class.getName();
@@ -122,4 +123,10 @@ public final class DuplicateUCICheckResponseMessage extends MediaSenseMessage
     {
         return host;
     }
+
+    @Override
+    public Priority getPriority()
+    {
+        return Priority.CONTROL;
+    }
 }
@@ -0,0 +1,127 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package se.mediasense.messages;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * A value which has already been serialized, used as the resource of a
+ * {@link se.mediasense.messages.NotifyMessage} so that a value read by many
+ * hosts is encoded once instead of once per message.
+ * <p>The encoded form is kept in an off-heap buffer and copied straight into
+ * the outgoing stream when the message is serialized. The receiving side
+ * decodes the value lazily, on the first call to {@link #getValue()}.
+ */
+public final class EncodedValue implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    private static final int CHUNK_SIZE = 8192;
+    private static final ThreadLocal<byte[]> CHUNK = new ThreadLocal<byte[]>()
+    {
+        @Override
+        protected byte[] initialValue()
+        {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+    private transient ByteBuffer encoded;
+    private transient Serializable value;
+
+    private EncodedValue(ByteBuffer _encoded)
+    {
+        encoded = _encoded;
+    }
+
+    /**
+     * Serializes a value into a read-only direct buffer.
+     * @param _value the value to encode
+     * @return the encoded value
+     * @throws IOException if the value cannot be serialized
+     */
+    public static EncodedValue encode(Serializable _value) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(_value);
+        out.close();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.size());
+        buffer.put(bytes.toByteArray());
+        buffer.flip();
+        EncodedValue ev = new EncodedValue(buffer.asReadOnlyBuffer());
+        ev.value = _value;
+        return ev;
+    }
+
+    /**
+     * Returns the decoded value, decoding it on first access.
+     * @return the value, or null if it cannot be decoded
+     */
+    public synchronized Serializable getValue()
+    {
+        if (value == null)
+        {
+            try
+            {
+                ByteBuffer buffer = encoded.duplicate();
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                value = (Serializable) new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+            } catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Returns the size of the encoded value in bytes.
+     */
+    public int size()
+    {
+        return encoded.remaining();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        ByteBuffer buffer = encoded.duplicate();
+        byte[] chunk = CHUNK.get();
+        out.writeInt(buffer.remaining());
+        while (buffer.hasRemaining())
+        {
+            int n = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        encoded = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+}
@@ -31,6 +31,7 @@ import se.mediasense.distribution.UCI;
 public final class GetMessage extends MediaSenseMessage
 {
 	
+	private static final long serialVersionUID = -4613962115702534862L;
 	private final UCI uci;
         public static final String TYPE = GetMessage.class.getName();
         
@@ -82,6 +83,9 @@ public final class GetMessage extends MediaSenseMessage
             
         }
 
-  
-	
+    @Override
+    public boolean isIdempotent()
+    {
+        return true;
+    }
 }
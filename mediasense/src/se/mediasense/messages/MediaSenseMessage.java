@@ -20,6 +20,8 @@ package se.mediasense.messages;
 
 import java.io.Serializable;
 import se.mediasense.disseminationlayer.communication.MediaSenseHost;
+import se.mediasense.tracing.TraceContext;
+import se.mediasense.tracing.Tracer;
 import se.mediasense.util.MediaSenseID;
 
 /**
@@ -32,10 +34,13 @@ import se.mediasense.util.MediaSenseID;
 public abstract class MediaSenseMessage implements Serializable
 {
 
+    //the value computed for the original class, so that nodes of either version understand each other
+    private static final long serialVersionUID = -2679031359061310368L;
     private String MsgID;
     private final MediaSenseHost destination;
     private final String MsgType;
     private final MediaSenseHost source;
+    private TraceContext trace = Tracer.getSharedInstance().getCurrent();
 //    private SCOPE scope;
 //
 //    /**
@@ -128,4 +133,56 @@ public MediaSenseMessage(MediaSenseHost _destination, MediaSenseHost _source, St
         return source;
     }
 
+    /**
+     * Returns the priority class of this message. Control messages, such as
+     * registrations, lookups and subscriptions, are sent and handled apart
+     * from data messages, so that they keep a low latency under load.
+     * Messages are data unless their class says otherwise.
+     * @return the priority class
+     */
+    public Priority getPriority()
+    {
+        return Priority.DATA;
+    }
+
+    /**
+     * Checks whether this message may be delivered more than once without
+     * harm, so that a send which may or may not have reached the destination
+     * can be retried. Messages are not unless their class says otherwise.
+     * @return true if the message is idempotent
+     */
+    public boolean isIdempotent()
+    {
+        return false;
+    }
+
+    /**
+     * Returns the context of the trace this message belongs to, or null if it
+     * is not traced. A message created by a thread working on behalf of a
+     * trace joins that trace automatically.
+     * @return the trace context
+     */
+    public TraceContext getTraceContext()
+    {
+        return trace;
+    }
+
+    /**
+     * Sets the context of the trace this message belongs to.
+     * @param _trace the trace context, or null
+     */
+    public void setTraceContext(TraceContext _trace)
+    {
+        trace = _trace;
+    }
+
+    /**
+     * The priority classes of messages.
+     */
+    public static enum Priority
+    {
+        CONTROL,
+        DATA
+    }
+
 }
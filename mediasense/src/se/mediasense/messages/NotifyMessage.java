@@ -106,12 +106,18 @@ public final class NotifyMessage extends MediaSenseMessage
     }
 
     /**
-     * Returns the java.io.Serializable value associated with the requested UCI
+     * Returns the java.io.Serializable value associated with the requested UCI.
+     * A value sent as an {@link se.mediasense.messages.EncodedValue} is
+     * decoded here, on first access.
      *
      * @return the value
      */
     public java.io.Serializable getResource()
     {
+        if (resource instanceof EncodedValue)
+        {
+            return ((EncodedValue) resource).getValue();
+        }
         return resource;
     }
 }
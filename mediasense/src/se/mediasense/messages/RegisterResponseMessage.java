@@ -37,6 +37,7 @@ import se.mediasense.distribution.UCI;
 public final class RegisterResponseMessage extends MediaSenseMessage
 {
 
+    private static final long serialVersionUID = 7726425805108290269L;
     private final UCI uci;
     public static final String TYPE = RegisterResponseMessage.class.getName();
     private final boolean result;
@@ -109,4 +110,10 @@ public final class RegisterResponseMessage extends MediaSenseMessage
     {
         return result;
     }
+
+    @Override
+    public Priority getPriority()
+    {
+        return Priority.CONTROL;
+    }
 }
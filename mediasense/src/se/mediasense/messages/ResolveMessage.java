@@ -38,6 +38,7 @@ import se.mediasense.disseminationlayer.communication.MediaSenseHost;
 public final class ResolveMessage extends MediaSenseMessage implements Serializable
 {
 	
+	private static final long serialVersionUID = 6175428613775401063L;
 	private final String uci;
 
         
@@ -91,4 +92,15 @@ public final class ResolveMessage extends MediaSenseMessage implements Serializa
 
         }
 
+    @Override
+    public Priority getPriority()
+    {
+        return Priority.CONTROL;
+    }
+
+    @Override
+    public boolean isIdempotent()
+    {
+        return true;
+    }
 }
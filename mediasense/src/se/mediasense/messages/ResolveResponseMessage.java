@@ -36,6 +36,7 @@ import se.mediasense.distribution.UCI;
 public final class ResolveResponseMessage extends MediaSenseMessage
 {
 
+    private static final long serialVersionUID = -5835406788798666539L;
     private final UCI uci;
     public static final String TYPE = ResolveResponseMessage.class.getName();
 
@@ -98,4 +99,10 @@ public final class ResolveResponseMessage extends MediaSenseMessage
     {
         return uci;
     }
+
+    @Override
+    public Priority getPriority()
+    {
+        return Priority.CONTROL;
+    }
 }
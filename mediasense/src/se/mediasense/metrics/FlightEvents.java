@@ -0,0 +1,198 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.metrics;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import se.mediasense.messages.GetMessage;
+import se.mediasense.messages.MediaSenseMessage;
+import se.mediasense.messages.NotifyMessage;
+import se.mediasense.messages.SetMessage;
+
+/**
+ * Custom JDK Flight Recorder events for the MediaSense hot paths.
+ * <p>The platform targets Java 6, so the events are defined at runtime
+ * through <i>jdk.jfr.EventFactory</i> by reflection. They are off unless the
+ * JVM is started with <i>-Dmediasense.jfr=true</i> on a JDK which has
+ * Flight Recorder. {@link #ENABLED} is a constant, so when it is false the
+ * guarded calls are removed by the JIT and cost nothing.
+ * <p>Every event carries the UCI, the message type and a size in bytes, any
+ * of which may be empty, plus the JFR start time and duration.
+ * <pre>
+ * Object e = FlightEvents.ENABLED ? FlightEvents.begin(FlightEvents.Type.MESSAGE_SEND) : null;
+ * ...
+ * FlightEvents.commit(e, uci, msgtype, size);
+ * </pre>
+ */
+public final class FlightEvents
+{
+	public enum Type
+	{
+		MESSAGE_SEND("MessageSend", "Message Send"),
+		MESSAGE_RECEIVE("MessageReceive", "Message Receive"),
+		LISTENER_DISPATCH("ListenerDispatch", "Listener Dispatch"),
+		DHT_OPERATION("DHTOperation", "DHT Operation"),
+		EXECUTOR_REJECTION("ExecutorRejection", "Executor Rejection"),
+		PUBSUB_FANOUT("PubSubFanOut", "Pub/Sub Fan-out");
+
+		private final String name;
+		private final String label;
+
+		private Type(String _name, String _label)
+		{
+			name = _name;
+			label = _label;
+		}
+	}
+
+	public static final boolean ENABLED;
+	private static final Object[] FACTORIES = new Object[Type.values().length];
+	private static Method newEvent;
+	private static Method begin;
+	private static Method end;
+	private static Method commit;
+	private static Method set;
+
+	static
+	{
+		boolean enabled = false;
+		if (Boolean.getBoolean("mediasense.jfr"))
+		{
+			try
+			{
+				define();
+				enabled = true;
+			} catch (Throwable t)
+			{
+				//no Flight Recorder on this JVM
+				System.err.println("MediaSense JFR events unavailable: " + t);
+			}
+		}
+		ENABLED = enabled;
+	}
+
+	private FlightEvents()
+	{
+	}
+
+	/**
+	 * Creates and begins an event.
+	 * @return the event, or null when the events are disabled
+	 */
+	public static Object begin(Type type)
+	{
+		if (!ENABLED)
+		{
+			return null;
+		}
+		try
+		{
+			Object event = newEvent.invoke(FACTORIES[type.ordinal()]);
+			begin.invoke(event);
+			return event;
+		} catch (Exception e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Ends and commits an event returned by {@link #begin(Type)}.
+	 * @param event the event, null is ignored
+	 * @param uci the UCI involved, or null
+	 * @param msgtype the message type or operation, or null
+	 * @param size the size in bytes, or -1 when unknown
+	 */
+	public static void commit(Object event, String uci, String msgtype, long size)
+	{
+		if (event == null)
+		{
+			return;
+		}
+		try
+		{
+			end.invoke(event);
+			set.invoke(event, 0, uci);
+			set.invoke(event, 1, msgtype);
+			set.invoke(event, 2, size);
+			commit.invoke(event);
+		} catch (Exception e)
+		{
+			//never let a diagnostic event break the caller
+		}
+	}
+
+	/**
+	 * Returns the UCI a message is about, or null if it does not carry one.
+	 */
+	public static String uciOf(MediaSenseMessage msg)
+	{
+		if (msg instanceof GetMessage && ((GetMessage) msg).getUCI() != null)
+		{
+			return ((GetMessage) msg).getUCI().getUciAsString();
+		}
+		if (msg instanceof NotifyMessage && ((NotifyMessage) msg).getUCI() != null)
+		{
+			return ((NotifyMessage) msg).getUCI().getUciAsString();
+		}
+		if (msg instanceof SetMessage && ((SetMessage) msg).getUci() != null)
+		{
+			return ((SetMessage) msg).getUci().getUciAsString();
+		}
+		return null;
+	}
+
+	/**
+	 * Defines one event type per {@link Type} with jdk.jfr.EventFactory.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void define() throws Exception
+	{
+		Class<?> factoryclass = Class.forName("jdk.jfr.EventFactory");
+		Class<?> eventclass = Class.forName("jdk.jfr.Event");
+		Class<?> elementclass = Class.forName("jdk.jfr.AnnotationElement");
+		Class<?> descriptorclass = Class.forName("jdk.jfr.ValueDescriptor");
+		Class<? extends Annotation> nameclass = (Class<? extends Annotation>) Class.forName("jdk.jfr.Name");
+		Class<? extends Annotation> labelclass = (Class<? extends Annotation>) Class.forName("jdk.jfr.Label");
+		Class<? extends Annotation> categoryclass = (Class<? extends Annotation>) Class.forName("jdk.jfr.Category");
+		Constructor<?> element = elementclass.getConstructor(Class.class, Object.class);
+		Constructor<?> descriptor = descriptorclass.getConstructor(Class.class, String.class);
+		Method create = factoryclass.getMethod("create", List.class, List.class);
+
+		List<Object> fields = new ArrayList<Object>();
+		fields.add(descriptor.newInstance(String.class, "uci"));
+		fields.add(descriptor.newInstance(String.class, "msgType"));
+		fields.add(descriptor.newInstance(long.class, "size"));
+		for (Type type : Type.values())
+		{
+			List<Object> annotations = new ArrayList<Object>();
+			annotations.add(element.newInstance(nameclass, "se.mediasense." + type.name));
+			annotations.add(element.newInstance(labelclass, type.label));
+			annotations.add(element.newInstance(categoryclass, new String[] { "MediaSense" }));
+			FACTORIES[type.ordinal()] = create.invoke(null, annotations, fields);
+		}
+		newEvent = factoryclass.getMethod("newEvent");
+		begin = eventclass.getMethod("begin");
+		end = eventclass.getMethod("end");
+		commit = eventclass.getMethod("commit");
+		set = eventclass.getMethod("set", int.class, Object.class);
+	}
+}
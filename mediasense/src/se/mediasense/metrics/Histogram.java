@@ -0,0 +1,144 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the manner of
+ * HdrHistogram.
+ * <p>Every power of two is split into 16 linear sub-buckets, which keeps the
+ * error of a reported percentile below 1/16 of the value, for any value from
+ * one microsecond up to the range of a long, in a fixed array of 960 counts.
+ * Recording is a few shifts and one atomic increment.
+ */
+public final class Histogram
+{
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	Histogram()
+	{
+	}
+
+	/**
+	 * Records a value in microseconds. Negative values are recorded as 0.
+	 */
+	public void record(long micros)
+	{
+		long v = micros < 0 ? 0 : micros;
+		counts.incrementAndGet(indexOf(v));
+		count.incrementAndGet();
+		sum.addAndGet(v);
+		long m = max.get();
+		while (v > m && !max.compareAndSet(m, v))
+		{
+			m = max.get();
+		}
+	}
+
+	/**
+	 * Records the time elapsed since a {@link System#nanoTime()} timestamp.
+	 */
+	public void recordSince(long startnanos)
+	{
+		record((System.nanoTime() - startnanos) / 1000);
+	}
+
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	public long getSum()
+	{
+		return sum.get();
+	}
+
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	public double getMean()
+	{
+		long c = count.get();
+		return c == 0 ? 0 : (double) sum.get() / c;
+	}
+
+	/**
+	 * Returns the highest value in the bucket holding the given percentile.
+	 * @param percentile between 0 and 100
+	 */
+	public long getPercentile(double percentile)
+	{
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+		{
+			return 0;
+		}
+		long target = (long) Math.ceil(total * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+		if (target < 1)
+		{
+			target = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += snapshot[i];
+			if (seen >= target)
+			{
+				return Math.min(highestValueOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	static int indexOf(long v)
+	{
+		if (v < SUB_COUNT)
+		{
+			return (int) v;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(v);
+		int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+		return SUB_COUNT + (exp - SUB_BITS) * SUB_COUNT + sub;
+	}
+
+	static long highestValueOf(int index)
+	{
+		if (index < SUB_COUNT)
+		{
+			return index;
+		}
+		int shift = (index - SUB_COUNT) / SUB_COUNT;
+		long lowest = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.json.simple.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import se.mediasense.tracing.Tracer;
+import se.mediasense.util.MediaSenseConstants;
+
+/**
+ * Registry of the counters, gauges and latency histograms kept by the
+ * platform.
+ * <p>Metrics are created on first use by name and live for the lifetime of
+ * the JVM. They are exported as attributes of the JMX MBean
+ * <i>se.mediasense:type=Metrics</i> unless <i>metricsjmx</i> is 0, and as JSON
+ * at <i>http://localhost:&lt;metricshttpport&gt;/metrics</i> when
+ * <i>metricshttpport</i> is set. The same endpoint serves the buffered trace
+ * spans at <i>/traces</i>, see {@link se.mediasense.tracing.Tracer}.
+ * <p>Histograms are in microseconds and are exported as count, mean, max and
+ * the 50th, 90th, 99th and 99.9th percentiles.
+ */
+public final class MetricsRegistry
+{
+	private static final MetricsRegistry SHARED_INSTANCE = new MetricsRegistry();
+	private static final String OBJECT_NAME = "se.mediasense:type=Metrics";
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private HttpServer server = null;
+	private ObjectName mbeanname = null;
+
+	private MetricsRegistry()
+	{
+	}
+
+	public static MetricsRegistry getSharedInstance()
+	{
+		return SHARED_INSTANCE;
+	}
+
+	public Counter counter(String name)
+	{
+		Counter c = counters.get(name);
+		if (c == null)
+		{
+			c = new Counter();
+			Counter existing = counters.putIfAbsent(name, c);
+			if (existing != null)
+			{
+				c = existing;
+			}
+		}
+		return c;
+	}
+
+	public Histogram histogram(String name)
+	{
+		Histogram h = histograms.get(name);
+		if (h == null)
+		{
+			h = new Histogram();
+			Histogram existing = histograms.putIfAbsent(name, h);
+			if (existing != null)
+			{
+				h = existing;
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Registers a gauge, replacing any earlier gauge with the same name.
+	 */
+	public void gauge(String name, Gauge gauge)
+	{
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Unregisters the counter, histogram and gauge of that name, such as
+	 * those of a peer which is gone.
+	 */
+	public void remove(String name)
+	{
+		counters.remove(name);
+		histograms.remove(name);
+		gauges.remove(name);
+	}
+
+	/**
+	 * Returns all metrics as flat name/value pairs, sorted by name.
+	 */
+	public Map<String, Number> snapshot()
+	{
+		Map<String, Number> values = new TreeMap<String, Number>();
+		for (Map.Entry<String, Counter> e : counters.entrySet())
+		{
+			values.put(e.getKey(), e.getValue().get());
+		}
+		for (Map.Entry<String, Gauge> e : gauges.entrySet())
+		{
+			try
+			{
+				values.put(e.getKey(), e.getValue().getValue());
+			} catch (RuntimeException ex)
+			{
+				ex.printStackTrace();
+			}
+		}
+		for (Map.Entry<String, Histogram> e : histograms.entrySet())
+		{
+			Histogram h = e.getValue();
+			values.put(e.getKey() + ".count", h.getCount());
+			values.put(e.getKey() + ".mean", h.getMean());
+			values.put(e.getKey() + ".max", h.getMax());
+			for (double p : PERCENTILES)
+			{
+				values.put(e.getKey() + ".p" + formatPercentile(p), h.getPercentile(p));
+			}
+		}
+		return values;
+	}
+
+	@SuppressWarnings("unchecked")
+	public String toJSONString()
+	{
+		JSONObject obj = new JSONObject();
+		obj.putAll(snapshot());
+		return obj.toJSONString();
+	}
+
+	/**
+	 * Starts the exporters enabled in the configuration.
+	 */
+	public synchronized void start()
+	{
+		if (mbeanname == null && MediaSenseConstants.getIntProperty("metricsjmx", 1) != 0)
+		{
+			try
+			{
+				MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+				ObjectName name = new ObjectName(OBJECT_NAME);
+				if (!mbs.isRegistered(name))
+				{
+					mbs.registerMBean(new MetricsMBean(), name);
+				}
+				mbeanname = name;
+			} catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+		int port = MediaSenseConstants.getIntProperty("metricshttpport", 0);
+		if (server == null && port > 0)
+		{
+			try
+			{
+				server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+				server.createContext("/metrics", new HttpHandler()
+				{
+					public void handle(HttpExchange exchange) throws IOException
+					{
+						respond(exchange, toJSONString());
+					}
+				});
+				server.createContext("/traces", new HttpHandler()
+				{
+					public void handle(HttpExchange exchange) throws IOException
+					{
+						respond(exchange, Tracer.getSharedInstance().toJSONString());
+					}
+				});
+				server.start();
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+				server = null;
+			}
+		}
+	}
+
+	public synchronized void stop()
+	{
+		if (server != null)
+		{
+			server.stop(0);
+			server = null;
+		}
+		if (mbeanname != null)
+		{
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanname);
+			} catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+			mbeanname = null;
+		}
+	}
+
+	private static void respond(HttpExchange exchange, String json) throws IOException
+	{
+		byte[] body = json.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	private static String formatPercentile(double p)
+	{
+		return p == Math.floor(p) ? String.valueOf((long) p) : String.valueOf(p).replace(".", "");
+	}
+
+	/**
+	 * Exposes every metric as a read-only attribute. The attribute set grows
+	 * as metrics are created, so the MBeanInfo is built on each request.
+	 */
+	private class MetricsMBean implements DynamicMBean
+	{
+		public Object getAttribute(String attribute) throws AttributeNotFoundException
+		{
+			Number value = snapshot().get(attribute);
+			if (value == null)
+			{
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value;
+		}
+
+		public AttributeList getAttributes(String[] attributes)
+		{
+			Map<String, Number> values = snapshot();
+			AttributeList list = new AttributeList();
+			for (String a : attributes)
+			{
+				if (values.containsKey(a))
+				{
+					list.add(new Attribute(a, values.get(a)));
+				}
+			}
+			return list;
+		}
+
+		public MBeanInfo getMBeanInfo()
+		{
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for (Map.Entry<String, Number> e : snapshot().entrySet())
+			{
+				attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false));
+			}
+			return new MBeanInfo(MetricsRegistry.class.getName(), "MediaSense metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature)
+		{
+			throw new UnsupportedOperationException(actionName);
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+		{
+			throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+		}
+
+		public AttributeList setAttributes(AttributeList attributes)
+		{
+			return new AttributeList();
+		}
+	}
+}
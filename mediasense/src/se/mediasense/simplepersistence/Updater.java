@@ -26,15 +26,16 @@ import net.tomp2p.futures.FutureDHT;
 import net.tomp2p.p2p.Peer;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.storage.Data;
+import se.mediasense.distribution.CompressedValue;
 import se.mediasense.distribution.FuturePrimitive;
-import se.mediasense.distribution.P2PCommunication;
 import se.mediasense.distribution.PrimitiveListener;
 import se.mediasense.distribution.Updater.REASON;
-import se.mediasense.util.MediaSenseConstants;
+import se.mediasense.util.MediaSenseContext;
 
 
 public class Updater implements BaseFutureListener<FutureDHT>, FuturePrimitive
 {
+	private final MediaSenseContext context;
 	private String datakey = null;
 	private Serializable data = null;
 	private PrimitiveListener lookuplistener = null;
@@ -59,6 +60,15 @@ public class Updater implements BaseFutureListener<FutureDHT>, FuturePrimitive
 	
 	public Updater(String _key, Serializable _data)
 	{
+		this(_key, _data, MediaSenseContext.getDefault());
+	}
+
+	/**
+	 * Creates the primitive on the given node.
+	 */
+	public Updater(String _key, Serializable _data, MediaSenseContext _context)
+	{
+		context = _context;
 		datakey = _key;
 		data = _data;
 		
@@ -68,7 +78,7 @@ public class Updater implements BaseFutureListener<FutureDHT>, FuturePrimitive
 	{
 		
 		    state = STATE.DUPLICATE_CONTROL;		
-			futureDHT = P2PCommunication.peer.get(Number160.createHash(datakey)).start();
+			futureDHT = context.getPeer().get(Number160.createHash(datakey)).start();
 		    futureDHT.addListener(this);
 		    lookuplistener = l;
 
@@ -84,16 +94,16 @@ public class Updater implements BaseFutureListener<FutureDHT>, FuturePrimitive
 		JSONObject obj=new JSONObject();
 		obj.put("key", key.toString());
 		obj.put("uci", datakey);
-		obj.put("mediasensehost", MediaSenseConstants.LOCALHOST.getHostID());
-		obj.put("data", data);
+		obj.put("mediasensehost", context.getLocalHost().getHostID());
+		obj.put("data", CompressedValue.compress(data, context));
 		_data = new Data(obj);
 	    if(future.isFailed())
 	    {
 	    
-		    futureDHT = P2PCommunication.peer.put(key).setPutIfAbsent(true).setData(_data).start();
+		    futureDHT = context.getPeer().put(key).setPutIfAbsent(true).setData(_data).start();
 			complete=(futureDHT.isCompleted());
 			registered =futureDHT.isSuccess();
-			peer = P2PCommunication.peer;
+			peer = context.getPeer();
 			DHTReason = futureDHT.getFailedReason();
 			lookuplistener.handleCompleted(this);
 
@@ -103,7 +113,7 @@ public class Updater implements BaseFutureListener<FutureDHT>, FuturePrimitive
 	    {
 			complete=(futureDHT.isCompleted());
 			registered =false;
-			peer = P2PCommunication.peer;
+			peer = context.getPeer();
 			DHTReason = futureDHT.getFailedReason();
 			reason = REASON.DUPLICATE;
 			lookuplistener.handleCompleted(this);
@@ -130,24 +140,24 @@ public class Updater implements BaseFutureListener<FutureDHT>, FuturePrimitive
 		JSONObject obj=new JSONObject();
 		obj.put("key", key.toString());
 		obj.put("uci", datakey);
-		obj.put("host", MediaSenseConstants.getProperty("mediasensehostid"));
+		obj.put("host", context.getConfiguration().getHostID());
 		_data = new Data(obj);
-	    futureDHT = P2PCommunication.peer.get(Number160.createHash(datakey)).start();
-	    futureDHT.awaitUninterruptibly();
+	    futureDHT = context.getPeer().get(Number160.createHash(datakey)).start();
+	    context.getTimeouts().await("get", futureDHT);
 	    if(futureDHT.isFailed())
 	    {
-		    futureDHT = P2PCommunication.peer.put(key).setPutIfAbsent(true).setData(_data).start();
-		    futureDHT.awaitUninterruptibly();  
+		    futureDHT = context.getPeer().put(key).setPutIfAbsent(true).setData(_data).start();
+		    context.getTimeouts().await("put", futureDHT);
 			complete=(futureDHT.isCompleted());
 			registered =futureDHT.isSuccess();
-			peer = P2PCommunication.peer;
+			peer = context.getPeer();
 			DHTReason = futureDHT.getFailedReason();
 	    }
 	    else
 	    {
 			complete=(futureDHT.isCompleted());
 			registered =false;
-			peer = P2PCommunication.peer;
+			peer = context.getPeer();
 			DHTReason = futureDHT.getFailedReason();
 			reason = REASON.DUPLICATE;
 	    	
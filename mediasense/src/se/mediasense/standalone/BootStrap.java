@@ -3,16 +3,29 @@ package se.mediasense.standalone;
 import se.mediasense.interfacelayer.MediaSenseApplication;
 import se.mediasense.interfacelayer.MediaSensePlatform;
 import se.mediasense.messages.MediaSenseMessage;
-import se.mediasense.distribution.P2PCommunication;
 
+/**
+ * Runs a bootstrap node. Besides letting nodes join through it, it answers
+ * their join requests with a cached sample of healthy peers, within the
+ * limits described in {@link se.mediasense.distribution.BootStrapService}.
+ * The join rate and the rejected joins are reported through the
+ * {@link se.mediasense.metrics.MetricsRegistry} as <i>bootstrap.join.*</i>.
+ */
 public class BootStrap extends MediaSenseApplication {
 
 	private static int bootport = 2000;
 
 	public void run() 
     {
-            MediaSensePlatform m = new MediaSensePlatform(this);
-            ((P2PCommunication) P2PCommunication.getSharedInstance()).initBootStrap(bootport);
+            final MediaSensePlatform m = new MediaSensePlatform(this);
+            m.getContext().getCommunication().initBootStrap(bootport);
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    m.shutdown();
+                }
+            }, "mediasense-bootstrap-shutdown"));
 
     }
     
@@ -0,0 +1,320 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.standalone;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import se.mediasense.distribution.UCI;
+import se.mediasense.futures.FutureStartup;
+import se.mediasense.interfacelayer.DrainReport;
+import se.mediasense.interfacelayer.MediaSenseApplication;
+import se.mediasense.interfacelayer.MediaSensePlatform;
+import se.mediasense.messages.MediaSenseMessage;
+import se.mediasense.metrics.Histogram;
+import se.mediasense.metrics.MetricsRegistry;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * Runs N MediaSense nodes in one JVM on the loopback interface and measures
+ * the primitives under a mixed workload, for each N of a list.
+ * <p>Node 0 is the bootstrap node, the others join through it. Each node is a
+ * {@link se.mediasense.util.MediaSenseContext} of its own, with its state in a
+ * temporary directory and its overlay records in memory. Once all nodes are ready, every node registers and
+ * publishes a few sensors. Then one thread per node issues operations picked
+ * at random, by weight, from the mix, against random sensors of random nodes.
+ * <p>Usage: <tt>Simulation [nodes] [operations] [mix] [baseport] [properties]</tt>, e.g.
+ * <tt>Simulation 1,2,4,8 200 resolve=40,get=40,register=10,publish=10 4000 hedgedlookups=true</tt>
+ * where operations is the number of operations per node, and properties are
+ * set on every node. The latencies are
+ * kept in the histograms <i>simulation.&lt;N&gt;.&lt;operation&gt;</i> of the
+ * {@link se.mediasense.metrics.MetricsRegistry}, and summarized as a table
+ * once all runs are done. The nodes are drained one by one at the end of a
+ * run, and any drain which dropped work is reported.
+ */
+public class Simulation
+{
+	private static final String[] OPERATIONS = { "resolve", "get", "register", "publish" };
+	private static final int SENSORS_PER_NODE = 10;
+	private static final long DRAIN_MILLIS = 2000;
+	private static final long READY_MILLIS = 10000;
+	private final int[] sizes;
+	private final int operations;
+	private final int[] weights = new int[OPERATIONS.length];
+	private final int baseport;
+	private final Map<Integer, Long> elapsed = new LinkedHashMap<Integer, Long>();
+	private final Map<String, String> properties = new LinkedHashMap<String, String>();
+
+	/**
+	 * @param properties comma separated <tt>property=value</tt> pairs set on
+	 * every node, e.g. to compare settings, may be empty
+	 */
+	public Simulation(int[] _sizes, int _operations, String mix, int _baseport, String _properties)
+	{
+		sizes = _sizes;
+		operations = _operations;
+		baseport = _baseport;
+		for (String entry : _properties.split(","))
+		{
+			int eq = entry.indexOf('=');
+			if (eq > 0)
+			{
+				properties.put(entry.substring(0, eq).trim(), entry.substring(eq + 1).trim());
+			}
+		}
+		for (String entry : mix.split(","))
+		{
+			String[] kv = entry.split("=");
+			for (int i = 0; i < OPERATIONS.length; i++)
+			{
+				if (OPERATIONS[i].equals(kv[0].trim()))
+				{
+					weights[i] = Integer.parseInt(kv[1].trim());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs the workload once for every number of nodes, then prints the
+	 * results.
+	 */
+	public void run() throws Exception
+	{
+		for (int r = 0; r < sizes.length; r++)
+		{
+			//every run gets its own ports, the previous ones may linger
+			runNodes(sizes[r], baseport + r * 100);
+		}
+		report();
+	}
+
+	private void runNodes(int n, int port) throws Exception
+	{
+		File basedir = File.createTempFile("mediasense-sim", "");
+		basedir.delete();
+		basedir.mkdirs();
+		List<MediaSensePlatform> nodes = new ArrayList<MediaSensePlatform>();
+		for (int i = 0; i < n; i++)
+		{
+			MediaSenseContext context = new MediaSenseContext("sim" + n + "-" + i, new File(basedir, "node" + i));
+			MediaSensePlatform platform = new MediaSensePlatform(new SimulatedApplication(), context);
+			context.getConfigurationStore().setProperty("overlaystorage", "memory");
+			for (Map.Entry<String, String> e : properties.entrySet())
+			{
+				context.getConfigurationStore().setProperty(e.getKey(), e.getValue());
+			}
+			if (i == 0)
+			{
+				context.getCommunication().initBootStrap(port);
+				context.getLeaseRenewer().start();
+			}
+			else
+			{
+				platform.init("127.0.0.1", port, port + i);
+			}
+			nodes.add(platform);
+		}
+		for (int i = 0; i < n; i++)
+		{
+			FutureStartup startup = nodes.get(i).getReadiness();
+			if (!startup.awaitUninterruptibly(READY_MILLIS) || !startup.isSuccess())
+			{
+				System.err.println("node " + i + " of " + n + " not ready " + startup.getFailedReason());
+			}
+		}
+
+		for (int i = 0; i < n; i++)
+		{
+			for (int k = 0; k < SENSORS_PER_NODE; k++)
+			{
+				String uci = sensor(i, k);
+				nodes.get(i).registerUCI(uci).startSynchronousRegistration();
+				nodes.get(i).publish(new UCI(uci, null), Integer.valueOf(k));
+			}
+		}
+
+		final CountDownLatch done = new CountDownLatch(n);
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++)
+		{
+			final int node = i;
+			final int size = n;
+			final MediaSensePlatform platform = nodes.get(i);
+			Thread t = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						workload(platform, node, size);
+					} finally
+					{
+						done.countDown();
+					}
+				}
+			}, "simulation-" + n + "-" + i);
+			t.start();
+		}
+		done.await();
+		elapsed.put(Integer.valueOf(n), Long.valueOf(System.nanoTime() - start));
+
+		for (int i = n - 1; i >= 0; i--)
+		{
+			DrainReport report = nodes.get(i).drain(DRAIN_MILLIS);
+			if (!report.isComplete())
+			{
+				System.err.println("node " + i + " of " + n + " " + report);
+			}
+		}
+		delete(basedir);
+	}
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private void workload(MediaSensePlatform platform, int node, int n)
+	{
+		Random random = new Random(node * 31L + n);
+		MetricsRegistry metrics = MetricsRegistry.getSharedInstance();
+		int extra = 0;
+		for (int i = 0; i < operations; i++)
+		{
+			int op = pick(random);
+			String uci = sensor(random.nextInt(n), random.nextInt(SENSORS_PER_NODE));
+			long start = System.nanoTime();
+			boolean success;
+			if (op == 0)
+			{
+				success = platform.resolveUCI(uci).startSynchronousResolve().isSuccess();
+			}
+			else if (op == 1)
+			{
+				success = platform.get(uci).startSynchronousGet().getData().containsKey(uci);
+			}
+			else if (op == 2)
+			{
+				success = platform.registerUCI("sim/node" + node + "/extra" + extra++).startSynchronousRegistration().isSuccess();
+			}
+			else
+			{
+				platform.publish(new UCI(sensor(node, random.nextInt(SENSORS_PER_NODE)), null), Integer.valueOf(i));
+				success = true;
+			}
+			String name = "simulation." + n + "." + OPERATIONS[op];
+			metrics.histogram(name).recordSince(start);
+			if (!success)
+			{
+				metrics.counter(name + ".failed").inc();
+			}
+		}
+	}
+
+	private int pick(Random random)
+	{
+		int total = 0;
+		for (int w : weights)
+		{
+			total += w;
+		}
+		int x = random.nextInt(total);
+		for (int i = 0; i < weights.length; i++)
+		{
+			x -= weights[i];
+			if (x < 0)
+			{
+				return i;
+			}
+		}
+		return weights.length - 1;
+	}
+
+	private static String sensor(int node, int k)
+	{
+		return "sim/node" + node + "/sensor" + k;
+	}
+
+	/**
+	 * Prints one line per number of nodes and operation. Latencies are in
+	 * microseconds, throughput is per second of the whole run.
+	 */
+	private void report()
+	{
+		MetricsRegistry metrics = MetricsRegistry.getSharedInstance();
+		System.out.println(String.format("%6s %-9s %8s %8s %9s %9s %9s %9s %7s", "nodes", "op", "count", "ops/s", "p50", "p90", "p99", "max", "failed"));
+		for (Map.Entry<Integer, Long> run : elapsed.entrySet())
+		{
+			double seconds = run.getValue().longValue() / 1e9;
+			for (String op : OPERATIONS)
+			{
+				String name = "simulation." + run.getKey() + "." + op;
+				Histogram h = metrics.histogram(name);
+				if (h.getCount() == 0)
+				{
+					continue;
+				}
+				System.out.println(String.format("%6d %-9s %8d %8.1f %9d %9d %9d %9d %7d", run.getKey(), op, h.getCount(), h.getCount() / seconds,
+						h.getPercentile(50), h.getPercentile(90), h.getPercentile(99), h.getMax(), metrics.counter(name + ".failed").get()));
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		String nodes = args.length > 0 ? args[0] : "1,2,4,8";
+		int operations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		String mix = args.length > 2 ? args[2] : "resolve=40,get=40,register=10,publish=10";
+		int baseport = args.length > 3 ? Integer.parseInt(args[3]) : 4000;
+		String properties = args.length > 4 ? args[4] : "";
+
+		String[] parts = nodes.split(",");
+		int[] sizes = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+		{
+			sizes[i] = Integer.parseInt(parts[i].trim());
+		}
+		new Simulation(sizes, operations, mix, baseport, properties).run();
+		System.exit(0);
+	}
+
+	/**
+	 * The default application of a simulated node. Published sensors are
+	 * answered from the value store, so nothing reaches it.
+	 */
+	private static class SimulatedApplication extends MediaSenseApplication
+	{
+		@Override
+		public void handleMessage(MediaSenseMessage _msg)
+		{
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.tracing;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A timed operation within a trace. A span is recorded into the
+ * {@link Tracer} ring buffer when it ends.
+ */
+public final class Span
+{
+	private final TraceContext context;
+	private final long parentID;
+	private final String name;
+	private final long startMicros;
+	private final long startNanos;
+	private final AtomicBoolean ended = new AtomicBoolean(false);
+	private volatile long durationMicros = -1;
+	private volatile String uci = null;
+	private volatile String msgtype = null;
+	private volatile String host = null;
+
+	Span(TraceContext _context, long _parentID, String _name)
+	{
+		context = _context;
+		parentID = _parentID;
+		name = _name;
+		startMicros = System.currentTimeMillis() * 1000;
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Returns the context to propagate to child spans, locally or in a message.
+	 */
+	public TraceContext getContext()
+	{
+		return context;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public Span setUCI(String _uci)
+	{
+		uci = _uci;
+		return this;
+	}
+
+	public Span setMsgType(String _msgtype)
+	{
+		msgtype = _msgtype;
+		return this;
+	}
+
+	/**
+	 * Sets the host the span ran on, needed when one JVM runs several nodes.
+	 */
+	public Span setHost(String _host)
+	{
+		host = _host;
+		return this;
+	}
+
+	/**
+	 * Ends the span and records it. Only the first call has any effect.
+	 */
+	public void end()
+	{
+		if (!ended.compareAndSet(false, true))
+		{
+			return;
+		}
+		durationMicros = (System.nanoTime() - startNanos) / 1000;
+		Tracer.getSharedInstance().record(this);
+	}
+
+	@SuppressWarnings("unchecked")
+	JSONObject toJSON(String defaulthost)
+	{
+		JSONObject obj = new JSONObject();
+		obj.put("trace", Long.toHexString(context.getTraceID()));
+		obj.put("span", Long.toHexString(context.getSpanID()));
+		if (parentID != 0)
+		{
+			obj.put("parent", Long.toHexString(parentID));
+		}
+		obj.put("name", name);
+		obj.put("host", host == null ? defaulthost : host);
+		obj.put("start", startMicros);
+		obj.put("duration", durationMicros);
+		if (uci != null)
+		{
+			obj.put("uci", uci);
+		}
+		if (msgtype != null)
+		{
+			obj.put("msgtype", msgtype);
+		}
+		return obj;
+	}
+}
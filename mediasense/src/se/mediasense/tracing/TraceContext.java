@@ -0,0 +1,52 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.tracing;
+
+import java.io.Serializable;
+
+/**
+ * The part of a span which travels with a
+ * {@link se.mediasense.messages.MediaSenseMessage}, so that the span recorded
+ * by the receiving host joins the trace of the sender.
+ * <p>Only sampled traces have a context, an unsampled message carries none.
+ */
+public final class TraceContext implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	private final long traceID;
+	private final long spanID;
+
+	TraceContext(long _traceID, long _spanID)
+	{
+		traceID = _traceID;
+		spanID = _spanID;
+	}
+
+	public long getTraceID()
+	{
+		return traceID;
+	}
+
+	/**
+	 * Returns the ID of the span which is the parent of spans created from this
+	 * context.
+	 */
+	public long getSpanID()
+	{
+		return spanID;
+	}
+}
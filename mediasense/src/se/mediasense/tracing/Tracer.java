@@ -0,0 +1,159 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.tracing;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.json.simple.JSONArray;
+
+import se.mediasense.util.MediaSenseConstants;
+import se.mediasense.util.MediaSenseContext;
+
+/**
+ * Sampled tracing of primitives and the messages they cause.
+ * <p>A trace is started by a primitive, sampled with a probability of
+ * <i>tracesamplepermille</i>/1000. Its context is carried in every
+ * {@link se.mediasense.messages.MediaSenseMessage} sent on its behalf, and the
+ * receiving host records its own spans under the same trace. Unsampled
+ * operations create no spans at all.
+ * <p>Finished spans are written into a lock-free ring buffer holding the last
+ * {@value #BUFFER_SIZE} spans, which can be dumped as JSON with
+ * {@link #toJSONString()} or read from <i>/traces</i> on the metrics HTTP
+ * endpoint. Joining the dumps of all hosts by trace ID gives the full path of
+ * a request.
+ */
+public final class Tracer
+{
+	public static final int BUFFER_SIZE = 4096;
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+	private static final Tracer SHARED_INSTANCE = new Tracer();
+	private final AtomicReferenceArray<Span> ring = new AtomicReferenceArray<Span>(BUFFER_SIZE);
+	private final AtomicLong cursor = new AtomicLong();
+	private final AtomicLong seed = new AtomicLong(System.nanoTime() ^ System.currentTimeMillis());
+	private final ThreadLocal<TraceContext> current = new ThreadLocal<TraceContext>();
+
+	private Tracer()
+	{
+	}
+
+	public static Tracer getSharedInstance()
+	{
+		return SHARED_INSTANCE;
+	}
+
+	/**
+	 * Starts the root span of an operation. When the calling thread is already
+	 * working on behalf of a trace, the span joins that trace instead.
+	 * @return the span, or null if the operation is not sampled
+	 */
+	public Span startTrace(String name)
+	{
+		TraceContext parent = current.get();
+		if (parent != null)
+		{
+			return startSpan(name, parent);
+		}
+		int permille = MediaSenseConstants.getConfiguration().getTraceSamplePerMille();
+		if (permille <= 0)
+		{
+			return null;
+		}
+		long traceid = nextID();
+		if (permille < 1000 && (traceid >>> 1) % 1000 >= permille)
+		{
+			return null;
+		}
+		return new Span(new TraceContext(traceid, nextID()), 0, name);
+	}
+
+	/**
+	 * Starts a child span.
+	 * @param parent the context of the parent span, may be null
+	 * @return the span, or null if parent is null
+	 */
+	public Span startSpan(String name, TraceContext parent)
+	{
+		if (parent == null)
+		{
+			return null;
+		}
+		return new Span(new TraceContext(parent.getTraceID(), nextID()), parent.getSpanID(), name);
+	}
+
+	/**
+	 * Returns the trace the calling thread works on behalf of, or null.
+	 */
+	public TraceContext getCurrent()
+	{
+		return current.get();
+	}
+
+	/**
+	 * Sets the trace the calling thread works on behalf of, so that messages
+	 * sent and primitives started by it join the trace.
+	 * @return the previous context, to be restored afterwards
+	 */
+	public TraceContext setCurrent(TraceContext context)
+	{
+		TraceContext previous = current.get();
+		if (context == null)
+		{
+			current.remove();
+		}
+		else
+		{
+			current.set(context);
+		}
+		return previous;
+	}
+
+	void record(Span span)
+	{
+		ring.set((int) (cursor.getAndIncrement() & (BUFFER_SIZE - 1)), span);
+	}
+
+	/**
+	 * Returns the buffered spans as a JSON array, oldest first.
+	 */
+	@SuppressWarnings("unchecked")
+	public String toJSONString()
+	{
+		String host = MediaSenseContext.getDefault().getHostID();
+		long end = cursor.get();
+		long start = Math.max(0, end - BUFFER_SIZE);
+		JSONArray spans = new JSONArray();
+		for (long i = start; i < end; i++)
+		{
+			Span span = ring.get((int) (i & (BUFFER_SIZE - 1)));
+			if (span != null)
+			{
+				spans.add(span.toJSON(host));
+			}
+		}
+		return spans.toJSONString();
+	}
+
+	private long nextID()
+	{
+		long z = seed.addAndGet(GOLDEN_GAMMA);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		z = z ^ (z >>> 31);
+		return z == 0 ? 1 : z;
+	}
+}
@@ -0,0 +1,262 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.util;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable snapshot of the properties in <i>system/mediasense.ini</i>.
+ * <p>The settings used on hot paths are parsed once, when the snapshot is
+ * built, so reading them is a field load. A change creates a new snapshot
+ * which replaces the current one atomically, see
+ * {@link MediaSenseConstants#getConfiguration()}. Code which reads several
+ * settings should hold on to one snapshot so it sees a consistent set.
+ */
+public final class Configuration
+{
+	public static final int DEFAULT_REPLICATION_FACTOR = 3;
+	public static final int DEFAULT_LEASE_SECONDS = 600;
+	public static final int DEFAULT_LEASE_BATCH = 32;
+	public static final int DEFAULT_PREFIX_DEPTH = 8;
+	public static final int DEFAULT_TRACE_SAMPLE_PERMILLE = 10;
+	public static final int DEFAULT_SEND_RETRIES = 2;
+	public static final int DEFAULT_BACKOFF_MILLIS = 50;
+	public static final int DEFAULT_BACKOFF_MAX_MILLIS = 1000;
+	public static final int DEFAULT_BATCH_MESSAGES = 32;
+	public static final int DEFAULT_BATCH_BYTES = 60000;
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+	public static final int DEFAULT_FLOW_CREDITS = 64;
+	public static final int DEFAULT_FLOW_STALL_MILLIS = 2000;
+
+	private final Properties properties;
+	private final String hostID;
+	private final int replicationFactor;
+	private final int leaseSeconds;
+	private final int leaseRenewalBatch;
+	private final int prefixIndexDepth;
+	private final int watchSeconds;
+	private final int traceSamplePerMille;
+	private final int sendRetries;
+	private final int sendBackoffMillis;
+	private final int sendBackoffMaxMillis;
+	private final int batchMaxMessages;
+	private final int batchLingerMillis;
+	private final int batchMaxBytes;
+	private final String compression;
+	private final int compressionThreshold;
+	private final int flowMaxCredits;
+	private final int flowStallMillis;
+	private final ConcurrentHashMap<String, Integer> parsed = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Builds a snapshot from a private copy of the given properties.
+	 */
+	Configuration(Properties _properties)
+	{
+		properties = new Properties();
+		properties.putAll(_properties);
+		hostID = properties.getProperty("mediasensehostid");
+		replicationFactor = parseInt("overlayreplicationfactor", DEFAULT_REPLICATION_FACTOR);
+		leaseSeconds = parseInt("registrationleaseseconds", DEFAULT_LEASE_SECONDS);
+		leaseRenewalBatch = parseInt("leaserenewalbatch", DEFAULT_LEASE_BATCH);
+		prefixIndexDepth = parseInt("prefixindexdepth", DEFAULT_PREFIX_DEPTH);
+		watchSeconds = parseInt("configwatchseconds", 0);
+		traceSamplePerMille = parseInt("tracesamplepermille", DEFAULT_TRACE_SAMPLE_PERMILLE);
+		sendRetries = parseInt("sendretries", DEFAULT_SEND_RETRIES);
+		sendBackoffMillis = parseInt("sendbackoffmillis", DEFAULT_BACKOFF_MILLIS);
+		sendBackoffMaxMillis = parseInt("sendbackoffmaxmillis", DEFAULT_BACKOFF_MAX_MILLIS);
+		batchMaxMessages = parseInt("batchmaxmessages", DEFAULT_BATCH_MESSAGES);
+		batchLingerMillis = parseInt("batchlingermillis", 0);
+		batchMaxBytes = parseInt("batchmaxbytes", DEFAULT_BATCH_BYTES);
+		compression = properties.getProperty("compression");
+		compressionThreshold = parseInt("compressionthreshold", DEFAULT_COMPRESSION_THRESHOLD);
+		flowMaxCredits = parseInt("flowmaxcredits", DEFAULT_FLOW_CREDITS);
+		flowStallMillis = parseInt("flowstallmillis", DEFAULT_FLOW_STALL_MILLIS);
+	}
+
+	/**
+	 * Returns a new snapshot with one property changed.
+	 */
+	Configuration with(String property, String value)
+	{
+		Properties p = new Properties();
+		p.putAll(properties);
+		p.setProperty(property, value);
+		return new Configuration(p);
+	}
+
+	/**
+	 * Returns a copy of all properties, used when the snapshot is saved.
+	 */
+	Properties toProperties()
+	{
+		Properties p = new Properties();
+		p.putAll(properties);
+		return p;
+	}
+
+	public String getProperty(String property)
+	{
+		return properties.getProperty(property);
+	}
+
+	/**
+	 * Returns an integer property, parsing it only on the first read from this
+	 * snapshot.
+	 */
+	public int getIntProperty(String property, int defaultvalue)
+	{
+		Integer value = parsed.get(property);
+		if (value == null)
+		{
+			value = Integer.valueOf(parseInt(property, defaultvalue));
+			parsed.put(property, value);
+		}
+		return value.intValue();
+	}
+
+	public String getHostID()
+	{
+		return hostID;
+	}
+
+	public int getReplicationFactor()
+	{
+		return replicationFactor;
+	}
+
+	/**
+	 * Returns the lease of the records written by this node, 0 when leases are
+	 * disabled.
+	 */
+	public int getLeaseSeconds()
+	{
+		return leaseSeconds;
+	}
+
+	public int getLeaseRenewalBatch()
+	{
+		return leaseRenewalBatch;
+	}
+
+	public int getPrefixIndexDepth()
+	{
+		return prefixIndexDepth;
+	}
+
+	/**
+	 * Returns how often the properties file is checked for changes, 0 when it
+	 * is not watched.
+	 */
+	public int getWatchSeconds()
+	{
+		return watchSeconds;
+	}
+
+	/**
+	 * Returns how many primitives out of a thousand are traced.
+	 */
+	public int getTraceSamplePerMille()
+	{
+		return traceSamplePerMille;
+	}
+
+	/**
+	 * Returns how many times an idempotent message is sent again after a
+	 * failure.
+	 */
+	public int getSendRetries()
+	{
+		return sendRetries;
+	}
+
+	public int getSendBackoffMillis()
+	{
+		return sendBackoffMillis;
+	}
+
+	public int getSendBackoffMaxMillis()
+	{
+		return sendBackoffMaxMillis;
+	}
+
+	/**
+	 * Returns the most messages sent to a destination in one request.
+	 */
+	public int getBatchMaxMessages()
+	{
+		return batchMaxMessages;
+	}
+
+	/**
+	 * Returns how long a batch waits for more messages, 0 when it does not.
+	 */
+	public int getBatchLingerMillis()
+	{
+		return batchLingerMillis;
+	}
+
+	public int getBatchMaxBytes()
+	{
+		return batchMaxBytes;
+	}
+
+	/**
+	 * Returns the name of the compression codec, null for the default one.
+	 */
+	public String getCompression()
+	{
+		return compression;
+	}
+
+	public int getCompressionThreshold()
+	{
+		return compressionThreshold;
+	}
+
+	/**
+	 * Returns the credits granted to the senders of this node, 0 when flow
+	 * control is disabled.
+	 */
+	public int getFlowMaxCredits()
+	{
+		return flowMaxCredits;
+	}
+
+	public int getFlowStallMillis()
+	{
+		return flowStallMillis;
+	}
+
+	private int parseInt(String property, int defaultvalue)
+	{
+		String value = properties.getProperty(property);
+		if (value == null)
+		{
+			return defaultvalue;
+		}
+		try
+		{
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e)
+		{
+			e.printStackTrace();
+			return defaultvalue;
+		}
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The <i>mediasense.ini</i> of one node and its current {@link Configuration}
+ * snapshot.
+ * <p>A change swaps in a new snapshot at once and the file is written shortly
+ * after, once for all changes made in the meantime, through a temporary file
+ * which is renamed over the old one. When <i>configwatchseconds</i> is set the
+ * file is polled and reloaded when someone else changes it.
+ */
+public final class ConfigurationStore
+{
+	private static final long SAVE_DELAY_MILLIS = 200;
+	private static ScheduledExecutorService configExecutor = null;
+	private final File theDir;
+	private final File theFile;
+	private final File tempFile;
+	private final AtomicReference<Configuration> config = new AtomicReference<Configuration>(new Configuration(new Properties()));
+	private final AtomicBoolean savePending = new AtomicBoolean(false);
+	private ScheduledFuture<?> watcher = null;
+	private volatile long lastModified = 0;
+
+	/**
+	 * @param _dir the directory holding mediasense.ini
+	 */
+	public ConfigurationStore(File _dir)
+	{
+		theDir = _dir;
+		theFile = new File(theDir, "mediasense.ini");
+		tempFile = new File(theDir, "mediasense.ini.tmp");
+	}
+
+	/**
+	 * Loads the properties file, creating it with a new host ID if it does not
+	 * exist.
+	 */
+	public void load()
+	{
+		if (!theDir.exists())
+		{
+			theDir.mkdirs();
+		}
+
+		if (!theFile.exists())
+		{
+			Properties props = new Properties();
+
+			props.setProperty("mediasensehostid", MediaSenseID.generateID().toUpperCase()+MediaSenseID.generateID().toUpperCase());
+
+			props.setProperty("overlayreplicationfactor", "3");
+
+			config.set(new Configuration(props));
+			save();
+		}
+		else
+		{
+			reload();
+		}
+		startWatching();
+	}
+
+	/**
+	 * Returns the current configuration snapshot.
+	 */
+	public Configuration getConfiguration()
+	{
+		return config.get();
+	}
+
+	/**
+	 * Reads the properties file and swaps in a new snapshot.
+	 */
+	private void reload()
+	{
+		Properties props = new Properties();
+		FileInputStream in = null;
+		try {
+			long modified = theFile.lastModified();
+			in = new FileInputStream(theFile);
+			props.load(in);
+			config.set(new Configuration(props));
+			lastModified = modified;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Writes the current snapshot to a temporary file and renames it over the
+	 * properties file, so a crash never leaves a half written file behind.
+	 */
+	private synchronized void save()
+	{
+		savePending.set(false);
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tempFile);
+			config.get().toProperties().store(out, null);
+			out.getFD().sync();
+			out.close();
+			out = null;
+			if (!tempFile.renameTo(theFile))
+			{
+				// renameTo does not replace an existing file on all platforms
+				theFile.delete();
+				if (!tempFile.renameTo(theFile))
+				{
+					throw new IOException("could not rename " + tempFile + " to " + theFile);
+				}
+			}
+			lastModified = theFile.lastModified();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Writes any pending change to disk immediately.
+	 */
+	public void flush()
+	{
+		if (savePending.get())
+		{
+			save();
+		}
+	}
+
+	/**
+	 * Changes a property. The new snapshot is visible at once, the file is
+	 * written shortly after, once for all changes made in the meantime.
+	 */
+	public void setProperty(String property, String value)
+	{
+		Configuration current;
+		do
+		{
+			current = config.get();
+		} while (!config.compareAndSet(current, current.with(property, value)));
+
+		if (savePending.compareAndSet(false, true))
+		{
+			getExecutor().schedule(new Runnable()
+			{
+				public void run()
+				{
+					flush();
+				}
+			}, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Polls the properties file every <i>configwatchseconds</i> and reloads it
+	 * when it has been changed by someone else. Unsaved changes take
+	 * precedence over the file.
+	 */
+	private synchronized void startWatching()
+	{
+		int seconds = config.get().getWatchSeconds();
+		if (seconds <= 0 || watcher != null)
+		{
+			return;
+		}
+		watcher = getExecutor().scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				if (!savePending.get() && theFile.exists() && theFile.lastModified() != lastModified)
+				{
+					reload();
+				}
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops watching the properties file.
+	 */
+	public synchronized void close()
+	{
+		flush();
+		if (watcher != null)
+		{
+			watcher.cancel(false);
+			watcher = null;
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getExecutor()
+	{
+		if (configExecutor == null)
+		{
+			configExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "mediasense-config");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return configExecutor;
+	}
+
+	private static void closeQuietly(Closeable c)
+	{
+		if (c != null)
+		{
+			try {
+				c.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
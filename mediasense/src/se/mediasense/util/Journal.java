@@ -0,0 +1,576 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package se.mediasense.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import se.mediasense.disseminationlayer.communication.MediaSenseHost;
+
+/**
+ * Append-only write-ahead journal for the local node state which must survive
+ * a crash: the subscriptions held by the publish/subscribe extension and the
+ * UCIs registered by this node.
+ * <p>Each record is framed as [length][crc32][type][payload]. Appends are
+ * queued and written by a single writer thread, which commits every queued
+ * record with one write and one force (group commit), so concurrent callers
+ * share the cost of the sync.
+ * <p>At startup the journal is replayed into memory, skipping records which
+ * cannot be decoded, a torn or corrupt tail is truncated, and the file is
+ * compacted into a snapshot of the live state when it has grown too large.
+ * The records which could not be decoded are carried over into the snapshot
+ * as they are, for a version of the node which can decode them.
+ */
+public final class Journal implements Runnable
+{
+	private static final byte SUBSCRIBE = 1;
+	private static final byte UNSUBSCRIBE = 2;
+	private static final byte REGISTER = 3;
+	private static final byte DELETE = 4;
+	private static final int HEADER_SIZE = 8;
+	private static final int MAX_RECORD_SIZE = 1 << 20;
+	private static final long GROUP_COMMIT_MILLIS = 5;
+	private static final int COMPACTION_THRESHOLD = 1000;
+	private final MediaSenseContext context;
+	private final File theFile;
+	private final Map<String, Map<String, MediaSenseHost>> subscriptions = new LinkedHashMap<String, Map<String, MediaSenseHost>>();
+	private final Set<String> registrations = new LinkedHashSet<String>();
+	private final Set<String> recovered = new LinkedHashSet<String>();
+	private final List<byte[]> pending = new ArrayList<byte[]>();
+	private RandomAccessFile file = null;
+	private FileChannel channel = null;
+	private Thread writer = null;
+	private boolean open = false;
+	private long submitted = 0;
+	private long committed = 0;
+	private int records = 0;
+	private final List<byte[]> undecodable = new ArrayList<byte[]>();
+
+	/**
+	 * Creates the journal of a node, kept in its system directory.
+	 */
+	public Journal(MediaSenseContext _context)
+	{
+		context = _context;
+		theFile = new File(context.getSystemDir(), "mediasense.journal");
+	}
+
+
+	/**
+	 * Replays the journal into memory and starts the group commit writer.
+	 * Calling this on an already opened journal does nothing.
+	 */
+	public synchronized void open()
+	{
+		if (open)
+		{
+			return;
+		}
+		try
+		{
+			File theDir = context.getSystemDir();
+			if (!theDir.exists())
+			{
+				theDir.mkdirs();
+			}
+			file = new RandomAccessFile(theFile, "rw");
+			channel = file.getChannel();
+			long valid = replay();
+			recovered.addAll(registrations);
+			if (valid < channel.size())
+			{
+				channel.truncate(valid);
+			}
+			channel.position(valid);
+			if (records > COMPACTION_THRESHOLD && records > 2 * (liveRecords() + undecodable.size()))
+			{
+				try
+				{
+					compact();
+				} catch (IOException e)
+				{
+					//the journal goes on uncompacted
+					e.printStackTrace();
+				}
+			}
+			open = true;
+			writer = new Thread(this, context.getName() == null ? "mediasense-journal" : "mediasense-journal-" + context.getName());
+			writer.setDaemon(true);
+			writer.start();
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Commits all queued records and closes the journal.
+	 */
+	public void close()
+	{
+		Thread t;
+		synchronized (this)
+		{
+			if (!open)
+			{
+				return;
+			}
+			open = false;
+			t = writer;
+			notifyAll();
+		}
+		try
+		{
+			t.join();
+		} catch (InterruptedException e)
+		{
+		}
+		synchronized (this)
+		{
+			try
+			{
+				channel.close();
+				file.close();
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void logSubscribe(String uci, MediaSenseHost host)
+	{
+		synchronized (this)
+		{
+			Map<String, MediaSenseHost> hosts = subscriptions.get(uci);
+			if (hosts == null)
+			{
+				hosts = new LinkedHashMap<String, MediaSenseHost>();
+				subscriptions.put(uci, hosts);
+			}
+			hosts.put(host.getHostID(), host);
+		}
+		append(encode(SUBSCRIBE, uci, host));
+	}
+
+	public void logUnsubscribe(String uci, MediaSenseHost host)
+	{
+		synchronized (this)
+		{
+			Map<String, MediaSenseHost> hosts = subscriptions.get(uci);
+			if (hosts == null || hosts.remove(host.getHostID()) == null)
+			{
+				return;
+			}
+			if (hosts.isEmpty())
+			{
+				subscriptions.remove(uci);
+			}
+		}
+		append(encode(UNSUBSCRIBE, uci, host));
+	}
+
+	public void logRegister(String uci)
+	{
+		synchronized (this)
+		{
+			if (!registrations.add(uci))
+			{
+				return;
+			}
+		}
+		append(encode(REGISTER, uci, null));
+	}
+
+	public void logDelete(String uci)
+	{
+		synchronized (this)
+		{
+			if (!registrations.remove(uci))
+			{
+				return;
+			}
+		}
+		append(encode(DELETE, uci, null));
+	}
+
+	/**
+	 * Returns the subscriptions recovered from the journal and logged since.
+	 * @return a copy of the subscribers per UCI
+	 */
+	public synchronized Map<String, List<MediaSenseHost>> getSubscriptions()
+	{
+		Map<String, List<MediaSenseHost>> copy = new HashMap<String, List<MediaSenseHost>>();
+		for (Map.Entry<String, Map<String, MediaSenseHost>> e : subscriptions.entrySet())
+		{
+			copy.put(e.getKey(), new ArrayList<MediaSenseHost>(e.getValue().values()));
+		}
+		return copy;
+	}
+
+	/**
+	 * Returns the UCIs registered by this node according to the journal.
+	 * @return a copy of the locally owned UCIs
+	 */
+	public synchronized Set<String> getRegistrations()
+	{
+		return new LinkedHashSet<String>(registrations);
+	}
+
+	public synchronized boolean isRegistered(String uci)
+	{
+		return registrations.contains(uci);
+	}
+
+	/**
+	 * Tells if an UCI was registered by this node before it was restarted,
+	 * and is not any more afterwards, so that registering it again in the
+	 * same run is a duplicate.
+	 */
+	public synchronized boolean reclaim(String uci)
+	{
+		return recovered.remove(uci) && registrations.contains(uci);
+	}
+
+	/**
+	 * Queues a record and waits until the writer has committed it. Records
+	 * logged while the journal is closed are kept in memory only.
+	 */
+	private void append(byte[] record)
+	{
+		if (record == null)
+		{
+			return;
+		}
+		synchronized (this)
+		{
+			if (!open)
+			{
+				return;
+			}
+			pending.add(record);
+			long ticket = ++submitted;
+			notifyAll();
+			while (open && committed < ticket)
+			{
+				try
+				{
+					wait();
+				} catch (InterruptedException e)
+				{
+					return;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		while (true)
+		{
+			List<byte[]> batch;
+			long ticket;
+			boolean running;
+			synchronized (this)
+			{
+				while (open && pending.isEmpty())
+				{
+					try
+					{
+						wait();
+					} catch (InterruptedException e)
+					{
+					}
+				}
+				running = open;
+				if (running)
+				{
+					// let concurrent appenders join this commit
+					try
+					{
+						wait(GROUP_COMMIT_MILLIS);
+					} catch (InterruptedException e)
+					{
+					}
+				}
+				batch = new ArrayList<byte[]>(pending);
+				pending.clear();
+				ticket = submitted;
+			}
+			if (!batch.isEmpty())
+			{
+				write(batch);
+			}
+			synchronized (this)
+			{
+				committed = ticket;
+				records += batch.size();
+				notifyAll();
+			}
+			if (!running)
+			{
+				return;
+			}
+		}
+	}
+
+	private void write(List<byte[]> batch)
+	{
+		try
+		{
+			writeFully(batch);
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private void writeFully(List<byte[]> batch) throws IOException
+	{
+		int size = 0;
+		for (byte[] record : batch)
+		{
+			size += record.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (byte[] record : batch)
+		{
+			buffer.put(record);
+		}
+		buffer.flip();
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+		channel.force(false);
+	}
+
+	private byte[] encode(byte type, String uci, MediaSenseHost host)
+	{
+		try
+		{
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(payload);
+			out.writeByte(type);
+			out.writeUTF(uci);
+			if (host != null)
+			{
+				ObjectOutputStream oos = new ObjectOutputStream(out);
+				oos.writeObject(host);
+				oos.flush();
+			}
+			out.flush();
+			return frame(payload.toByteArray());
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static byte[] frame(byte[] body)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + body.length);
+		record.putInt(body.length);
+		record.putInt((int) crc.getValue());
+		record.put(body);
+		return record.array();
+	}
+
+	/**
+	 * Applies every intact record to the in-memory state. An intact record
+	 * which cannot be decoded, such as one naming a class missing from this
+	 * version or of an unknown type, is kept aside; only a torn or corrupt
+	 * record ends the replay.
+	 * @return the file offset following the last intact record
+	 */
+	private long replay() throws IOException
+	{
+		long valid = 0;
+		file.seek(0);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.getFD())));
+		try
+		{
+			while (true)
+			{
+				int length = in.readInt();
+				int checksum = in.readInt();
+				if (length <= 0 || length > MAX_RECORD_SIZE)
+				{
+					break;
+				}
+				byte[] body = new byte[length];
+				in.readFully(body);
+				CRC32 crc = new CRC32();
+				crc.update(body);
+				if ((int) crc.getValue() != checksum)
+				{
+					break;
+				}
+				try
+				{
+					apply(body);
+				} catch (Exception e)
+				{
+					e.printStackTrace();
+					undecodable.add(body);
+				}
+				records++;
+				valid += HEADER_SIZE + length;
+			}
+		} catch (EOFException e)
+		{
+			// torn tail, everything before valid is intact
+		}
+		return valid;
+	}
+
+	private void apply(byte[] body) throws IOException, ClassNotFoundException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		byte type = in.readByte();
+		String uci = in.readUTF();
+		switch (type)
+		{
+			case SUBSCRIBE:
+			{
+				MediaSenseHost host = (MediaSenseHost) new ObjectInputStream(in).readObject();
+				Map<String, MediaSenseHost> hosts = subscriptions.get(uci);
+				if (hosts == null)
+				{
+					hosts = new LinkedHashMap<String, MediaSenseHost>();
+					subscriptions.put(uci, hosts);
+				}
+				hosts.put(host.getHostID(), host);
+				break;
+			}
+			case UNSUBSCRIBE:
+			{
+				MediaSenseHost host = (MediaSenseHost) new ObjectInputStream(in).readObject();
+				Map<String, MediaSenseHost> hosts = subscriptions.get(uci);
+				if (hosts != null)
+				{
+					hosts.remove(host.getHostID());
+					if (hosts.isEmpty())
+					{
+						subscriptions.remove(uci);
+					}
+				}
+				break;
+			}
+			case REGISTER:
+				registrations.add(uci);
+				break;
+			case DELETE:
+				registrations.remove(uci);
+				break;
+			default:
+				throw new IOException("unknown journal record type " + type);
+		}
+	}
+
+	private int liveRecords()
+	{
+		int live = registrations.size();
+		for (Map<String, MediaSenseHost> hosts : subscriptions.values())
+		{
+			live += hosts.size();
+		}
+		return live;
+	}
+
+	/**
+	 * Rewrites the live state, followed by the records which could not be
+	 * decoded, into a fresh journal and atomically replaces the old one with
+	 * it. The old journal is kept if the fresh one cannot be written.
+	 */
+	private void compact() throws IOException
+	{
+		List<byte[]> snapshot = new ArrayList<byte[]>();
+		for (String uci : registrations)
+		{
+			snapshot.add(encode(REGISTER, uci, null));
+		}
+		for (Map.Entry<String, Map<String, MediaSenseHost>> e : subscriptions.entrySet())
+		{
+			for (MediaSenseHost host : e.getValue().values())
+			{
+				snapshot.add(encode(SUBSCRIBE, e.getKey(), host));
+			}
+		}
+		if (snapshot.contains(null))
+		{
+			throw new IOException("the live state cannot be encoded");
+		}
+		for (byte[] body : undecodable)
+		{
+			snapshot.add(frame(body));
+		}
+		File temp = new File(theFile.getPath() + ".tmp");
+		RandomAccessFile tempfile = new RandomAccessFile(temp, "rw");
+		FileChannel previous = channel;
+		try
+		{
+			tempfile.setLength(0);
+			channel = tempfile.getChannel();
+			writeFully(snapshot);
+		} finally
+		{
+			channel = previous;
+			tempfile.close();
+		}
+		previous.close();
+		file.close();
+		try
+		{
+			Files.move(temp.toPath(), theFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally
+		{
+			//the old journal if the move failed
+			file = new RandomAccessFile(theFile, "rw");
+			channel = file.getChannel();
+			channel.position(channel.size());
+		}
+		records = snapshot.size();
+	}
+}
@@ -1,94 +1,58 @@
 package se.mediasense.util;
 
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.Properties;
-
-import se.mediasense.disseminationlayer.communication.Communication;
-import se.mediasense.disseminationlayer.communication.MediaSenseHost;
-import se.mediasense.disseminationlayer.disseminationcore.DisseminationCore;
-import se.mediasense.disseminationlayer.lookupservice.LookupService;
-import se.mediasense.distribution.P2PCommunication;
-import se.mediasense.distribution.P2PLookupService;
-
+/**
+ * The configuration of the default node of this JVM. Code which may run on
+ * behalf of another node should use its {@link MediaSenseContext} instead.
+ */
 public class MediaSenseConstants
 {
-    public static final Communication COMMUNICATION = P2PCommunication.getSharedInstance();    
-    public static final DisseminationCore DISSEMINATIONCORE = DisseminationCore.getSharedInstance();  
-    public static final LookupService LOOKUPSERVICE = P2PLookupService.getSharedInstance();
-    public static MediaSenseHost LOCALHOST = P2PCommunication.getSharedInstance().getLocalHost();
     public static final String rootdir = "system";
-	private static Properties MEDIASENSEPROPS = new Properties();
-	private static File theFile = new File(MediaSenseConstants.rootdir + System.getProperty("file.separator") + "mediasense.ini");
 	
 	public static void loadProps()
 	{
-	        File theDir = new File(MediaSenseConstants.rootdir);
-	        if (!theDir.exists())
-	        {
-	          theDir.mkdir();           
-	        }
-	        	        
-	        if (!theFile.exists())
-	        {
-	        	MEDIASENSEPROPS = new Properties();
-	        	
-	        	MEDIASENSEPROPS.setProperty("mediasensehostid", MediaSenseID.generateID().toUpperCase()+MediaSenseID.generateID().toUpperCase());
-	        	
-	        	MEDIASENSEPROPS.setProperty("overlayreplicationfactor", "3");
+		MediaSenseContext.getDefault().getConfigurationStore().load();
+	}
 
-	        	save();
-           
-	        }
-	        else
-	        {
-	        try {
-				MEDIASENSEPROPS.load(new FileInputStream(theFile));
-			} catch (FileNotFoundException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-	        }
-		
+	/**
+	 * Returns the current configuration snapshot of the default node.
+	 */
+	public static Configuration getConfiguration()
+	{
+		return MediaSenseContext.getDefault().getConfiguration();
 	}
-	
-	private static void save()
+
+	/**
+	 * Writes any pending change to disk immediately.
+	 */
+	public static void flush()
+	{
+		MediaSenseContext.getDefault().getConfigurationStore().flush();
+	}
+
+	/**
+	 * Changes a property. The new snapshot is visible at once, the file is
+	 * written shortly after, once for all changes made in the meantime.
+	 */
+	public static void setProperty(String property, String value)
 	{
-    	
-    	try {
-			MEDIASENSEPROPS.store(new FileOutputStream(theFile), null);
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
 		
+		MediaSenseContext.getDefault().getConfigurationStore().setProperty(property, value);
 		
 	}
 	
-	public static void setProperty(String property, String value)
+	public static String getProperty(String property)
 	{
 		
-		MEDIASENSEPROPS.setProperty(property, value);
+		return getConfiguration().getProperty(property);
 		
-		save();
 		
 	}
 	
-	public static String getProperty(String property)
+	public static int getIntProperty(String property, int defaultvalue)
 	{
 		
-		return MEDIASENSEPROPS.getProperty(property);
-		
+		return getConfiguration().getIntProperty(property, defaultvalue);
 		
 	}
 
@@ -0,0 +1,297 @@
+/*
+ * This file is part of The MediaSense Platform - http://www.mediasense.se.
+ *
+ * The MediaSense Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The MediaSense Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with The MediaSense Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.mediasense.util;
+
+import java.io.File;
+
+import net.tomp2p.p2p.Peer;
+import se.mediasense.disseminationlayer.communication.MediaSenseHost;
+import se.mediasense.disseminationlayer.disseminationcore.DisseminationCore;
+import se.mediasense.disseminationlayer.disseminationcore.ValueStore;
+import se.mediasense.distribution.AdaptiveTimeouts;
+import se.mediasense.distribution.LeaseRenewer;
+import se.mediasense.distribution.P2PCommunication;
+import se.mediasense.distribution.P2PLookupService;
+import se.mediasense.distribution.PrefixIndex;
+import se.mediasense.futures.FutureStartup;
+
+/**
+ * Everything that makes up one MediaSense node: its configuration, overlay
+ * peer, dissemination core, executor, journal, value store and lease renewer.
+ * <p>One JVM can host several isolated nodes by creating one context per
+ * node, each with its own base directory holding <i>system/</i> and
+ * <i>overlay/</i>. The default context, used by
+ * {@link MediaSenseConstants} and the single-node constructors, keeps those
+ * directories in the working directory as before.
+ * <p>The parts of a context are created together and find each other
+ * through the context.
+ */
+public final class MediaSenseContext
+{
+	private static MediaSenseContext DEFAULT = null;
+	private final String name;
+	private final File systemdir;
+	private final File overlaydir;
+	private final ConfigurationStore configuration;
+	private final ThreadExecutor executor;
+	private final Journal journal;
+	private final ValueStore valuestore;
+	private final P2PCommunication communication;
+	private final DisseminationCore disseminationcore;
+	private final P2PLookupService lookupservice;
+	private final PrefixIndex prefixindex;
+	private final LeaseRenewer leaserenewer;
+	private final AdaptiveTimeouts timeouts;
+	private final Object operations = new Object();
+	private final FutureStartup startup = new FutureStartup();
+	private int inflight = 0;
+	private volatile boolean draining = false;
+
+	/**
+	 * Creates an isolated node keeping its state under the given directory.
+	 * @param _name a name for the node, used in thread and metric names
+	 * @param basedir the directory to hold system/ and overlay/
+	 */
+	public MediaSenseContext(String _name, File basedir)
+	{
+		name = _name;
+		systemdir = new File(basedir, MediaSenseConstants.rootdir);
+		overlaydir = new File(basedir, "overlay");
+		configuration = new ConfigurationStore(systemdir);
+		executor = new ThreadExecutor(name);
+		journal = new Journal(this);
+		valuestore = new ValueStore();
+		communication = new P2PCommunication(this);
+		disseminationcore = new DisseminationCore(this);
+		lookupservice = new P2PLookupService(this);
+		prefixindex = new PrefixIndex(this);
+		leaserenewer = new LeaseRenewer(this);
+		timeouts = new AdaptiveTimeouts(this);
+	}
+
+	/**
+	 * Returns the context of the default node, stored in the working
+	 * directory.
+	 */
+	public static synchronized MediaSenseContext getDefault()
+	{
+		if (DEFAULT == null)
+		{
+			DEFAULT = new MediaSenseContext(null, new File("."));
+		}
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns true for the context of the default node.
+	 */
+	public boolean isDefault()
+	{
+		return this == DEFAULT;
+	}
+
+	/**
+	 * Returns the name of the node, null for the default node.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Returns the directory holding mediasense.ini and the journal.
+	 */
+	public File getSystemDir()
+	{
+		return systemdir;
+	}
+
+	/**
+	 * Returns the directory holding the overlay storage.
+	 */
+	public File getOverlayDir()
+	{
+		return overlaydir;
+	}
+
+	public ConfigurationStore getConfigurationStore()
+	{
+		return configuration;
+	}
+
+	/**
+	 * Returns the current configuration snapshot of this node.
+	 */
+	public Configuration getConfiguration()
+	{
+		return configuration.getConfiguration();
+	}
+
+	public ThreadExecutor getExecutor()
+	{
+		return executor;
+	}
+
+	public Journal getJournal()
+	{
+		return journal;
+	}
+
+	public ValueStore getValueStore()
+	{
+		return valuestore;
+	}
+
+	public P2PCommunication getCommunication()
+	{
+		return communication;
+	}
+
+	/**
+	 * Returns the overlay peer of this node, null before it is initialized.
+	 */
+	public Peer getPeer()
+	{
+		return communication.getPeer();
+	}
+
+	/**
+	 * Returns the local host of this node, null before it is initialized.
+	 */
+	public MediaSenseHost getLocalHost()
+	{
+		return communication.getLocalHost();
+	}
+
+	/**
+	 * Returns the ID this node is known by in the overlay, or its configured
+	 * host ID before it has joined.
+	 */
+	public String getHostID()
+	{
+		MediaSenseHost localhost = getLocalHost();
+		return localhost == null ? getConfiguration().getHostID() : localhost.getHostID();
+	}
+
+	public DisseminationCore getDisseminationCore()
+	{
+		return disseminationcore;
+	}
+
+	public P2PLookupService getLookupService()
+	{
+		return lookupservice;
+	}
+
+	public PrefixIndex getPrefixIndex()
+	{
+		return prefixindex;
+	}
+
+	/**
+	 * Returns the future which completes once this node has joined the overlay
+	 * and published its address, with the timings of each startup phase.
+	 */
+	public FutureStartup getStartup()
+	{
+		return startup;
+	}
+
+	public LeaseRenewer getLeaseRenewer()
+	{
+		return leaserenewer;
+	}
+
+	public AdaptiveTimeouts getTimeouts()
+	{
+		return timeouts;
+	}
+
+	/**
+	 * Returns true once the node has started draining and accepts no new
+	 * primitives.
+	 */
+	public boolean isDraining()
+	{
+		return draining;
+	}
+
+	/**
+	 * Stops the node from accepting new primitives. Those already started
+	 * run to completion.
+	 */
+	public void startDraining()
+	{
+		draining = true;
+	}
+
+	/**
+	 * Counts a primitive which has started and not yet completed.
+	 */
+	public void operationStarted()
+	{
+		synchronized (operations)
+		{
+			inflight++;
+		}
+	}
+
+	public void operationFinished()
+	{
+		synchronized (operations)
+		{
+			inflight--;
+			if (inflight <= 0)
+			{
+				operations.notifyAll();
+			}
+		}
+	}
+
+	public int getOperationsInFlight()
+	{
+		synchronized (operations)
+		{
+			return inflight;
+		}
+	}
+
+	/**
+	 * Waits until no primitive is in flight, or until the deadline.
+	 * @param deadline the deadline, in {@link System#currentTimeMillis()} time
+	 * @return the number of primitives still in flight
+	 */
+	public int awaitOperations(long deadline)
+	{
+		synchronized (operations)
+		{
+			long left = deadline - System.currentTimeMillis();
+			while (inflight > 0 && left > 0)
+			{
+				try
+				{
+					operations.wait(left);
+				} catch (InterruptedException e)
+				{
+					break;
+				}
+				left = deadline - System.currentTimeMillis();
+			}
+			return inflight;
+		}
+	}
+}
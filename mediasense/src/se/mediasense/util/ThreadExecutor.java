@@ -19,42 +19,128 @@ package se.mediasense.util;
 
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.mediasense.metrics.Counter;
+import se.mediasense.metrics.FlightEvents;
+import se.mediasense.metrics.Gauge;
+import se.mediasense.metrics.MetricsRegistry;
 
 public class ThreadExecutor 
 {
     
-private ExecutorService executorservice = new ThreadPoolExecutor
+private final String metricsprefix;
+private final AtomicInteger dropped = new AtomicInteger();
+private final Counter callerruns;
+private final ThreadPoolExecutor executorservice = new ThreadPoolExecutor
                                       (
                                        10, // core thread pool size
                                        100, // maximum thread pool size
                                        1, // time to wait before resizing pool
                                        TimeUnit.MINUTES,
                                        new ArrayBlockingQueue<Runnable>(10, true),
-                                       new ThreadPoolExecutor.CallerRunsPolicy()
+                                       new CallerRuns()
                                       );    
-private static ThreadExecutor sharedinstance = new ThreadExecutor();
-
-private ThreadExecutor()
+/**
+ * Runs the control tasks, so that they never queue behind data tasks.
+ */
+private final ThreadPoolExecutor controlservice = new ThreadPoolExecutor
+                                      (
+                                       4, // core thread pool size
+                                       4, // maximum thread pool size
+                                       1, // time to wait before resizing pool
+                                       TimeUnit.MINUTES,
+                                       new ArrayBlockingQueue<Runnable>(100, true),
+                                       new CallerRuns()
+                                      );    
+/**
+ * Creates the executor of one node.
+ * @param nodename the name of the node, null for the default node
+ */
+public ThreadExecutor(String nodename)
 {
-    
+    metricsprefix = nodename == null ? "executor." : "executor." + nodename + ".";
+    MetricsRegistry metrics = MetricsRegistry.getSharedInstance();
+    callerruns = metrics.counter(metricsprefix + "callerruns");
+    metrics.gauge(metricsprefix + "queue", new Gauge()
+    {
+        public long getValue()
+        {
+            return executorservice.getQueue().size();
+        }
+    });
+    metrics.gauge(metricsprefix + "active", new Gauge()
+    {
+        public long getValue()
+        {
+            return executorservice.getActiveCount();
+        }
+    });
+    metrics.gauge(metricsprefix + "pool", new Gauge()
+    {
+        public long getValue()
+        {
+            return executorservice.getPoolSize();
+        }
+    });
+    metrics.gauge(metricsprefix + "control.queue", new Gauge()
+    {
+        public long getValue()
+        {
+            return controlservice.getQueue().size();
+        }
+    });
+    metrics.gauge(metricsprefix + "control.active", new Gauge()
+    {
+        public long getValue()
+        {
+            return controlservice.getActiveCount();
+        }
+    });
 }        
 
     /**
+     * Sizes the pool from <i>executorcorethreads</i> and
+     * <i>executormaxthreads</i>, so that the nodes of a JVM can be given
+     * threads in proportion to their load, and the control pool from
+     * <i>executorcontrolthreads</i>.
      *
-     * @return
+     * @param config the configuration of the node
      */
-    public static ThreadExecutor SharedInstance()
+    public void configure(Configuration config)
 {
     
-    return sharedinstance;
+    int core = config.getIntProperty("executorcorethreads", 10);
+    int max = Math.max(core, config.getIntProperty("executormaxthreads", 100));
+    executorservice.setMaximumPoolSize(Math.max(max, executorservice.getCorePoolSize()));
+    executorservice.setCorePoolSize(core);
+    executorservice.setMaximumPoolSize(max);
+    int control = Math.max(1, config.getIntProperty("executorcontrolthreads", 4));
+    controlservice.setMaximumPoolSize(Math.max(control, controlservice.getCorePoolSize()));
+    controlservice.setCorePoolSize(control);
+    controlservice.setMaximumPoolSize(control);
     
 }
 
 
+    /**
+     * Returns how many more tasks the executor can take without running them
+     * on the submitting thread: the free places in its queue and the threads
+     * it can still start or has idle.
+     *
+     * @return the spare capacity
+     */
+    public int getSpareCapacity()
+{
+    
+    return executorservice.getQueue().remainingCapacity() + Math.max(0, executorservice.getMaximumPoolSize() - executorservice.getActiveCount());
+    
+}
+
     /**
      *
      * @param r
@@ -64,6 +150,22 @@ private ThreadExecutor()
     
     executorservice.submit(r);
     
+}
+
+    /**
+     * Submits a task to the control pool if it handles control traffic, such
+     * as registrations, lookups and subscriptions, else to the data pool. The
+     * control pool is small and separate, so that a flood of data does not
+     * delay control messages.
+     *
+     * @param r the task
+     * @param control true for control traffic
+     */
+    public void submit(Runnable r, boolean control)
+{
+    
+    (control ? controlservice : executorservice).submit(r);
+    
 }
 
     /**
@@ -71,11 +173,49 @@ private ThreadExecutor()
      * @param c
      * @return
      */
-    public Future submit(Callable c)
+    public <T> Future<T> submit(Callable<T> c)
 {
     
     return executorservice.submit(c);
     
+}
+
+    /**
+     * Stops accepting tasks and lets the queued and running ones complete,
+     * until the deadline. Tasks still queued or running then are cancelled.
+     *
+     * @param deadline the deadline, in {@link System#currentTimeMillis()} time
+     * @return the number of tasks cancelled or refused since the drain started
+     */
+    public int drain(long deadline)
+{
+    
+    executorservice.shutdown();
+    controlservice.shutdown();
+    try
+    {
+        executorservice.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        controlservice.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e)
+    {
+        e.printStackTrace();
+    }
+    int active = executorservice.getActiveCount() + controlservice.getActiveCount();
+    int queued = executorservice.shutdownNow().size() + controlservice.shutdownNow().size();
+    return active + queued + dropped.get();
+    
+}
+
+    /**
+     * Returns the number of tasks which have run to completion.
+     *
+     * @return the completed task count
+     */
+    public long getCompletedTaskCount()
+{
+    
+    return executorservice.getCompletedTaskCount() + controlservice.getCompletedTaskCount();
+    
 }
 
     /**
@@ -85,8 +225,33 @@ private ThreadExecutor()
 {
         
             executorservice.shutdownNow();
+            controlservice.shutdownNow();
      
     
 }
 
+    /**
+     * Runs a task on the submitting thread when the queue is full, or counts
+     * it as dropped once a drain started.
+     */
+    private final class CallerRuns implements RejectedExecutionHandler
+    {
+        private final ThreadPoolExecutor.CallerRunsPolicy policy = new ThreadPoolExecutor.CallerRunsPolicy();
+
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+        {
+            if (executor.isShutdown())
+            {
+                //submitted after a drain started, the task is lost
+                dropped.incrementAndGet();
+                return;
+            }
+            //the queue is full, the submitting thread runs the task itself
+            callerruns.inc();
+            Object jfr = FlightEvents.ENABLED ? FlightEvents.begin(FlightEvents.Type.EXECUTOR_REJECTION) : null;
+            policy.rejectedExecution(r, executor);
+            FlightEvents.commit(jfr, null, r.getClass().getName(), -1);
+        }
+    }
+
 }